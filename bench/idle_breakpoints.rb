@@ -0,0 +1,68 @@
+# Measures the cost of running with breakpoints which are never hit.
+#
+# The most common configuration of a debugged application: some breakpoints
+# are set, no thread is stepping, and the code being run does not reach any
+# of them. Every scenario runs with no breakpoint, with a line breakpoint in
+# a method which is never called and with a method breakpoint on it.
+#
+#   jruby --debug -Ilib bench/idle_breakpoints.rb [iterations]
+
+require 'benchmark'
+require 'ruby-debug-base'
+
+ITERATIONS = (ARGV[0] || 200_000).to_i
+
+class BenchHandler
+  def at_line(context, file, line); end
+  def at_breakpoint(context, breakpoint); end
+  def at_catchpoint(context, excpt); end
+  def at_tracing(context, file, line); end
+  def at_return(context, file, line); end
+end
+
+def never_called
+  raise 'reached a breakpoint which should never be hit'
+end
+NEVER_CALLED_LINE = __LINE__ - 2
+
+def lines_only(n)
+  i = 0
+  while i < n
+    a = i
+    b = a + 1
+    i = b
+  end
+end
+
+def leaf(i)
+  i + 1
+end
+
+def calls(n)
+  i = 0
+  while i < n
+    i = leaf(i)
+  end
+end
+
+def debugged(name, n)
+  Debugger.handler = BenchHandler.new
+  Debugger.start
+  begin
+    yield if block_given?
+    Benchmark.realtime { send(name, n) }
+  ensure
+    Debugger.stop
+  end
+end
+
+puts "#{ITERATIONS} iterations"
+printf("%-12s %12s %12s %12s %12s\n", 'scenario', 'plain [s]', 'none [s]', 'line [s]', 'method [s]')
+[:lines_only, :calls].each do |name|
+  send(name, ITERATIONS) # warm up
+  plain = Benchmark.realtime { send(name, ITERATIONS) }
+  none = debugged(name, ITERATIONS)
+  line = debugged(name, ITERATIONS) { Debugger.add_breakpoint(__FILE__, NEVER_CALLED_LINE) }
+  method = debugged(name, ITERATIONS) { Debugger.add_breakpoint('Object', :never_called) }
+  printf("%-12s %12.3f %12.3f %12.3f %12.3f\n", name, plain, none, line, method)
+end
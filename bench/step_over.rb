@@ -0,0 +1,75 @@
+# Measures the cost of "next" over calls doing a lot of work.
+#
+# Every scenario runs a method under Context#step_over from its caller, so
+# all its line events happen in frames deeper than the step target. The
+# time per event should stay close to the time of a run without debugger,
+# and grow with the number of calls (frame pushes), not with the number of
+# lines executed.
+#
+#   jruby --debug -Ilib bench/step_over.rb [iterations]
+
+require 'benchmark'
+require 'ruby-debug-base'
+
+ITERATIONS = (ARGV[0] || 200_000).to_i
+
+class BenchHandler
+  attr_accessor :stops
+
+  def initialize
+    @stops = 0
+  end
+
+  def at_line(context, file, line)
+    @stops += 1
+    context.step_over(1, 0) if @stops == 1
+  end
+
+  def at_breakpoint(context, breakpoint); end
+  def at_catchpoint(context, excpt); end
+  def at_tracing(context, file, line); end
+  def at_return(context, file, line); end
+end
+
+def lines_only(n)
+  i = 0
+  while i < n
+    a = i
+    b = a + 1
+    i = b
+  end
+end
+
+def leaf(i)
+  i + 1
+end
+
+def calls(n)
+  i = 0
+  while i < n
+    i = leaf(i)
+  end
+end
+
+def plain(name, n)
+  Benchmark.realtime { send(name, n) }
+end
+
+def stepped_over(name, n)
+  handler = Debugger.handler = BenchHandler.new
+  Debugger.start
+  begin
+    # stops at the next line and steps over the measured block
+    Debugger.current_context.stop_next = 1
+    Benchmark.realtime { send(name, n) }
+  ensure
+    Debugger.stop
+  end
+end
+
+puts "#{ITERATIONS} iterations"
+printf("%-12s %12s %12s\n", 'scenario', 'plain [s]', 'next [s]')
+[:lines_only, :calls].each do |name|
+  plain(name, ITERATIONS) # warm up
+  printf("%-12s %12.3f %12.3f\n", name, plain(name, ITERATIONS), stepped_over(name, ITERATIONS))
+end
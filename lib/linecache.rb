@@ -70,8 +70,10 @@ require 'tracelines'
 # = module LineCache
 # Module caching lines of a file
 module LineCache
-  LineCacheInfo = Struct.new(:stat, :line_numbers, :lines, :path, :sha1) unless
-    defined?(LineCacheInfo)
+  # +version+ is that of the source cache's index for entries without
+  # +lines+, see Debugger::SourceCache.version.
+  LineCacheInfo = Struct.new(:stat, :line_numbers, :lines, :path, :sha1,
+                             :version) unless defined?(LineCacheInfo)
  
   # The file cache. The key is a name as would be given by Ruby for 
   # __FILE__. The value is a LineCacheInfo object. 
@@ -92,11 +94,23 @@ module LineCache
   @@file2file_remap = {} 
   @@file2file_remap_lines = {}
   
+  # Lines of files read from disk are kept by the Java-side
+  # Debugger::SourceCache when the debugger extension is loaded. It
+  # reads each file once into a heap buffer and indexes line offsets, so
+  # a line is fetched without holding every line as a Ruby String. The +lines+
+  # of such LineCacheInfo entries are nil. Returns nil when the
+  # extension is not available.
+  def source_cache()
+    defined?(Debugger::SourceCache) ? Debugger::SourceCache : nil
+  end
+  module_function :source_cache
+
   # Clear the file cache entirely.
   def clear_file_cache()
     @@file_cache = {}
     @@file2file_remap = {}
     @@file2file_remap_lines = {}
+    source_cache.clear if source_cache
   end
   module_function :clear_file_cache
 
@@ -126,7 +140,16 @@ module LineCache
     for filename in filenames
       next unless @@file_cache.member?(filename)
       path = @@file_cache[filename].path
-      if File.exist?(path)
+      if !@@file_cache[filename].lines
+        # The source cache reloads files evicted by its watcher on its
+        # own, which gives a new version. It stats only files it does
+        # not watch.
+        version = source_cache.version(path)
+        if !version || version != @@file_cache[filename].version
+          result << filename
+          update_cache(filename, use_script_lines)
+        end
+      elsif File.exist?(path)
         cache_info = @@file_cache[filename]
         stat = File.stat(path)
         if stat && 
@@ -170,7 +193,7 @@ module LineCache
       
   def empty?(filename)
     filename=unmap_file(filename)
-    @@file_cache[filename].lines.empty?
+    size(filename) == 0
   end
   module_function :empty?
 
@@ -190,8 +213,11 @@ module LineCache
   def getline(filename, line_number, reload_on_change=true)
     filename = unmap_file(filename)
     filename, line_number = unmap_file_line(filename, line_number)
-    lines = getlines(filename, reload_on_change)
-    if lines and (1..lines.size) === line_number
+    info = cache_info(filename, reload_on_change)
+    return nil unless info
+    return source_cache.getline(info.path, line_number) unless info.lines
+    lines = info.lines
+    if (1..lines.size) === line_number
         return lines[line_number-1]
     else
         return nil
@@ -204,16 +230,21 @@ module LineCache
   # if we can't get lines
   def getlines(filename, reload_on_change=false)
     filename = unmap_file(filename)
-    checkcache(filename) if reload_on_change
-    if @@file_cache.member?(filename)
-      return @@file_cache[filename].lines
-    else
-      update_cache(filename, true)
-      return @@file_cache[filename].lines if @@file_cache.member?(filename)
-    end
+    info = cache_info(filename, reload_on_change)
+    return nil unless info
+    info.lines || source_cache.getlines(info.path)
   end
   module_function :getlines
 
+  # Return the LineCacheInfo of +filename+, caching the file first if
+  # needed. Return nil if we can't get it.
+  def cache_info(filename, reload_on_change=false)
+    checkcache(filename) if reload_on_change
+    update_cache(filename, true) unless @@file_cache.member?(filename)
+    @@file_cache[filename]
+  end
+  module_function :cache_info
+
   # Return full filename path for filename
   def path(filename)
     filename = unmap_file(filename)
@@ -244,6 +275,8 @@ module LineCache
   def sha1(filename)
     filename = unmap_file(filename)
     return nil unless @@file_cache.member?(filename)
+    return source_cache.sha1(@@file_cache[filename].path) unless
+      @@file_cache[filename].lines
     return @@file_cache[filename].sha1.hexdigest if 
       @@file_cache[filename].sha1
     sha1 = Digest::SHA1.new
@@ -259,7 +292,8 @@ module LineCache
   def size(filename)
     filename = unmap_file(filename)
     return nil unless @@file_cache.member?(filename)
-    @@file_cache[filename].lines.length
+    info = @@file_cache[filename]
+    info.lines ? info.lines.length : source_cache.size(info.path)
   end
   module_function :size
 
@@ -278,9 +312,14 @@ module LineCache
     fullname = cache(filename, reload_on_change)
     return nil unless fullname
     e = @@file_cache[filename]
+    unless e.lines
+      # Java-side table from the JRuby parser, cached until the file changes
+      lnums = Debugger.executable_lines(e.path)
+      return lnums if lnums
+    end
     unless e.line_numbers
       e.line_numbers = 
-        TraceLineNumbers.lnums_for_str_array(e.lines)
+        TraceLineNumbers.lnums_for_str_array(e.lines || getlines(filename))
       e.line_numbers = false unless e.line_numbers
     end
     e.line_numbers
@@ -353,16 +392,23 @@ module LineCache
       end
       return false unless stat
     end
-    begin
-      fp = File.open(path, 'r')
-      lines = fp.readlines()
-      fp.close()
-    rescue 
-      ##  print '*** cannot open', path, ':', msg
-      return nil
+    if source_cache
+      source_cache.evict(path)
+      return nil unless source_cache.load(path)
+      lines = nil
+    else
+      begin
+        fp = File.open(path, 'r')
+        lines = fp.readlines()
+        fp.close()
+      rescue 
+        ##  print '*** cannot open', path, ':', msg
+        return nil
+      end
     end
     @@file_cache[filename] = LineCacheInfo.new(File.stat(path), nil, lines,
                                                path, nil)
+    @@file_cache[filename].version = source_cache.version(path) if source_cache
     @@file2file_remap[path] = filename
     return true
   end
@@ -60,6 +60,21 @@ module Debugger
     end
   end
   
+  # Extends the Array returned by Debugger.breakpoints, so the breakpoints
+  # the event hook checks follow changes made to it directly.
+  module BreakpointList
+    %w(<< push append unshift prepend insert concat []= clear replace
+       delete delete_at delete_if reject! select! keep_if shift pop slice!
+       compact! flatten! uniq! fill map! collect! sort! sort_by! reverse!
+       rotate! shuffle!).each do |name|
+      define_method(name) do |*args, &block|
+        result = super(*args, &block)
+        Debugger.sync_breakpoints
+        result
+      end
+    end
+  end
+
   @reload_source_on_change = false
   
   class << self
@@ -13,6 +13,10 @@ module TraceLineNumbers
   # Return an array of lines numbers that could be 
   # stopped at given a file name of a Ruby program.
   def lnums_for_file(file)
+    if defined?(Debugger.executable_lines) 
+      lnums = Debugger.executable_lines(file)
+      return lnums if lnums
+    end
     lnums_for_str(File.read(file))
   end
   module_function :lnums_for_file
@@ -25,13 +25,18 @@
 package org.jruby.debug;
 
 import org.jruby.Ruby;
+import org.jruby.RubyArray;
 import org.jruby.RubyClass;
 import org.jruby.RubyFixnum;
+import org.jruby.RubyHash;
 import org.jruby.RubyNumeric;
 import org.jruby.RubyObject;
+import org.jruby.RubyRegexp;
 import org.jruby.RubySymbol;
+import org.jruby.RubyThread;
 import org.jruby.anno.JRubyMethod;
 import org.jruby.runtime.Block;
+import org.jruby.runtime.ThreadContext;
 import org.jruby.runtime.builtin.IRubyObject;
 
 public class Breakpoint extends RubyObject {
@@ -70,6 +75,10 @@ public class Breakpoint extends RubyObject {
     @JRubyMethod(name="source=", required=1)
     public IRubyObject source_set(IRubyObject source, Block block) {
         debuggerBreakpoint().setSource(source.convertToString());
+        if (debuggerBreakpoint().getType() == DebugBreakpoint.Type.METHOD) {
+            // regroups method breakpoints by class
+            RubyDebugger.debugger(getRuntime()).breakpointMoved();
+        }
         
         return source;
     }
@@ -79,6 +88,8 @@ public class Breakpoint extends RubyObject {
         DebugBreakpoint debugBreakpoint = debuggerBreakpoint();
         if (debugBreakpoint.getType() == DebugBreakpoint.Type.METHOD) {
             return getRuntime().newString(debuggerBreakpoint().getPos().getMethodName());
+        } else if (debugBreakpoint.getType() == DebugBreakpoint.Type.WATCH) {
+            return getRuntime().newString(debugBreakpoint.getWatch().getName());
         } else {
             return getRuntime().newFixnum(debuggerBreakpoint().getPos().getLine());    
         }
@@ -87,15 +98,64 @@ public class Breakpoint extends RubyObject {
     @JRubyMethod(name="pos=", required=1)
     public IRubyObject pos_set(IRubyObject pos, Block block) {
         DebugBreakpoint debugBreakpoint = debuggerBreakpoint();
-        if (debugBreakpoint.getType() == DebugBreakpoint.Type.METHOD) {
-            debugBreakpoint.getPos().setMethodName(pos.convertToString().toString());
+        if (debugBreakpoint.getType() == DebugBreakpoint.Type.WATCH) {
+            throw getRuntime().newArgumentError("Position of a watchpoint can't be changed.");
+        } else if (debugBreakpoint.getType() == DebugBreakpoint.Type.METHOD) {
+            if (pos instanceof RubyRegexp) {
+                debugBreakpoint.getPos().setMethodName(pos.inspect().toString());
+                debugBreakpoint.getPos().setMethodPattern(MethodBreakpointMatcher.compileRegexp((RubyRegexp) pos));
+            } else {
+                String methodName = pos.convertToString().toString();
+                debugBreakpoint.getPos().setMethodName(methodName);
+                debugBreakpoint.getPos().setMethodPattern(MethodBreakpointMatcher.compileGlob(methodName));
+            }
+            RubyDebugger.debugger(getRuntime()).breakpointMoved();
         } else {
             debugBreakpoint.getPos().setLine(RubyNumeric.fix2int(pos));
+            RubyDebugger.debugger(getRuntime()).breakpointMoved();
         }
         
         return pos;
     }
 
+    @JRubyMethod(name="threads")
+    public IRubyObject threads(Block block) {
+        RubyThread[] threads = debuggerBreakpoint().getThreads();
+        return threads == null ? getRuntime().getNil() : RubyArray.newArray(getRuntime(), threads);
+    }
+
+    /**
+     * Restricts the breakpoint to the given threads, given as Thread or
+     * Debugger::Context objects. Other threads pass the breakpoint without
+     * evaluating its condition. +nil+ applies it to all threads again.
+     */
+    @JRubyMethod(name="threads=", required=1)
+    public IRubyObject threads_set(IRubyObject threads, Block block) {
+        if (threads.isNil()) {
+            debuggerBreakpoint().setThreads(null);
+            return threads;
+        }
+        IRubyObject[] given = threads.convertToArray().toJavaArray();
+        RubyThread[] result = new RubyThread[given.length];
+        for (int i = 0; i < given.length; i++) {
+            IRubyObject thread = given[i];
+            if (thread instanceof Context) {
+                thread = ((DebugContext) thread.dataGetStruct()).getThread();
+            }
+            if (!(thread instanceof RubyThread)) {
+                throw getRuntime().newTypeError(thread, getRuntime().getThread());
+            }
+            result[i] = (RubyThread) thread;
+        }
+        debuggerBreakpoint().setThreads(result);
+        return threads;
+    }
+
+    @JRubyMethod(name="watchpoint?")
+    public IRubyObject watchpoint_p(Block block) {
+        return getRuntime().newBoolean(debuggerBreakpoint().getType() == DebugBreakpoint.Type.WATCH);
+    }
+
     @JRubyMethod(name="expr")
     public IRubyObject expr(Block block) {
         return debuggerBreakpoint().getExpr();
@@ -112,6 +172,88 @@ public class Breakpoint extends RubyObject {
         return getRuntime().newFixnum(debuggerBreakpoint().getHitCount());
     }
 
+    /*
+     *   call-seq:
+     *      breakpoint.stats -> hash
+     *
+     *   Returns counters telling what the breakpoint costs:
+     *   <tt>:matches</tt> (position reached), <tt>:condition_evaluations</tt>,
+     *   <tt>:condition_time</tt> (seconds in total), <tt>:condition_histogram</tt>
+     *   (pairs of an upper limit in microseconds, nil for the last one, and a
+     *   count), <tt>:condition_errors</tt>, <tt>:last_condition_error</tt>
+     *   and <tt>:stops</tt>.
+     */
+    @JRubyMethod(name="stats")
+    public IRubyObject stats(Block block) {
+        Ruby rt = getRuntime();
+        ThreadContext tCtx = rt.getCurrentContext();
+        BreakpointStats stats = debuggerBreakpoint().getStats();
+        RubyArray histogram = rt.newArray();
+        for (int i = 0; i < BreakpointStats.BUCKETS; i++) {
+            long limit = BreakpointStats.getBucketLimit(i);
+            histogram.append(rt.newArray(limit == -1 ? rt.getNil() : rt.newFixnum(limit),
+                    rt.newFixnum(stats.getConditionTimes(i))));
+        }
+        String lastError = stats.getLastConditionError();
+        RubyHash result = RubyHash.newHash(rt);
+        result.op_aset(tCtx, rt.newSymbol("matches"), rt.newFixnum(stats.getMatches()));
+        result.op_aset(tCtx, rt.newSymbol("condition_evaluations"), rt.newFixnum(stats.getConditionEvaluations()));
+        result.op_aset(tCtx, rt.newSymbol("condition_time"), rt.newFloat(stats.getConditionNanos() / 1e9));
+        result.op_aset(tCtx, rt.newSymbol("condition_histogram"), histogram);
+        result.op_aset(tCtx, rt.newSymbol("condition_errors"), rt.newFixnum(stats.getConditionErrors()));
+        result.op_aset(tCtx, rt.newSymbol("last_condition_error"), lastError == null ? rt.getNil() : rt.newString(lastError));
+        result.op_aset(tCtx, rt.newSymbol("stops"), rt.newFixnum(stats.getStops()));
+        return result;
+    }
+
+    @JRubyMethod(name="reset_stats")
+    public IRubyObject reset_stats(Block block) {
+        debuggerBreakpoint().getStats().reset();
+        return getRuntime().getNil();
+    }
+
+    @JRubyMethod(name="snapshot?")
+    public IRubyObject snapshot_p(Block block) {
+        return getRuntime().newBoolean(debuggerBreakpoint().isSnapshot());
+    }
+
+    /*
+     *   call-seq:
+     *      breakpoint.snapshot = bool
+     *
+     *   A snapshot breakpoint does not stop the thread. When reached and its
+     *   conditions hold, it captures the stack and the locals of the top
+     *   frames for <tt>Debugger.snapshots</tt> and lets the thread go on.
+     */
+    @JRubyMethod(name="snapshot=", required=1)
+    public IRubyObject snapshot_set(IRubyObject snapshot, Block block) {
+        debuggerBreakpoint().setSnapshot(snapshot.isTrue());
+        return snapshot;
+    }
+
+    @JRubyMethod(name="snapshot_limit")
+    public IRubyObject snapshot_limit(Block block) {
+        int limit = debuggerBreakpoint().getSnapshotLimit();
+        return limit <= 0 ? getRuntime().getNil() : getRuntime().newFixnum(limit);
+    }
+
+    /*
+     *   call-seq:
+     *      breakpoint.snapshot_limit = count_or_nil
+     *
+     *   Snapshots the breakpoint takes at most; nil for no limit.
+     */
+    @JRubyMethod(name="snapshot_limit=", required=1)
+    public IRubyObject snapshot_limit_set(IRubyObject limit, Block block) {
+        debuggerBreakpoint().setSnapshotLimit(limit.isNil() ? 0 : RubyNumeric.fix2int(limit));
+        return limit;
+    }
+
+    @JRubyMethod(name="snapshot_count")
+    public IRubyObject snapshot_count(Block block) {
+        return getRuntime().newFixnum(debuggerBreakpoint().getSnapshotCount());
+    }
+
     @JRubyMethod(name="hit_value")
     public IRubyObject hit_value(Block block) {
         return getRuntime().newFixnum(debuggerBreakpoint().getHitValue());
@@ -0,0 +1,246 @@
+/*
+ * header & license
+ * Copyright (c) 2008 debug-commons team
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.jruby.debug;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.jruby.Ruby;
+import org.jruby.RubyArray;
+import org.jruby.RubyModule;
+import org.jruby.runtime.builtin.IRubyObject;
+
+/**
+ * Breakpoints of a {@link Debugger}. Every change builds a new immutable
+ * {@link Snapshot} with its indexes and publishes it at once, so event hooks
+ * always see a consistent set of breakpoints without locking. Changes are
+ * serialized on the registry.
+ * <p>
+ * Ruby code sees the breakpoints as the Array returned by
+ * <tt>Debugger.breakpoints</tt>, which clients are used to modify directly
+ * (e.g. <tt>Debugger.breakpoints.clear</tt>). Such changes are picked up by
+ * {@link #sync}: the Array is extended with <tt>Debugger::BreakpointList</tt>,
+ * whose writers call it, and it is also done by every other change and
+ * after every stop. Event hooks only read the published snapshot.
+ */
+final class BreakpointRegistry {
+
+    private static final IRubyObject[] NO_BREAKPOINTS = new IRubyObject[0];
+
+    /** Immutable set of breakpoints with lookup tables for event hooks. */
+    static final class Snapshot {
+
+        private final IRubyObject[] all;
+        private final Map<Integer, IRubyObject> byId;
+        private final int[] lines;
+        private final IRubyObject[][] atLines;
+        private final IRubyObject[] methodBreakpoints;
+        private final MethodBreakpointMatcher methodMatcher;
+        private final IRubyObject[] watchpoints;
+
+        private Snapshot(final IRubyObject[] all) {
+            this.all = all;
+            this.byId = new HashMap<Integer, IRubyObject>();
+            TreeMap<Integer, List<IRubyObject>> byLine = new TreeMap<Integer, List<IRubyObject>>();
+            List<IRubyObject> methods = new ArrayList<IRubyObject>();
+            List<IRubyObject> watches = new ArrayList<IRubyObject>();
+            for (IRubyObject breakpoint : all) {
+                Object struct = breakpoint.dataGetStruct();
+                if (!(struct instanceof DebugBreakpoint)) {
+                    continue; // not a Debugger::Breakpoint, never hit
+                }
+                DebugBreakpoint debugBreakpoint = (DebugBreakpoint) struct;
+                byId.put(debugBreakpoint.getId(), breakpoint);
+                if (debugBreakpoint.getType() == DebugBreakpoint.Type.POS) {
+                    int line = debugBreakpoint.getPos().getLine();
+                    List<IRubyObject> atLine = byLine.get(line);
+                    if (atLine == null) {
+                        atLine = new ArrayList<IRubyObject>(1);
+                        byLine.put(line, atLine);
+                    }
+                    atLine.add(breakpoint);
+                } else if (debugBreakpoint.getType() == DebugBreakpoint.Type.WATCH) {
+                    watches.add(breakpoint);
+                } else {
+                    methods.add(breakpoint);
+                }
+            }
+            this.lines = new int[byLine.size()];
+            this.atLines = new IRubyObject[byLine.size()][];
+            int i = 0;
+            for (Map.Entry<Integer, List<IRubyObject>> entry : byLine.entrySet()) {
+                lines[i] = entry.getKey();
+                atLines[i] = entry.getValue().toArray(new IRubyObject[entry.getValue().size()]);
+                i++;
+            }
+            this.methodBreakpoints = methods.toArray(new IRubyObject[methods.size()]);
+            this.methodMatcher = new MethodBreakpointMatcher(methodBreakpoints);
+            this.watchpoints = watches.toArray(new IRubyObject[watches.size()]);
+        }
+
+        /** All breakpoints in the order they were added. Must not be modified. */
+        IRubyObject[] getAll() {
+            return all;
+        }
+
+        /** @return breakpoint with the given id or <tt>null</tt> */
+        IRubyObject get(final int id) {
+            return byId.get(id);
+        }
+
+        /** Line breakpoints set on the line, in any file. Must not be modified. */
+        IRubyObject[] atLine(final int line) {
+            int index = Arrays.binarySearch(lines, line);
+            return index < 0 ? NO_BREAKPOINTS : atLines[index];
+        }
+
+        /** Must not be modified. */
+        IRubyObject[] getMethodBreakpoints() {
+            return methodBreakpoints;
+        }
+
+        /** Method breakpoints by class and method of a call. */
+        MethodBreakpointMatcher getMethodMatcher() {
+            return methodMatcher;
+        }
+
+        /** Must not be modified. */
+        IRubyObject[] getWatchpoints() {
+            return watchpoints;
+        }
+
+        boolean hasLineBreakpoints() {
+            return lines.length > 0;
+        }
+
+        boolean hasMethodBreakpoints() {
+            return methodBreakpoints.length > 0;
+        }
+    }
+
+    private final RubyArray view;
+    private volatile Snapshot snapshot;
+
+    BreakpointRegistry(final Ruby runtime) {
+        this.view = runtime.newArray();
+        this.snapshot = new Snapshot(NO_BREAKPOINTS);
+        // defined by ruby-debug-base.rb, missing if only the jar is loaded
+        RubyModule debugger = runtime.getModule("Debugger");
+        IRubyObject writers = debugger == null ? null : debugger.getConstantAt("BreakpointList");
+        if (writers instanceof RubyModule) {
+            view.callMethod(runtime.getCurrentContext(), "extend", writers);
+        }
+    }
+
+    /** Current breakpoints; a volatile read, called for every event. */
+    Snapshot getSnapshot() {
+        return snapshot;
+    }
+
+    /** The Array Ruby code sees as <tt>Debugger.breakpoints</tt>. */
+    RubyArray getView() {
+        return view;
+    }
+
+    synchronized void add(final IRubyObject breakpoint) {
+        update(new IRubyObject[] { breakpoint }, new int[0]);
+    }
+
+    /** @return removed breakpoint or <tt>null</tt> if there is none with the id */
+    synchronized IRubyObject remove(final int id) {
+        IRubyObject[] removed = update(NO_BREAKPOINTS, new int[] { id });
+        return removed.length == 0 ? null : removed[0];
+    }
+
+    /**
+     * Adds and removes many breakpoints at once, building the indexes only
+     * once.
+     *
+     * @return the removed breakpoints
+     */
+    synchronized IRubyObject[] update(final IRubyObject[] added, final int[] removedIds) {
+        sync();
+        Snapshot current = snapshot;
+        // identity, Ruby objects' equals() would call back into Ruby
+        Map<IRubyObject, Boolean> removedSet = new IdentityHashMap<IRubyObject, Boolean>();
+        List<IRubyObject> removed = new ArrayList<IRubyObject>();
+        for (int id : removedIds) {
+            IRubyObject breakpoint = current.get(id);
+            if (breakpoint != null && removedSet.put(breakpoint, Boolean.TRUE) == null) {
+                removed.add(breakpoint);
+            }
+        }
+        List<IRubyObject> result = new ArrayList<IRubyObject>(current.all.length + added.length);
+        for (IRubyObject breakpoint : current.all) {
+            if (!removedSet.containsKey(breakpoint)) {
+                result.add(breakpoint);
+            }
+        }
+        for (IRubyObject breakpoint : added) {
+            result.add(breakpoint);
+        }
+        publish(result.toArray(new IRubyObject[result.size()]));
+        return removed.toArray(new IRubyObject[removed.size()]);
+    }
+
+    /** Replaces all breakpoints by the given ones. */
+    synchronized void replace(final IRubyObject[] breakpoints) {
+        publish(breakpoints.clone());
+    }
+
+    /** Rebuilds the indexes, e.g. after the line of a breakpoint has changed. */
+    synchronized void rebuild() {
+        sync();
+        snapshot = new Snapshot(snapshot.all);
+    }
+
+    /**
+     * Adopts changes Ruby code made to the Array returned by
+     * <tt>Debugger.breakpoints</tt>.
+     */
+    synchronized void sync() {
+        IRubyObject[] current = snapshot.all;
+        IRubyObject[] contents = view.toJavaArray();
+        boolean same = contents.length == current.length;
+        for (int i = 0; same && i < contents.length; i++) {
+            same = contents[i] == current[i];
+        }
+        if (!same) {
+            snapshot = new Snapshot(contents);
+        }
+    }
+
+    private void publish(final IRubyObject[] breakpoints) {
+        snapshot = new Snapshot(breakpoints);
+        view.clear();
+        for (IRubyObject breakpoint : breakpoints) {
+            view.append(breakpoint);
+        }
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * header & license
+ * Copyright (c) 2008 debug-commons team
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.jruby.debug;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jruby.Ruby;
+import org.jruby.RubyArray;
+import org.jruby.RubyHash;
+import org.jruby.runtime.DynamicScope;
+import org.jruby.runtime.ThreadContext;
+import org.jruby.runtime.builtin.IRubyObject;
+
+/**
+ * State of a thread captured by a snapshot breakpoint, which lets the
+ * thread go on instead of stopping it. Holds plain Java strings only, with
+ * a bounded number of described locals of the top frames, so it neither
+ * keeps Ruby objects alive nor takes unbounded memory.
+ */
+final class BreakpointSnapshot {
+
+    /** Frames whose locals are captured, counted from the top one. */
+    static final int LOCALS_DEPTH = 3;
+
+    /** Locals captured per frame at most. */
+    static final int MAX_LOCALS = 32;
+
+    /** Length of a captured String value at most. */
+    static final int VALUE_LIMIT = 128;
+
+    private final int breakpointId;
+    private final int thnum;
+    private final long time;
+    private final String file;
+    private final int line;
+    private final String[] frameFiles;
+    private final int[] frameLines;
+    private final String[] frameMethods;
+    private final List<Map<String, String>> frameLocals;
+
+    BreakpointSnapshot(final int breakpointId, final DebugContext debugContext, final String file, final int line) {
+        this.breakpointId = breakpointId;
+        this.thnum = debugContext.getThnum();
+        this.time = System.currentTimeMillis();
+        this.file = file;
+        this.line = line;
+        DebugFrame[] frames = debugContext.getFramesSnapshot();
+        frameFiles = new String[frames.length];
+        frameLines = new int[frames.length];
+        frameMethods = new String[frames.length];
+        frameLocals = new ArrayList<Map<String, String>>(Math.min(frames.length, LOCALS_DEPTH));
+        for (int i = 0; i < frames.length; i++) {
+            frameFiles[i] = frames[i].getFile();
+            frameLines[i] = frames[i].getLine();
+            frameMethods[i] = frames[i].getMethodName();
+            if (i < LOCALS_DEPTH) {
+                frameLocals.add(captureLocals(frames[i]));
+            }
+        }
+    }
+
+    private static Map<String, String> captureLocals(final DebugFrame frame) {
+        Map<String, String> locals = new LinkedHashMap<String, String>();
+        for (DynamicScope scope = frame.getInfo().getDynaVars();
+                scope != null && locals.size() < MAX_LOCALS; scope = scope.getNextCapturedScope()) {
+            String[] names = scope.getStaticScope().getVariables();
+            IRubyObject[] values = scope.getValues();
+            if (names == null) {
+                continue;
+            }
+            for (int i = 0; i < names.length && i < values.length && locals.size() < MAX_LOCALS; i++) {
+                // inner scopes come first and shadow outer ones
+                if (!locals.containsKey(names[i])) {
+                    locals.put(names[i], Util.describeValue(values[i], VALUE_LIMIT));
+                }
+            }
+        }
+        return Collections.unmodifiableMap(locals);
+    }
+
+    int getBreakpointId() {
+        return breakpointId;
+    }
+
+    int getThnum() {
+        return thnum;
+    }
+
+    /** @return capture time in milliseconds since the epoch */
+    long getTime() {
+        return time;
+    }
+
+    String getFile() {
+        return file;
+    }
+
+    int getLine() {
+        return line;
+    }
+
+    /** @return number of frames, top frame has index 0 */
+    int getFrameCount() {
+        return frameFiles.length;
+    }
+
+    String getFrameFile(int frame) {
+        return frameFiles[frame];
+    }
+
+    int getFrameLine(int frame) {
+        return frameLines[frame];
+    }
+
+    String getFrameMethod(int frame) {
+        return frameMethods[frame];
+    }
+
+    /** @return described locals of the frame, <tt>null</tt> if not captured */
+    Map<String, String> getFrameLocals(int frame) {
+        return frame < frameLocals.size() ? frameLocals.get(frame) : null;
+    }
+
+    /** Renders the snapshot like {@link #writeJson}, with Symbol keys. */
+    RubyHash toHash(final Ruby runtime) {
+        ThreadContext tCtx = runtime.getCurrentContext();
+        RubyArray frames = runtime.newArray();
+        for (int i = 0; i < getFrameCount(); i++) {
+            RubyHash frame = RubyHash.newHash(runtime);
+            frame.op_aset(tCtx, runtime.newSymbol("file"), newString(runtime, frameFiles[i]));
+            frame.op_aset(tCtx, runtime.newSymbol("line"), runtime.newFixnum(frameLines[i]));
+            frame.op_aset(tCtx, runtime.newSymbol("method"), newString(runtime, frameMethods[i]));
+            Map<String, String> locals = getFrameLocals(i);
+            if (locals != null) {
+                RubyHash rLocals = RubyHash.newHash(runtime);
+                for (Map.Entry<String, String> local : locals.entrySet()) {
+                    rLocals.op_aset(tCtx, runtime.newString(local.getKey()), runtime.newString(local.getValue()));
+                }
+                frame.op_aset(tCtx, runtime.newSymbol("locals"), rLocals);
+            }
+            frames.append(frame);
+        }
+        RubyHash result = RubyHash.newHash(runtime);
+        result.op_aset(tCtx, runtime.newSymbol("breakpoint"), runtime.newFixnum(breakpointId));
+        result.op_aset(tCtx, runtime.newSymbol("thnum"), runtime.newFixnum(thnum));
+        result.op_aset(tCtx, runtime.newSymbol("time"), runtime.newFixnum(time));
+        result.op_aset(tCtx, runtime.newSymbol("file"), newString(runtime, file));
+        result.op_aset(tCtx, runtime.newSymbol("line"), runtime.newFixnum(line));
+        result.op_aset(tCtx, runtime.newSymbol("frames"), frames);
+        return result;
+    }
+
+    private static IRubyObject newString(final Ruby runtime, final String value) {
+        return value == null ? runtime.getNil() : runtime.newString(value);
+    }
+
+    void writeJson(final JsonWriter json) {
+        json.beginObject();
+        json.name("breakpoint").value(breakpointId);
+        json.name("thnum").value(thnum);
+        json.name("time").value(time);
+        json.name("file").value(file);
+        json.name("line").value(line);
+        json.name("frames").beginArray();
+        for (int i = 0; i < getFrameCount(); i++) {
+            json.beginObject();
+            json.name("file").value(frameFiles[i]);
+            json.name("line").value(frameLines[i]);
+            json.name("method").value(frameMethods[i]);
+            Map<String, String> locals = getFrameLocals(i);
+            if (locals != null) {
+                json.name("locals").beginObject();
+                for (Map.Entry<String, String> local : locals.entrySet()) {
+                    json.name(local.getKey()).value(local.getValue());
+                }
+                json.endObject();
+            }
+            json.endObject();
+        }
+        json.endArray();
+        json.endObject();
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * header & license
+ * Copyright (c) 2008 debug-commons team
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.jruby.debug;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters telling how much a breakpoint costs: how often its position
+ * matched, how often and how long its condition was evaluated, how often
+ * the condition failed and how often the breakpoint really stopped a
+ * thread. Updated from any debugged thread without locking.
+ * <p>
+ * Condition times are kept in a histogram with power of two buckets; bucket
+ * <tt>i</tt> counts evaluations taking less than <tt>2^i</tt> microseconds,
+ * the last one all slower evaluations.
+ */
+final class BreakpointStats {
+
+    static final int BUCKETS = 20;
+
+    private final AtomicLong matches = new AtomicLong();
+    private final AtomicLong conditionEvaluations = new AtomicLong();
+    private final AtomicLong conditionNanos = new AtomicLong();
+    private final AtomicLong conditionErrors = new AtomicLong();
+    private final AtomicLong stops = new AtomicLong();
+    private final AtomicLongArray conditionTimes = new AtomicLongArray(BUCKETS);
+    private volatile String lastConditionError;
+
+    void matched() {
+        matches.incrementAndGet();
+    }
+
+    void conditionEvaluated(final long nanos) {
+        conditionEvaluations.incrementAndGet();
+        conditionNanos.addAndGet(nanos);
+        conditionTimes.incrementAndGet(bucketOf(nanos));
+    }
+
+    void conditionFailed(final String message) {
+        conditionErrors.incrementAndGet();
+        lastConditionError = message;
+    }
+
+    void stopped() {
+        stops.incrementAndGet();
+    }
+
+    long getMatches() {
+        return matches.get();
+    }
+
+    long getConditionEvaluations() {
+        return conditionEvaluations.get();
+    }
+
+    long getConditionNanos() {
+        return conditionNanos.get();
+    }
+
+    long getConditionErrors() {
+        return conditionErrors.get();
+    }
+
+    /** @return message of the last failed condition, <tt>null</tt> if none failed */
+    String getLastConditionError() {
+        return lastConditionError;
+    }
+
+    long getStops() {
+        return stops.get();
+    }
+
+    /** @return evaluations counted in the given bucket */
+    long getConditionTimes(final int bucket) {
+        return conditionTimes.get(bucket);
+    }
+
+    /** @return upper limit of the bucket in microseconds, -1 for the last one */
+    static long getBucketLimit(final int bucket) {
+        return bucket == BUCKETS - 1 ? -1 : 1L << bucket;
+    }
+
+    static int bucketOf(final long nanos) {
+        long micros = nanos / 1000;
+        // the number of bits needed for micros is the first bucket whose limit is greater
+        int bucket = 64 - Long.numberOfLeadingZeros(micros);
+        return Math.min(bucket, BUCKETS - 1);
+    }
+
+    void reset() {
+        matches.set(0);
+        conditionEvaluations.set(0);
+        conditionNanos.set(0);
+        conditionErrors.set(0);
+        stops.set(0);
+        for (int i = 0; i < BUCKETS; i++) {
+            conditionTimes.set(i, 0);
+        }
+        lastConditionError = null;
+    }
+}
@@ -0,0 +1,445 @@
+/*
+ * header & license
+ * Copyright (c) 2008 debug-commons team
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.jruby.debug;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jruby.RubyModule;
+import org.jruby.RubyThread;
+import org.jruby.runtime.builtin.IRubyObject;
+
+/**
+ * Timeline of Ruby method calls in the Chrome trace event format, which
+ * chrome://tracing and Perfetto open. Each thread records begin and end
+ * events with nanosecond timestamps into its own chunk of primitive arrays;
+ * full chunks are handed to a writer thread which streams them to the file,
+ * so a long capture keeps only a few chunks on the heap. Events are dropped,
+ * and counted, when the writer falls behind by more than
+ * {@link #QUEUE_CHUNKS} chunks; returns of calls written earlier are kept
+ * then, and returns of dropped calls skipped.
+ * <p>
+ * Recording can be restricted to one thread and to a time window starting
+ * with the trace. Returns of calls made before the trace started are not
+ * written, and calls still running at the end of the window or when the
+ * trace is finished get an end event at that time, so begin and end events
+ * always match up.
+ */
+final class CallTrace {
+
+    /** Events per chunk. */
+    static final int CHUNK_SIZE = 4096;
+
+    /** Full chunks waiting for the writer at most. */
+    static final int QUEUE_CHUNKS = 64;
+
+    private static final Chunk END = new Chunk(0);
+
+    private final Writer out;
+    private final RubyThread thread;
+    private final long start;
+    private final long window;
+    private final BlockingQueue<Chunk> queue = new ArrayBlockingQueue<Chunk>(QUEUE_CHUNKS);
+    private final BlockingQueue<Chunk> free = new ArrayBlockingQueue<Chunk>(QUEUE_CHUNKS);
+    private final List<Recorder> recorders = new CopyOnWriteArrayList<Recorder>();
+    private final AtomicLong dropped = new AtomicLong();
+    private final Thread writer;
+    private volatile boolean active = true;
+
+    // written by the writer thread, read after it finished
+    private volatile long written;
+    private IOException failure;
+
+    /**
+     * @param thread the only thread recorded, or <tt>null</tt> for all
+     * @param window nanoseconds to record for, or <tt>0</tt> until finished
+     */
+    CallTrace(final Writer out, final RubyThread thread, final long window) {
+        this.out = out;
+        this.thread = thread;
+        this.window = window;
+        this.start = System.nanoTime();
+        this.writer = new Thread("Debugger::CallTrace") {
+            @Override
+            public void run() {
+                writeAll();
+            }
+        };
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    static CallTrace open(final File file, final RubyThread thread, final long window) throws IOException {
+        return new CallTrace(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8")),
+                thread, window);
+    }
+
+    /** Records a call or return event of a Ruby method. */
+    void record(final DebugContext debugContext, final boolean call, final String file, final int line,
+            final String methodName, final IRubyObject klass) {
+        if (!active || (thread != null && debugContext.getThread() != thread)) {
+            return;
+        }
+        long time = System.nanoTime() - start;
+        if (window > 0 && time > window) {
+            return;
+        }
+        Recorder recorder = debugContext.getCallTraceRecorder();
+        if (recorder == null || recorder.trace != this) {
+            recorder = new Recorder(this, debugContext);
+            recorders.add(recorder);
+            debugContext.setCallTraceRecorder(recorder);
+        }
+        recorder.add(call, time, file, line, methodName, klass);
+    }
+
+    /** Number of events dropped because the writer fell behind. */
+    long getDropped() {
+        return dropped.get();
+    }
+
+    /** Number of events written, complete once {@link #finish finished}. */
+    long getWritten() {
+        return written;
+    }
+
+    /**
+     * Stops recording, writes the events still held by the threads and
+     * closes the file.
+     */
+    void finish() throws IOException {
+        active = false;
+        long end = System.nanoTime() - start;
+        if (window > 0 && end > window) {
+            end = window;
+        }
+        boolean interrupted = false;
+        List<Chunk> rest = new ArrayList<Chunk>();
+        for (Recorder recorder : recorders) {
+            recorder.close(end, rest);
+        }
+        for (Chunk chunk : rest) {
+            interrupted |= put(chunk);
+        }
+        interrupted |= put(END);
+        while (true) {
+            try {
+                writer.join();
+                break;
+            } catch (InterruptedException ie) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Waits for room in the queue, which the writer keeps draining.
+     *
+     * @return whether the current thread was interrupted meanwhile
+     */
+    private boolean put(final Chunk chunk) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                queue.put(chunk);
+                return interrupted;
+            } catch (InterruptedException ie) {
+                interrupted = true;
+            }
+        }
+    }
+
+    /** Hands a full chunk to the writer unless it is too far behind. */
+    private boolean offer(final Chunk chunk) {
+        return queue.offer(chunk);
+    }
+
+    private Chunk newChunk() {
+        Chunk chunk = free.poll();
+        return chunk != null ? chunk : new Chunk(CHUNK_SIZE);
+    }
+
+    private void writeAll() {
+        JsonWriter json = new JsonWriter();
+        Set<Integer> namedThreads = new HashSet<Integer>();
+        try {
+            out.write("{\"displayTimeUnit\":\"ns\",\"traceEvents\":");
+            json.beginArray();
+            json.beginObject().name("name").value("process_name").name("ph").value("M").name("pid").value(1);
+            json.name("args").beginObject().name("name").value("JRuby").endObject().endObject();
+        } catch (IOException ioe) {
+            failure = ioe;
+        }
+        while (true) {
+            Chunk chunk;
+            try {
+                chunk = queue.take();
+            } catch (InterruptedException ie) {
+                continue;
+            }
+            if (chunk == END) {
+                break;
+            }
+            if (failure == null) {
+                try {
+                    if (namedThreads.add(chunk.tid)) {
+                        json.beginObject().name("name").value("thread_name").name("ph").value("M");
+                        json.name("pid").value(1).name("tid").value(chunk.tid);
+                        json.name("args").beginObject().name("name").value(chunk.threadName).endObject().endObject();
+                    }
+                    writeChunk(json, chunk);
+                    written += chunk.size;
+                } catch (IOException ioe) {
+                    failure = ioe;
+                }
+            }
+            chunk.clear();
+            free.offer(chunk);
+        }
+        try {
+            json.endArray();
+            out.write(json.getBuffer().toString());
+            out.write("}\n");
+            out.close();
+        } catch (IOException ioe) {
+            if (failure == null) {
+                failure = ioe;
+            }
+        }
+    }
+
+    private void writeChunk(final JsonWriter json, final Chunk chunk) throws IOException {
+        StringBuilder buffer = json.getBuffer();
+        for (int i = 0; i < chunk.size; i++) {
+            json.beginObject();
+            if (chunk.calls[i]) {
+                IRubyObject klass = chunk.classes[i];
+                String className = klass instanceof RubyModule ? ((RubyModule) klass).getName() : "?";
+                json.name("name").value(className + "#" + chunk.methods[i]);
+                json.name("ph").value("B");
+            } else {
+                json.name("ph").value("E");
+            }
+            json.name("ts").milliValue(chunk.times[i]);
+            json.name("pid").value(1).name("tid").value(chunk.tid);
+            if (chunk.calls[i]) {
+                json.name("args").beginObject();
+                json.name("file").value(chunk.files[i]).name("line").value(chunk.lines[i]);
+                json.endObject();
+            }
+            json.endObject();
+            if (buffer.length() >= 8192) {
+                out.write(buffer.toString());
+                buffer.setLength(0);
+            }
+        }
+        out.write(buffer.toString());
+        buffer.setLength(0);
+    }
+
+    /**
+     * Events of one thread not yet handed to the writer. Only the owning
+     * thread adds to it, so its lock is contended only while the trace is
+     * being finished.
+     */
+    static final class Recorder {
+
+        final CallTrace trace;
+        private final int tid;
+        private final String threadName;
+        private Chunk chunk;
+        /** Calls entered since the trace started and not returned yet. */
+        private int depth;
+        /** Calls of {@link #depth} whose begin event was not dropped. */
+        private int open;
+        /** {@link #open} when the current chunk was started. */
+        private int chunkOpen;
+        /** Depths of running calls whose begin event was dropped. */
+        private final BitSet droppedCalls = new BitSet();
+        private boolean closed;
+
+        Recorder(final CallTrace trace, final DebugContext debugContext) {
+            this.trace = trace;
+            this.tid = debugContext.getThnum();
+            Thread nativeThread = debugContext.getThread() == null ? null : debugContext.getThread().getNativeThread();
+            this.threadName = nativeThread == null ? "thread " + tid : nativeThread.getName();
+        }
+
+        synchronized void add(final boolean call, final long time, final String file, final int line,
+                final String methodName, final IRubyObject klass) {
+            if (closed) {
+                return;
+            }
+            if (call) {
+                depth++;
+                open++;
+            } else if (depth == 0) {
+                return; // entered before the trace started
+            } else if (droppedCalls.get(depth)) {
+                droppedCalls.clear(depth--);
+                return;
+            } else {
+                depth--;
+                open--;
+            }
+            append(call, time, file, line, methodName, klass);
+            if (chunk.size == chunk.times.length) {
+                if (trace.offer(chunk)) {
+                    chunk = null;
+                } else {
+                    drop();
+                }
+            }
+        }
+
+        private void append(final boolean call, final long time, final String file, final int line,
+                final String methodName, final IRubyObject klass) {
+            if (chunk == null) {
+                chunk = trace.newChunk();
+                chunk.tid = tid;
+                chunk.threadName = threadName;
+                chunkOpen = call ? open - 1 : open + 1;
+            }
+            int i = chunk.size++;
+            chunk.calls[i] = call;
+            chunk.times[i] = time;
+            if (call) {
+                chunk.files[i] = file;
+                chunk.lines[i] = line;
+                chunk.methods[i] = methodName;
+                chunk.classes[i] = klass;
+            }
+        }
+
+        /**
+         * Empties the full chunk the writer had no room for, except for
+         * returns of calls written with earlier chunks. Calls of the chunk
+         * still running are remembered so their returns are skipped.
+         */
+        private void drop() {
+            int d = chunkOpen;
+            int low = chunkOpen;
+            int kept = 0;
+            for (int i = 0; i < chunk.size; i++) {
+                if (chunk.calls[i]) {
+                    d++;
+                } else {
+                    if (d == low) {
+                        chunk.calls[kept] = false;
+                        chunk.times[kept++] = chunk.times[i];
+                        low--;
+                    }
+                    d--;
+                }
+            }
+            // d == open; the innermost d - low calls began in this chunk
+            droppedCalls.set(depth - (d - low) + 1, depth + 1);
+            open = low;
+            trace.dropped.addAndGet(chunk.size - kept);
+            for (int i = kept; i < chunk.size; i++) {
+                chunk.files[i] = null;
+                chunk.methods[i] = null;
+                chunk.classes[i] = null;
+            }
+            chunk.size = kept;
+            if (kept == chunk.times.length) {
+                // only returns, nothing to drop; wait for the writer to catch up
+                if (trace.put(chunk)) {
+                    Thread.currentThread().interrupt();
+                }
+                chunk = null;
+            }
+        }
+
+        /**
+         * Stops recording, ending the calls still running at the given time.
+         * Adds the events not yet handed to the writer to <tt>rest</tt>.
+         */
+        synchronized void close(final long end, final List<Chunk> rest) {
+            closed = true;
+            while (open > 0) {
+                open--;
+                append(false, end, null, 0, null, null);
+                if (chunk.size == chunk.times.length) {
+                    rest.add(chunk);
+                    chunk = null;
+                }
+            }
+            if (chunk != null && chunk.size > 0) {
+                rest.add(chunk);
+            }
+            chunk = null;
+        }
+    }
+
+    private static final class Chunk {
+
+        int tid;
+        String threadName;
+        int size;
+        final boolean[] calls;
+        final long[] times;
+        final String[] files;
+        final int[] lines;
+        final String[] methods;
+        final IRubyObject[] classes;
+
+        Chunk(final int capacity) {
+            calls = new boolean[capacity];
+            times = new long[capacity];
+            files = new String[capacity];
+            lines = new int[capacity];
+            methods = new String[capacity];
+            classes = new IRubyObject[capacity];
+        }
+
+        void clear() {
+            for (int i = 0; i < size; i++) {
+                files[i] = null;
+                methods[i] = null;
+                classes[i] = null;
+            }
+            size = 0;
+        }
+    }
+}
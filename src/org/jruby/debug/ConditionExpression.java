@@ -0,0 +1,516 @@
+/*
+ * header & license
+ * Copyright (c) 2008 debug-commons team
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.jruby.debug;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.jruby.Ruby;
+import org.jruby.RubyBoolean;
+import org.jruby.RubyFixnum;
+import org.jruby.RubyFloat;
+import org.jruby.RubyNil;
+import org.jruby.RubyString;
+import org.jruby.RubySymbol;
+import org.jruby.exceptions.RaiseException;
+import org.jruby.parser.StaticScope;
+import org.jruby.runtime.DynamicScope;
+import org.jruby.runtime.ThreadContext;
+import org.jruby.runtime.builtin.IRubyObject;
+
+/**
+ * Breakpoint condition evaluated in Java, without a binding or Ruby eval.
+ * Understands a subset of Ruby which covers most conditions:
+ * <pre>
+ *   condition  := or
+ *   or         := and ('||' and)*
+ *   and        := not ('&amp;&amp;' not)*
+ *   not        := '!' not | comparison
+ *   comparison := operand (('==' | '!=' | '&lt;' | '&lt;=' | '&gt;' | '&gt;=') operand)?
+ *   operand    := primary ('.nil?')?
+ *   primary    := local | @ivar | integer | float | 'string' | :symbol
+ *               | nil | true | false | '(' condition ')'
+ * </pre>
+ * Numbers are compared directly; other values by identity where Ruby does
+ * so, or by calling the operator method. A name which is not a local
+ * variable of the scope might be a method call, so such conditions are
+ * left to Ruby eval.
+ */
+final class ConditionExpression {
+
+    private final String source;
+    private final Node root;
+
+    private ConditionExpression(final String source, final Node root) {
+        this.source = source;
+        this.root = root;
+    }
+
+    /**
+     * @return compiled condition or <tt>null</tt> if it is not in the
+     *         supported subset and has to be evaluated by Ruby
+     */
+    static ConditionExpression parse(final String source) {
+        try {
+            Parser parser = new Parser(tokenize(source));
+            Node root = parser.or();
+            if (!parser.atEnd()) {
+                return null;
+            }
+            return new ConditionExpression(source, root);
+        } catch (Unsupported unsupported) {
+            return null;
+        }
+    }
+
+    /**
+     * @param scope scope of local variables
+     * @param self receiver of instance variables
+     * @return whether the condition holds, or <tt>null</tt> if it has to be
+     *         evaluated by Ruby after all
+     * @throws RaiseException raised by a comparison, as by a failed eval
+     */
+    Boolean evaluate(final ThreadContext tCtx, final DynamicScope scope, final IRubyObject self) {
+        IRubyObject result = root.eval(tCtx, scope, self);
+        return result == null ? null : Boolean.valueOf(result.isTrue());
+    }
+
+    @Override
+    public String toString() {
+        return source;
+    }
+
+    /** The condition is outside the supported subset; Ruby has to evaluate it. */
+    private static final class Unsupported extends Exception {
+
+        private static final long serialVersionUID = 1L;
+
+        Unsupported(String message) {
+            super(message, null, false, false); // control flow, no stack trace
+        }
+    }
+
+    /** Node of the condition; <tt>eval</tt> returns <tt>null</tt> for unknown values. */
+    private abstract static class Node {
+        abstract IRubyObject eval(ThreadContext tCtx, DynamicScope scope, IRubyObject self);
+    }
+
+    private static final class Literal extends Node {
+        private final char kind;
+        private final String text;
+        private IRubyObject value;
+
+        Literal(char kind, String text) {
+            this.kind = kind;
+            this.text = text;
+        }
+
+        IRubyObject eval(ThreadContext tCtx, DynamicScope scope, IRubyObject self) {
+            if (value == null) {
+                // conditions belong to one debugger and so to one runtime
+                Ruby runtime = tCtx.getRuntime();
+                switch (kind) {
+                    case 'i': value = runtime.newFixnum(Long.parseLong(text)); break;
+                    case 'f': value = runtime.newFloat(Double.parseDouble(text)); break;
+                    case 's': value = runtime.newString(text); break;
+                    case ':': value = runtime.newSymbol(text); break;
+                    case 't': value = runtime.getTrue(); break;
+                    case 'F': value = runtime.getFalse(); break;
+                    default: value = runtime.getNil(); break;
+                }
+            }
+            return value;
+        }
+    }
+
+    private static final class LocalVariable extends Node {
+        private final String name;
+        private StaticScope lastScope;
+        private int lastLocation;
+
+        LocalVariable(String name) {
+            this.name = name;
+        }
+
+        IRubyObject eval(ThreadContext tCtx, DynamicScope scope, IRubyObject self) {
+            if (scope == null) {
+                return null;
+            }
+            StaticScope staticScope = scope.getStaticScope();
+            if (staticScope != lastScope) {
+                lastLocation = staticScope.isDefined(name);
+                lastScope = staticScope;
+            }
+            if (lastLocation < 0) {
+                return null; // a method call, probably
+            }
+            IRubyObject value = scope.getValue(lastLocation & 0xffff, lastLocation >> 16);
+            return value == null ? tCtx.getRuntime().getNil() : value;
+        }
+    }
+
+    private static final class InstanceVariable extends Node {
+        private final String name;
+
+        InstanceVariable(String name) {
+            this.name = name;
+        }
+
+        IRubyObject eval(ThreadContext tCtx, DynamicScope scope, IRubyObject self) {
+            if (self == null) {
+                return null;
+            }
+            IRubyObject value = self.getInstanceVariables().getInstanceVariable(name);
+            return value == null ? tCtx.getRuntime().getNil() : value;
+        }
+    }
+
+    private static final class NilP extends Node {
+        private final Node operand;
+
+        NilP(Node operand) {
+            this.operand = operand;
+        }
+
+        IRubyObject eval(ThreadContext tCtx, DynamicScope scope, IRubyObject self) {
+            IRubyObject value = operand.eval(tCtx, scope, self);
+            return value == null ? null : tCtx.getRuntime().newBoolean(value.isNil());
+        }
+    }
+
+    private static final class Not extends Node {
+        private final Node operand;
+
+        Not(Node operand) {
+            this.operand = operand;
+        }
+
+        IRubyObject eval(ThreadContext tCtx, DynamicScope scope, IRubyObject self) {
+            IRubyObject value = operand.eval(tCtx, scope, self);
+            return value == null ? null : tCtx.getRuntime().newBoolean(!value.isTrue());
+        }
+    }
+
+    private static final class Logical extends Node {
+        private final boolean and;
+        private final Node left;
+        private final Node right;
+
+        Logical(boolean and, Node left, Node right) {
+            this.and = and;
+            this.left = left;
+            this.right = right;
+        }
+
+        IRubyObject eval(ThreadContext tCtx, DynamicScope scope, IRubyObject self) {
+            IRubyObject value = left.eval(tCtx, scope, self);
+            if (value == null || value.isTrue() != and) {
+                return value;
+            }
+            return right.eval(tCtx, scope, self);
+        }
+    }
+
+    private static final class Comparison extends Node {
+        private final String operator;
+        private final Node left;
+        private final Node right;
+
+        Comparison(String operator, Node left, Node right) {
+            this.operator = operator;
+            this.left = left;
+            this.right = right;
+        }
+
+        IRubyObject eval(ThreadContext tCtx, DynamicScope scope, IRubyObject self) {
+            IRubyObject l = left.eval(tCtx, scope, self);
+            if (l == null) {
+                return null;
+            }
+            IRubyObject r = right.eval(tCtx, scope, self);
+            if (r == null) {
+                return null;
+            }
+            Ruby runtime = tCtx.getRuntime();
+            if (l instanceof RubyFixnum && r instanceof RubyFixnum) {
+                long a = ((RubyFixnum) l).getLongValue();
+                long b = ((RubyFixnum) r).getLongValue();
+                return runtime.newBoolean(compare(a < b ? -1 : (a == b ? 0 : 1)));
+            }
+            if (isNumber(l) && isNumber(r)) {
+                double a = toDouble(l);
+                double b = toDouble(r);
+                if (Double.isNaN(a) || Double.isNaN(b)) {
+                    return runtime.newBoolean("!=".equals(operator));
+                }
+                return runtime.newBoolean(compare(a < b ? -1 : (a == b ? 0 : 1)));
+            }
+            boolean equality = "==".equals(operator) || "!=".equals(operator);
+            if (equality && (isIdentityCompared(l) || isIdentityCompared(r))) {
+                return runtime.newBoolean((l == r) == "==".equals(operator));
+            }
+            if (equality && l instanceof RubyString && r instanceof RubyString) {
+                boolean same = ((RubyString) l).getByteList().equals(((RubyString) r).getByteList());
+                return runtime.newBoolean(same == "==".equals(operator));
+            }
+            return l.callMethod(tCtx, operator, r);
+        }
+
+        private boolean compare(int order) {
+            if ("==".equals(operator)) return order == 0;
+            if ("!=".equals(operator)) return order != 0;
+            if ("<".equals(operator)) return order < 0;
+            if ("<=".equals(operator)) return order <= 0;
+            if (">".equals(operator)) return order > 0;
+            return order >= 0;
+        }
+
+        private static boolean isNumber(IRubyObject value) {
+            return value instanceof RubyFixnum || value instanceof RubyFloat;
+        }
+
+        private static double toDouble(IRubyObject value) {
+            return value instanceof RubyFixnum ? ((RubyFixnum) value).getLongValue() : ((RubyFloat) value).getDoubleValue();
+        }
+
+        /** Objects whose == is identity, unless somebody redefined it. */
+        private static boolean isIdentityCompared(IRubyObject value) {
+            return value instanceof RubyNil || value instanceof RubyBoolean || value instanceof RubySymbol;
+        }
+    }
+
+    // ------------------------------------------------------------------ parsing
+
+    /** Tokens after which a '-' starts a negative number. */
+    private static final List<String> OPERATORS = Arrays.asList("==", "!=", "<", "<=", ">", ">=", "&&", "||", "!", "(");
+
+    private static List<String> tokenize(final String source) throws Unsupported {
+        List<String> tokens = new ArrayList<String>();
+        int i = 0;
+        int length = source.length();
+        while (i < length) {
+            char c = source.charAt(i);
+            if (Character.isWhitespace(c)) {
+                i++;
+            } else if (Character.isLetter(c) || c == '_' || c == '@' || c == ':') {
+                int start = i++;
+                if (c == '@' && i < length && source.charAt(i) == '@') {
+                    throw new Unsupported("class variable");
+                }
+                while (i < length && (Character.isLetterOrDigit(source.charAt(i)) || source.charAt(i) == '_')) {
+                    i++;
+                }
+                if (i < length && (source.charAt(i) == '?' || source.charAt(i) == '!') && c != '@') {
+                    i++; // predicate or bang method name
+                }
+                if (i - start == 1 && !Character.isLetter(c) && c != '_') {
+                    throw new Unsupported(source);
+                }
+                tokens.add(source.substring(start, i));
+            } else if (Character.isDigit(c) || (c == '-' && i + 1 < length && Character.isDigit(source.charAt(i + 1))
+                    && (tokens.isEmpty() || isOperator(tokens.get(tokens.size() - 1))))) {
+                int start = i++;
+                while (i < length && (Character.isDigit(source.charAt(i)) || source.charAt(i) == '_')) {
+                    i++;
+                }
+                if (i + 1 < length && source.charAt(i) == '.' && Character.isDigit(source.charAt(i + 1))) {
+                    i++;
+                    while (i < length && Character.isDigit(source.charAt(i))) {
+                        i++;
+                    }
+                }
+                tokens.add(source.substring(start, i).replace("_", ""));
+            } else if (c == '\'' || c == '"') {
+                StringBuilder text = new StringBuilder("'");
+                i++;
+                while (true) {
+                    if (i >= length) {
+                        throw new Unsupported("unterminated string");
+                    }
+                    char s = source.charAt(i++);
+                    if (s == c) {
+                        break;
+                    }
+                    if (s == '\\') {
+                        if (i >= length) {
+                            throw new Unsupported("unterminated string");
+                        }
+                        char escaped = source.charAt(i++);
+                        if (escaped != c && escaped != '\\') {
+                            throw new Unsupported("escape sequence");
+                        }
+                        s = escaped;
+                    } else if (c == '"' && s == '#') {
+                        throw new Unsupported("interpolation");
+                    }
+                    text.append(s);
+                }
+                tokens.add(text.toString());
+            } else {
+                String two = i + 1 < length ? source.substring(i, i + 2) : "";
+                if (two.equals("==") || two.equals("!=") || two.equals("<=") || two.equals(">=")
+                        || two.equals("&&") || two.equals("||")) {
+                    if (i + 2 < length && "=~>".indexOf(source.charAt(i + 2)) >= 0) {
+                        throw new Unsupported(source); // ===, <=>, ...
+                    }
+                    tokens.add(two);
+                    i += 2;
+                } else if ("<>!().".indexOf(c) >= 0) {
+                    tokens.add(String.valueOf(c));
+                    i++;
+                } else {
+                    throw new Unsupported(String.valueOf(c));
+                }
+            }
+        }
+        return tokens;
+    }
+
+    private static boolean isOperator(final String token) {
+        return OPERATORS.contains(token);
+    }
+
+    private static final class Parser {
+
+        private final List<String> tokens;
+        private int position;
+
+        Parser(List<String> tokens) {
+            this.tokens = tokens;
+        }
+
+        boolean atEnd() {
+            return position == tokens.size();
+        }
+
+        private String peek() {
+            return atEnd() ? null : tokens.get(position);
+        }
+
+        private String next() throws Unsupported {
+            if (atEnd()) {
+                throw new Unsupported("unexpected end");
+            }
+            return tokens.get(position++);
+        }
+
+        Node or() throws Unsupported {
+            Node node = and();
+            while ("||".equals(peek())) {
+                next();
+                node = new Logical(false, node, and());
+            }
+            return node;
+        }
+
+        Node and() throws Unsupported {
+            Node node = not();
+            while ("&&".equals(peek())) {
+                next();
+                node = new Logical(true, node, not());
+            }
+            return node;
+        }
+
+        Node not() throws Unsupported {
+            if ("!".equals(peek())) {
+                next();
+                return new Not(not());
+            }
+            return comparison();
+        }
+
+        Node comparison() throws Unsupported {
+            Node left = operand();
+            String operator = peek();
+            if ("==".equals(operator) || "!=".equals(operator) || "<".equals(operator)
+                    || "<=".equals(operator) || ">".equals(operator) || ">=".equals(operator)) {
+                next();
+                return new Comparison(operator, left, operand());
+            }
+            return left;
+        }
+
+        Node operand() throws Unsupported {
+            Node node = primary();
+            if (".".equals(peek())) {
+                next();
+                if (!"nil?".equals(next())) {
+                    throw new Unsupported("method call");
+                }
+                node = new NilP(node);
+            }
+            return node;
+        }
+
+        Node primary() throws Unsupported {
+            String token = next();
+            char first = token.charAt(0);
+            if (token.equals("(")) {
+                Node node = or();
+                if (!")".equals(next())) {
+                    throw new Unsupported("missing )");
+                }
+                return node;
+            } else if (first == '\'') {
+                return new Literal('s', token.substring(1));
+            } else if (first == ':') {
+                return new Literal(':', token.substring(1));
+            } else if (first == '@') {
+                return new InstanceVariable(token);
+            } else if (Character.isDigit(first) || first == '-') {
+                if (token.indexOf('.') >= 0) {
+                    return new Literal('f', token);
+                }
+                try {
+                    Long.parseLong(token);
+                } catch (NumberFormatException nfe) {
+                    throw new Unsupported("Bignum");
+                }
+                return new Literal('i', token);
+            } else if (token.equals("nil")) {
+                return new Literal('n', token);
+            } else if (token.equals("true")) {
+                return new Literal('t', token);
+            } else if (token.equals("false")) {
+                return new Literal('F', token);
+            } else if ((Character.isLowerCase(first) || first == '_') && isLocalName(token) && !isKeyword(token)
+                    && !"(".equals(peek())) {
+                return new LocalVariable(token);
+            }
+            throw new Unsupported(token);
+        }
+
+        private static boolean isLocalName(String token) {
+            char last = token.charAt(token.length() - 1);
+            return last != '?' && last != '!';
+        }
+
+        private static boolean isKeyword(String token) {
+            return token.equals("and") || token.equals("or") || token.equals("not") || token.equals("self")
+                    || token.equals("defined") || token.equals("if") || token.equals("unless");
+        }
+    }
+}
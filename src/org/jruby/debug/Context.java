@@ -29,18 +29,25 @@ import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import org.jruby.Ruby;
 import org.jruby.RubyArray;
+import org.jruby.RubyBoolean;
 import org.jruby.RubyClass;
+import org.jruby.RubyFile;
 import org.jruby.RubyFixnum;
+import org.jruby.RubyFloat;
 import org.jruby.RubyHash;
+import org.jruby.RubyModule;
+import org.jruby.RubyNil;
 import org.jruby.RubyNumeric;
 import org.jruby.RubyObject;
 import org.jruby.RubyString;
+import org.jruby.RubySymbol;
 import org.jruby.anno.JRubyMethod;
 import org.jruby.parser.StaticScope;
 import org.jruby.runtime.Arity;
 import org.jruby.runtime.Block;
 import org.jruby.runtime.DynamicScope;
 import org.jruby.runtime.Signature;
+import org.jruby.runtime.ThreadContext;
 import org.jruby.runtime.builtin.IRubyObject;
 
 public class Context extends RubyObject {
@@ -230,6 +237,25 @@ public class Context extends RubyObject {
         return tracing;
     }
 
+    @JRubyMethod(name="tracked?")
+    public IRubyObject tracked_p(Block block) {
+        checkStarted();
+        return getRuntime().newBoolean(debugger.isTracked(debugContext().getThread()));
+    }
+
+    /**
+     * Adds the thread to or removes it from Debugger.track_threads.
+     * Untracking a thread while all threads are tracked keeps tracking all
+     * other threads, including those started later; Debugger.track_threads
+     * stays +nil+ then.
+     */
+    @JRubyMethod(name="tracked=", required=1)
+    public IRubyObject tracked_set(IRubyObject tracked, Block block) {
+        checkStarted();
+        debugger.setTracked(debugContext().getThread(), tracked.isTrue());
+        return tracked;
+    }
+
     @JRubyMethod(name="ignored?")
     public IRubyObject ignored_p(Block block) {
         checkStarted();
@@ -260,10 +286,18 @@ public class Context extends RubyObject {
         return methodName == null ? getRuntime().getNil() : getRuntime().newSymbol(methodName);
     }
     
+    /**
+     * Argument values of the frame as they are now, i.e. when the thread
+     * stopped, not when the method was called: an argument reassigned in
+     * the method body shows its new value. Read again on every call, as the
+     * thread may have run between two stops.
+     */
     @JRubyMethod(name="frame_args_info", optional=1)
     public IRubyObject frame_args_info(IRubyObject[] args, Block block) {
         checkStarted();
-        return getFrame(args).getArgValues();
+        DebugFrame debugFrame = getFrame(args);
+        IRubyObject argValues = debugFrame.getArgValues();
+        return argValues == null ? contextArgValues(debugFrame) : argValues;
     }
 
     @JRubyMethod(name="frame_line", optional=1)
@@ -332,7 +366,7 @@ public class Context extends RubyObject {
      * <p>
      * Sets a context-specific temporary breakpoint, which can be used to implement
      * 'Run to Cursor' debugger function. When this breakpoint is reached, it will be
-     * cleared out.
+     * cleared out. Replaces all temporary breakpoints of the context.
      * </p>
      * <p>
      * <i>source</i> is a name of a file or a class.<br/>
@@ -350,6 +384,183 @@ public class Context extends RubyObject {
         return breakpoint;
     }
 
+    /**
+     * <pre>
+     * call-seq:
+     *    context.add_breakpoint(source, pos, condition = nil) -> breakpoint
+     * </pre>
+     * <p>
+     * Adds a context-specific temporary breakpoint, keeping the ones set
+     * before. When any of them is reached, all are cleared out. Arguments
+     * are the same as for <tt>set_breakpoint</tt>.
+     * </p>
+     */
+    @JRubyMethod(name="add_breakpoint", required=2, optional=1)
+    public IRubyObject add_breakpoint(IRubyObject[] args, Block block) {
+        checkStarted();
+        
+        IRubyObject breakpoint = debugger.createBreakpointFromArgs(this, args, 0);
+        debugContext().addBreakpoint(breakpoint);
+        
+        return breakpoint;
+    }
+
+    /**
+     * <pre>
+     * call-seq:
+     *    context.add_watchpoint(name, frame = 0, condition = nil) -> breakpoint
+     * </pre>
+     * <p>
+     * Adds a breakpoint which stops at the line after the local variable
+     * <i>name</i> of the given frame has changed. The variable is looked at
+     * only while that frame, or a block within it, runs.
+     * </p>
+     */
+    @JRubyMethod(name="add_watchpoint", required=1, optional=2)
+    public IRubyObject add_watchpoint(IRubyObject[] args, Block block) {
+        checkStarted();
+        Ruby rt = getRuntime();
+        String name = args[0].asJavaString();
+        DebugFrame frame = getFrame(args.length > 1 ? args[1] : rt.newFixnum(0));
+        DynamicScope scope = frame.getInfo().getDynaVars();
+        if (scope == null) {
+            throw rt.newArgumentError("No local variables available in the frame.");
+        }
+        int location = scope.getStaticScope().isDefined(name);
+        if (location < 0) {
+            throw rt.newArgumentError("Unknown local variable: " + name);
+        }
+        // depth of the defining scope in the upper half, slot in the lower one
+        for (int depth = location >> 16; depth > 0 && scope != null; depth--) {
+            scope = scope.getNextCapturedScope();
+        }
+        if (scope == null) {
+            throw rt.newArgumentError("Unknown local variable: " + name);
+        }
+        DebugBreakpoint.Watch watch = DebugBreakpoint.Watch.local(name, scope, location & 0xffff);
+        IRubyObject expr = args.length > 2 ? args[2] : rt.getNil();
+        return debugger.addWatchpoint(rt, rt.newString(frame.getFile()), watch, expr);
+    }
+
+    @JRubyMethod(name="breakpoints")
+    public IRubyObject breakpoints(Block block) {
+        checkStarted();
+        
+        return RubyArray.newArray(getRuntime(), debugContext().getBreakpoints());
+    }
+
+    @JRubyMethod(name="clear_breakpoints")
+    public IRubyObject clear_breakpoints(Block block) {
+        checkStarted();
+        
+        debugContext().clearBreakpoints();
+        return getRuntime().getNil();
+    }
+
+    /**
+     * <pre>
+     * call-seq:
+     *    context.frame_limit = count_or_nil
+     * </pre>
+     * <p>
+     * Frames of this thread kept in full, overriding
+     * <tt>Debugger.frame_limit</tt>. Applied on the next call the thread
+     * makes.
+     * </p>
+     */
+    @JRubyMethod(name="frame_limit=", required=1)
+    public IRubyObject frame_limit_set(IRubyObject limit, Block block) {
+        int frameLimit = limit.isNil() ? 0 : RubyNumeric.fix2int(limit);
+        if (frameLimit < 0) {
+            throw getRuntime().newArgumentError("Frame limit can't be negative.");
+        }
+        debugContext().getFrameStack().setLimit(frameLimit);
+        return limit;
+    }
+
+    @JRubyMethod(name="frame_limit")
+    public IRubyObject frame_limit(Block block) {
+        int limit = debugContext().getFrameStack().getLimit();
+        return limit <= 0 ? getRuntime().getNil() : getRuntime().newFixnum(limit);
+    }
+
+    /**
+     * <pre>
+     * call-seq:
+     *    context.frame_memory -> hash
+     * </pre>
+     * <p>
+     * What the frames of this thread take: <tt>:frames</tt> (stack size),
+     * <tt>:stored</tt> entries, of them <tt>:full</tt> ones which might pin
+     * Ruby objects, <tt>:folded</tt> repeated frames, <tt>:dropped</tt>
+     * frames known by number only and <tt>:estimated_bytes</tt> taken by the
+     * stored entries themselves.
+     * </p>
+     */
+    @JRubyMethod(name="frame_memory")
+    public IRubyObject frame_memory(Block block) {
+        Ruby rt = getRuntime();
+        ThreadContext tCtx = rt.getCurrentContext();
+        FrameStack frames = debugContext().getFrameStack();
+        int stored = frames.getStored();
+        RubyHash result = RubyHash.newHash(rt);
+        result.op_aset(tCtx, rt.newSymbol("frames"), rt.newFixnum(frames.size()));
+        result.op_aset(tCtx, rt.newSymbol("stored"), rt.newFixnum(stored));
+        result.op_aset(tCtx, rt.newSymbol("full"), rt.newFixnum(stored - frames.getSlim()));
+        result.op_aset(tCtx, rt.newSymbol("folded"), rt.newFixnum(frames.getFolded()));
+        result.op_aset(tCtx, rt.newSymbol("dropped"), rt.newFixnum(frames.getDropped()));
+        result.op_aset(tCtx, rt.newSymbol("estimated_bytes"), rt.newFixnum(frames.getEstimatedBytes()));
+        return result;
+    }
+
+    /**
+     * <pre>
+     * call-seq:
+     *    context.history -> array
+     * </pre>
+     * <p>
+     * Last events of the thread, oldest first, when recording is turned on by
+     * <tt>Debugger.history_size=</tt>. Each is a Hash with <tt>:event</tt>,
+     * <tt>:file</tt>, <tt>:line</tt>, <tt>:depth</tt> (stack size) and
+     * <tt>:time</tt> (nanoseconds, only meaningful as a difference), and
+     * <tt>:locals</tt> with changed local variables if
+     * <tt>Debugger.history_locals?</tt>.
+     * </p>
+     */
+    @JRubyMethod(name="history")
+    public IRubyObject history(Block block) {
+        checkStarted();
+        Ruby rt = getRuntime();
+        ThreadContext tCtx = rt.getCurrentContext();
+        RubyArray result = rt.newArray();
+        ExecutionHistory history = debugContext().getHistory();
+        if (history == null) {
+            return result;
+        }
+        FileIdTable fileIds = debugger.getFileIds();
+        for (int i = 0; i < history.size(); i++) {
+            RubyHash entry = RubyHash.newHash(rt);
+            entry.op_aset(tCtx, rt.newSymbol("event"), rt.newSymbol(history.getEvent(i).getName()));
+            String file = fileIds.getFile(history.getFileId(i));
+            entry.op_aset(tCtx, rt.newSymbol("file"), file == null ? rt.getNil() : rt.newString(file));
+            entry.op_aset(tCtx, rt.newSymbol("line"), rt.newFixnum(history.getLine(i)));
+            entry.op_aset(tCtx, rt.newSymbol("depth"), rt.newFixnum(history.getDepth(i)));
+            entry.op_aset(tCtx, rt.newSymbol("time"), rt.newFixnum(history.getTime(i)));
+            if (history.isRecordLocals()) {
+                RubyHash locals = RubyHash.newHash(rt);
+                for (int j = 0; j < history.getLocalCount(i); j++) {
+                    String name = history.getLocalName(i, j);
+                    if (name != null) {
+                        locals.op_aset(tCtx, rt.newString(name), history.getLocalValue(rt, i, j));
+                    }
+                }
+                entry.op_aset(tCtx, rt.newSymbol("locals"), locals);
+            }
+            result.append(entry);
+        }
+        return result;
+    }
+
     private IRubyObject getFrameNumber(final IRubyObject[] args) {
         return args.length == 1 ? args[0] : getRuntime().newFixnum(0);
     }
@@ -404,6 +615,46 @@ public class Context extends RubyObject {
         return result;
     }
 
+    /*
+     *   Scalar argument values of a frame, class names for other values. Read
+     *   from the scope captured on the call only when asked for, so frames
+     *   which never become visible to the user cost nothing. Not cached, the
+     *   scope keeps changing while the thread runs.
+     */
+    private IRubyObject contextArgValues(final DebugFrame debugFrame) {
+        Ruby runtime = getRuntime();
+        DynamicScope scope = debugFrame.getInfo().getArgsScope();
+        Signature signature = debugFrame.getInfo().getSignature();
+        if (scope == null || signature == null) {
+            return runtime.getNil();
+        }
+        int count = signature.required() + signature.opt();
+        if (signature.hasRest()) {
+            count++;
+        }
+        count = Math.min(count, scope.getStaticScope().getNumberOfVariables());
+        RubyArray result = runtime.newArray();
+        for (int i = 0; i < count; i++) {
+            IRubyObject value = scope.getValue(i, 0);
+            if (value == null) {
+                value = runtime.getNil();
+            }
+            result.append(isArgValueSmall(value) ? value : runtime.newString(value.getType().getName()));
+        }
+        return result;
+    }
+
+    private static boolean isArgValueSmall(IRubyObject value) {
+        return value == RubyObject.UNDEF ||
+                value instanceof RubyFixnum ||
+                value instanceof RubyFloat ||
+                value instanceof RubyNil ||
+                value instanceof RubyModule ||
+                value instanceof RubyFile ||
+                value instanceof RubyBoolean ||
+                value instanceof RubySymbol;
+    }
+
     private IRubyObject contextCopyLocals(final DebugFrame debugFrame) {
         RubyHash locals = RubyHash.newHash(getRuntime());
         DynamicScope scope = debugFrame.getInfo().getDynaVars();
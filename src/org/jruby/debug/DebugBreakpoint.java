@@ -23,12 +23,21 @@
  */
 package org.jruby.debug;
 
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+import org.jruby.RubyFixnum;
+import org.jruby.RubyFloat;
+import org.jruby.RubyThread;
+import org.jruby.exceptions.RaiseException;
+import org.jruby.runtime.DynamicScope;
+import org.jruby.runtime.ThreadContext;
 import org.jruby.runtime.builtin.IRubyObject;
 
 final class DebugBreakpoint {
 
     enum Type {
-        POS, METHOD
+        POS, METHOD, WATCH
     }
 
     enum HitCondition {
@@ -41,9 +50,17 @@ final class DebugBreakpoint {
     private IRubyObject source;
     private Pos pos;
     private IRubyObject expr;
-    private int hitCount;
+    private final AtomicInteger hitCount = new AtomicInteger();
     private int hitValue;
     private HitCondition hitCondition;
+    private RubyThread[] threads;
+    private Watch watch;
+    private ConditionExpression condition;
+    private boolean conditionParsed;
+    private final BreakpointStats stats = new BreakpointStats();
+    private volatile boolean snapshot;
+    private volatile int snapshotLimit;
+    private final AtomicInteger snapshotCount = new AtomicInteger();
 
     DebugBreakpoint() {
         this.enabled = true;
@@ -64,6 +81,20 @@ final class DebugBreakpoint {
 
     void setExpr(IRubyObject expr) {
         this.expr = expr;
+        this.condition = null;
+        this.conditionParsed = false;
+    }
+
+    /**
+     * @return the expression compiled for evaluation in Java, or
+     *         <tt>null</tt> if there is none or Ruby has to evaluate it
+     */
+    ConditionExpression getCondition() {
+        if (!conditionParsed) {
+            condition = expr == null || expr.isNil() ? null : ConditionExpression.parse(expr.toString());
+            conditionParsed = true;
+        }
+        return condition;
     }
 
     HitCondition getHitCondition() {
@@ -75,11 +106,63 @@ final class DebugBreakpoint {
     }
 
     int getHitCount() {
-        return hitCount;
+        return hitCount.get();
     }
 
     void setHitCount(int hitCount) {
-        this.hitCount = hitCount;
+        this.hitCount.set(hitCount);
+    }
+
+    /** @return the hit count including this hit, exact under concurrent hits */
+    int incrementHitCount() {
+        return hitCount.incrementAndGet();
+    }
+
+    BreakpointStats getStats() {
+        return stats;
+    }
+
+    /**
+     * Whether the breakpoint only captures a {@link BreakpointSnapshot} and
+     * lets the thread go on, instead of stopping it.
+     */
+    boolean isSnapshot() {
+        return snapshot;
+    }
+
+    void setSnapshot(boolean snapshot) {
+        this.snapshot = snapshot;
+    }
+
+    /** @return snapshots taken at most, 0 for no limit */
+    int getSnapshotLimit() {
+        return snapshotLimit;
+    }
+
+    void setSnapshotLimit(int snapshotLimit) {
+        this.snapshotLimit = snapshotLimit;
+    }
+
+    int getSnapshotCount() {
+        return snapshotCount.get();
+    }
+
+    /** @return whether another snapshot may be taken, counting it if so */
+    boolean claimSnapshot() {
+        int limit = snapshotLimit;
+        if (limit <= 0) {
+            snapshotCount.incrementAndGet();
+            return true;
+        }
+        while (true) {
+            int count = snapshotCount.get();
+            if (count >= limit) {
+                return false;
+            }
+            if (snapshotCount.compareAndSet(count, count + 1)) {
+                return true;
+            }
+        }
     }
 
     int getHitValue() {
@@ -90,6 +173,38 @@ final class DebugBreakpoint {
         this.hitValue = hitValue;
     }
 
+    /** @return threads the breakpoint is restricted to, <tt>null</tt> for all */
+    RubyThread[] getThreads() {
+        return threads;
+    }
+
+    void setThreads(RubyThread[] threads) {
+        this.threads = threads;
+    }
+
+    /** Whether the breakpoint might stop the given thread. */
+    boolean appliesTo(RubyThread thread) {
+        RubyThread[] current = threads;
+        if (current == null) {
+            return true;
+        }
+        for (RubyThread allowed : current) {
+            if (allowed == thread) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** @return watched variable of a WATCH breakpoint */
+    Watch getWatch() {
+        return watch;
+    }
+
+    void setWatch(Watch watch) {
+        this.watch = watch;
+    }
+
     int getId() {
         return id;
     }
@@ -126,6 +241,7 @@ final class DebugBreakpoint {
 
         private int line;
         private String methodName;
+        private Pattern methodPattern;
 
         public int getLine() {
             return line;
@@ -143,9 +259,117 @@ final class DebugBreakpoint {
             this.methodName = methodName;
         }
 
+        /**
+         * @return pattern of the method names matched, or <tt>null</tt> if
+         *         only the {@link #getMethodName method name} is
+         */
+        Pattern getMethodPattern() {
+            return methodPattern;
+        }
+
+        void setMethodPattern(Pattern methodPattern) {
+            this.methodPattern = methodPattern;
+        }
+
+        boolean matchesMethod(String name) {
+            return methodPattern == null ? methodName.equals(name) : methodPattern.matcher(name).find();
+        }
+
         public @Override String toString() {
             return "DebugBreakpoint$Pos[line:" + getLine() + ", methodName:" + getMethodName() + ']';
         }
         
     }
+
+    /**
+     * Variable watched by a WATCH breakpoint: a local variable of one scope
+     * or an instance variable of one object. It is only looked at while
+     * reachable, i.e. within the scope (or blocks in it), or while the
+     * object is <tt>self</tt>.
+     */
+    static final class Watch {
+
+        private final String name;
+        private final DynamicScope scope;
+        private final int slot;
+        private final IRubyObject object;
+        private IRubyObject lastValue;
+
+        private Watch(String name, DynamicScope scope, int slot, IRubyObject object) {
+            this.name = name;
+            this.scope = scope;
+            this.slot = slot;
+            this.object = object;
+            this.lastValue = read();
+        }
+
+        static Watch local(String name, DynamicScope scope, int slot) {
+            return new Watch(name, scope, slot, null);
+        }
+
+        static Watch instanceVariable(String name, IRubyObject object) {
+            return new Watch(name, null, -1, object);
+        }
+
+        String getName() {
+            return name;
+        }
+
+        /** @return owner of a watched instance variable, <tt>null</tt> for locals */
+        IRubyObject getObject() {
+            return object;
+        }
+
+        boolean isReachable(ThreadContext tCtx) {
+            if (object != null) {
+                return tCtx.getFrameSelf() == object;
+            }
+            for (DynamicScope current = tCtx.getCurrentScope(); current != null; current = current.getNextCapturedScope()) {
+                if (current == scope) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private IRubyObject read() {
+            return object != null ? object.getInstanceVariables().getInstanceVariable(name) : scope.getValue(slot, 0);
+        }
+
+        /**
+         * Reads the variable and remembers its value.
+         *
+         * @return whether the value changed since last read
+         */
+        boolean update(ThreadContext tCtx) {
+            IRubyObject value = read();
+            IRubyObject last = lastValue;
+            lastValue = value;
+            return !sameValue(tCtx, last, value);
+        }
+
+        private static boolean sameValue(ThreadContext tCtx, IRubyObject last, IRubyObject value) {
+            if (last == value) {
+                return true;
+            }
+            if (last == null || value == null) {
+                // unset vs. nil is not a change worth stopping for
+                return (last == null || last.isNil()) && (value == null || value.isNil());
+            }
+            if (last instanceof RubyFixnum && value instanceof RubyFixnum) {
+                return ((RubyFixnum) last).getLongValue() == ((RubyFixnum) value).getLongValue();
+            }
+            if (last instanceof RubyFloat && value instanceof RubyFloat) {
+                return ((RubyFloat) last).getDoubleValue() == ((RubyFloat) value).getDoubleValue();
+            }
+            if (last.getMetaClass() != value.getMetaClass()) {
+                return false;
+            }
+            try {
+                return last.callMethod(tCtx, "==", value).isTrue();
+            } catch (RaiseException e) {
+                return false;
+            }
+        }
+    }
 }
@@ -23,7 +23,6 @@
  */
 package org.jruby.debug;
 
-import java.util.LinkedList;
 import java.util.List;
 
 import org.jruby.RubyThread;
@@ -37,25 +36,29 @@ final class DebugContext {
     static final String AT_TRACING = "at_tracing";
     static final String LIST = "list";
 
-    private static int thnumMax = 0;
+    private static final IRubyObject[] NO_BREAKPOINTS = new IRubyObject[0];
 
     enum StopReason {
         NONE, STEP, BREAKPOINT, CATCHPOINT
     }
 
     private final RubyThread thread;
-    private IRubyObject breakpoint;
-    private final List<DebugFrame> frames;
+    private IRubyObject[] breakpoints;
+    private final FrameStack frames;
     private int lastLine;
     private String lastFile;
     private int destFrame;
     private int stopFrame;
     private int stopNext;
     private int stopLine;
+    private int stepFloor;
     private int stackLen;
     private StopReason stopReason;
     private int thnum;
     private boolean dead;
+    private ExecutionHistory history;
+    private CallTrace.Recorder callTraceRecorder;
+    private boolean framesPending;
 
     // flags
     private boolean suspended;
@@ -67,22 +70,23 @@ final class DebugContext {
     private boolean tracing;
     private boolean forceMove;
 
-    DebugContext(final RubyThread thread) {
-        thnum = ++thnumMax;
+    DebugContext(final RubyThread thread, final int thnum) {
+        this.thnum = thnum;
         lastFile = null;
         lastLine = 0;
         stopNext = -1;
         destFrame = -1;
         stopLine = -1;
         stopFrame = -1;
+        stepFloor = 0;
         stopReason = StopReason.NONE;
-        frames = new LinkedList<DebugFrame>();
-        breakpoint = thread.getRuntime().getNil();
+        frames = new FrameStack(thread == null ? null : thread.getRuntime(), 0);
+        breakpoints = NO_BREAKPOINTS;
         this.thread = thread;
     }
     
     void addFrame(final DebugFrame debugFrame) {
-        frames.add(debugFrame);
+        frames.push(debugFrame);
     }
 
     RubyThread getThread() {
@@ -90,27 +94,92 @@ final class DebugContext {
     }
 
     DebugFrame getTopFrame() {
-        return frames.get(getStackSize() - 1);
+        return frames.getTop();
     }
     
     DebugFrame getFrame(int index) {
-        return frames.get(getStackSize() - index - 1);
+        return frames.get(index);
+    }
+
+    /**
+     * Copy of the stored frames, top frame first, which may be taken from
+     * any thread while the owning thread keeps running. Might be slightly out
+     * of date but never fails because of concurrent modification. See
+     * {@link FrameStack#snapshot} for folded and dropped frames.
+     */
+    DebugFrame[] getFramesSnapshot() {
+        return frames.snapshot();
+    }
+
+    /** Pops frames up to and including the one of the returning method. */
+    void popFrames(String methodName) {
+        frames.popMethod(methodName);
+    }
+
+    /** Puts frames entered before the debugger got attached below the current ones. */
+    void addCallerFrames(final List<DebugFrame> callers) {
+        frames.pushCallers(callers);
+    }
+
+    /** Frames of this thread, for memory statistics and the limit. */
+    FrameStack getFrameStack() {
+        return frames;
     }
 
-    DebugFrame popFrame() {
-        return frames.remove(getStackSize() - 1);
+    /** Whether frames are still to be rebuilt, see {@link Debugger#isLazyFrames}. */
+    boolean isFramesPending() {
+        return framesPending;
+    }
+
+    void setFramesPending(boolean framesPending) {
+        this.framesPending = framesPending;
     }
 
     void clearFrames() {
         frames.clear();
     }
     
+    /** @return first temporary breakpoint or <tt>nil</tt> */
     IRubyObject getBreakpoint() {
-        return breakpoint;
+        return breakpoints.length == 0 ? thread.getRuntime().getNil() : breakpoints[0];
     }
 
+    /** Replaces the temporary breakpoints by the given one, if not <tt>nil</tt>. */
     void setBreakpoint(IRubyObject breakpoint) {
-        this.breakpoint = breakpoint;
+        this.breakpoints = breakpoint.isNil() ? NO_BREAKPOINTS : new IRubyObject[] { breakpoint };
+    }
+
+    void addBreakpoint(IRubyObject breakpoint) {
+        IRubyObject[] current = breakpoints;
+        IRubyObject[] result = new IRubyObject[current.length + 1];
+        System.arraycopy(current, 0, result, 0, current.length);
+        result[current.length] = breakpoint;
+        this.breakpoints = result;
+    }
+
+    /**
+     * Temporary breakpoints of this context, e.g. for 'Run to Cursor'. All
+     * of them are cleared when one is reached. Must not be modified.
+     */
+    IRubyObject[] getBreakpoints() {
+        return breakpoints;
+    }
+
+    boolean hasBreakpoints() {
+        return breakpoints.length > 0;
+    }
+
+    boolean isTemporaryBreakpoint(IRubyObject breakpoint) {
+        for (IRubyObject temporary : breakpoints) {
+            if (temporary == breakpoint) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    void clearBreakpoints() {
+        this.breakpoints = NO_BREAKPOINTS;
     }
 
     int getDestFrame() {
@@ -119,6 +188,7 @@ final class DebugContext {
 
     void setDestFrame(int destFrame) {
         this.destFrame = destFrame;
+        updateStepFloor();
     }
 
     boolean isEnableBreakpoint() {
@@ -203,6 +273,7 @@ final class DebugContext {
 
     void setStopLine(int stopLine) {
         this.stopLine = stopLine;
+        updateStepFloor();
     }
 
     int getStopNext() {
@@ -211,6 +282,38 @@ final class DebugContext {
 
     void setStopNext(int stopNext) {
         this.stopNext = stopNext;
+        updateStepFloor();
+    }
+
+    /**
+     * Stack size at or below which a pending "step", "next" or "finish" might
+     * stop. Line events of frames deeper than this cannot stop because of
+     * stepping, so only breakpoints and tracing have to be looked at.
+     */
+    int getStepFloor() {
+        return stepFloor;
+    }
+
+    private void updateStepFloor() {
+        if (destFrame != -1) {
+            // "next": deeper frames are stepped over
+            stepFloor = destFrame;
+        } else if (stopNext >= 0 || stopLine >= 0) {
+            // "step": any line might stop
+            stepFloor = Integer.MAX_VALUE;
+        } else {
+            // running, or "finish" which is triggered by a return event
+            stepFloor = 0;
+        }
+    }
+
+    /**
+     * Whether this context steps, traces or waits for a temporary breakpoint,
+     * so events of its thread need the complete processing.
+     */
+    boolean isStepping() {
+        return stopNext >= 0 || stopLine >= 0 || destFrame != -1 || stopFrame > 0 ||
+                tracing || breakpoints.length > 0;
     }
 
     StopReason getStopReason() {
@@ -261,6 +364,24 @@ final class DebugContext {
         this.dead = dead;
     }
 
+    /** @return recorded events or <tt>null</tt> if not recording */
+    ExecutionHistory getHistory() {
+        return history;
+    }
+
+    void setHistory(ExecutionHistory history) {
+        this.history = history;
+    }
+
+    /** @return calls of this thread not yet written, possibly of a finished trace */
+    CallTrace.Recorder getCallTraceRecorder() {
+        return callTraceRecorder;
+    }
+
+    void setCallTraceRecorder(CallTrace.Recorder callTraceRecorder) {
+        this.callTraceRecorder = callTraceRecorder;
+    }
+
     /* "Step", "Next" and "Finish" do their work by saving information
        about where to stop next. resetSteppingStopPoints removes/resets this
        information. */
@@ -268,5 +389,6 @@ final class DebugContext {
         this.destFrame = -1;
         this.stopLine = -1;
         this.stopNext = -1;
+        updateStepFloor();
     }
 }
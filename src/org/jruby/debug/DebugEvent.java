@@ -0,0 +1,148 @@
+/*
+ * header & license
+ * Copyright (c) 2008 debug-commons team
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.jruby.debug;
+
+import org.jruby.RubyThread;
+import org.jruby.runtime.builtin.IRubyObject;
+
+/**
+ * A stop or trace notification as seen by a {@link DebugEventListener}.
+ * Immutable; the frames are copied when the event is created, so it might
+ * be kept and read from any thread.
+ */
+public final class DebugEvent {
+
+    public enum Type {
+        /** the thread stopped on a line, after stepping or a breakpoint */
+        LINE,
+        /** a breakpoint was reached, followed by a {@link #LINE} event */
+        BREAKPOINT,
+        /** an exception matching a catchpoint was raised */
+        CATCHPOINT,
+        /** a line was executed while tracing */
+        TRACING
+    }
+
+    /** A frame of the stopped thread. */
+    public static final class Frame {
+
+        private final String file;
+        private final int line;
+        private final String methodName;
+        private final boolean dead;
+        private final int repeat;
+
+        Frame(final DebugFrame debugFrame) {
+            this.file = debugFrame.getFile();
+            this.line = debugFrame.getLine();
+            this.methodName = debugFrame.getMethodName();
+            this.dead = debugFrame.isDead();
+            this.repeat = debugFrame.getRepeat();
+        }
+
+        public String getFile() {
+            return file;
+        }
+
+        public int getLine() {
+            return line;
+        }
+
+        /** @return name of the method, <tt>null</tt> on the top level */
+        public String getMethodName() {
+            return methodName;
+        }
+
+        /** Whether only the position of the frame is known. */
+        public boolean isDead() {
+            return dead;
+        }
+
+        /** @return number of identical frames right below this one, folded into it */
+        public int getRepeat() {
+            return repeat;
+        }
+    }
+
+    private final Type type;
+    private final RubyThread thread;
+    private final int thnum;
+    private final String file;
+    private final int line;
+    private final int breakpointId;
+    private final IRubyObject exception;
+    private final Frame[] frames;
+
+    DebugEvent(final Type type, final DebugContext debugContext, final String file, final int line,
+            final DebugBreakpoint breakpoint, final IRubyObject exception) {
+        this.type = type;
+        this.thread = debugContext.getThread();
+        this.thnum = debugContext.getThnum();
+        this.file = file;
+        this.line = line;
+        this.breakpointId = breakpoint == null ? -1 : breakpoint.getId();
+        this.exception = exception;
+        DebugFrame[] debugFrames = debugContext.getFramesSnapshot();
+        this.frames = new Frame[debugFrames.length];
+        for (int i = 0; i < debugFrames.length; i++) {
+            frames[i] = new Frame(debugFrames[i]);
+        }
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public RubyThread getThread() {
+        return thread;
+    }
+
+    /** @return number of the thread as shown by the debugger */
+    public int getThnum() {
+        return thnum;
+    }
+
+    public String getFile() {
+        return file;
+    }
+
+    public int getLine() {
+        return line;
+    }
+
+    /** @return id of the reached breakpoint, -1 if not a {@link Type#BREAKPOINT} event */
+    public int getBreakpointId() {
+        return breakpointId;
+    }
+
+    /** @return raised exception of a {@link Type#CATCHPOINT} event, else <tt>null</tt> */
+    public IRubyObject getException() {
+        return exception;
+    }
+
+    /** @return frames of the thread, top frame first */
+    public Frame[] getFrames() {
+        return frames.clone();
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * header & license
+ * Copyright (c) 2008 debug-commons team
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.jruby.debug;
+
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The registered {@link DebugEventListener}s of a debugger. Registration is
+ * copy-on-write, so firing an event only reads a volatile array, and costs
+ * nothing but that read while no listener is registered.
+ */
+final class DebugEventDispatcher {
+
+    private static final Logger LOGGER = Logger.getLogger(DebugEventDispatcher.class.getName());
+
+    /** Events waiting for asynchronous listeners; further ones are dropped. */
+    private static final int QUEUE_SIZE = 1024;
+
+    private static final Registration[] NO_REGISTRATIONS = new Registration[0];
+
+    private static final class Registration {
+        final DebugEventListener listener;
+        final boolean async;
+
+        Registration(final DebugEventListener listener, final boolean async) {
+            this.listener = listener;
+            this.async = async;
+        }
+    }
+
+    private volatile Registration[] registrations = NO_REGISTRATIONS;
+    private volatile ExecutorService executor;
+
+    boolean hasListeners() {
+        return registrations.length > 0;
+    }
+
+    synchronized void add(final DebugEventListener listener, final boolean async) {
+        Registration[] current = registrations;
+        Registration[] result = new Registration[current.length + 1];
+        System.arraycopy(current, 0, result, 0, current.length);
+        result[current.length] = new Registration(listener, async);
+        if (async && executor == null) {
+            executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<Runnable>(QUEUE_SIZE), new ThreadFactory() {
+                        public Thread newThread(Runnable r) {
+                            Thread thread = new Thread(r, "Debugger::EventDispatcher");
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    }, new ThreadPoolExecutor.DiscardPolicy());
+        }
+        registrations = result;
+    }
+
+    /** Removes all registrations of the listener. */
+    synchronized void remove(final DebugEventListener listener) {
+        Registration[] current = registrations;
+        int kept = 0;
+        boolean async = false;
+        Registration[] result = new Registration[current.length];
+        for (Registration registration : current) {
+            if (registration.listener != listener) {
+                result[kept++] = registration;
+                async |= registration.async;
+            }
+        }
+        registrations = kept == 0 ? NO_REGISTRATIONS : Arrays.copyOf(result, kept);
+        if (!async && executor != null) {
+            executor.shutdown();
+            executor = null;
+        }
+    }
+
+    /**
+     * Calls synchronous listeners in order of registration and queues the
+     * event for asynchronous ones. A failing listener is logged and skipped,
+     * it never affects the debugged thread or the other listeners.
+     *
+     * @return whether a synchronous listener consumed the event
+     */
+    boolean fire(final DebugEvent event) {
+        boolean consumed = false;
+        for (final Registration registration : registrations) {
+            if (!registration.async) {
+                consumed |= deliver(registration.listener, event);
+            } else {
+                ExecutorService current = executor;
+                if (current != null) {
+                    current.execute(new Runnable() {
+                        public void run() {
+                            deliver(registration.listener, event);
+                        }
+                    });
+                }
+            }
+        }
+        return consumed;
+    }
+
+    private static boolean deliver(final DebugEventListener listener, final DebugEvent event) {
+        try {
+            return listener.onEvent(event);
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Debug event listener failed", e);
+            return false;
+        }
+    }
+}
@@ -25,6 +25,10 @@
 package org.jruby.debug;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import org.jruby.*;
 import org.jruby.debug.DebugContext.StopReason;
@@ -43,8 +47,12 @@ import static org.jruby.runtime.RubyEvent.*;
 
 final class DebugEventHook extends EventHook {
 
+    /** Line of <tt>Kernel#caller</tt>: <tt>file:line</tt> or <tt>file:line:in `method'</tt>. */
+    private static final Pattern CALLER_LINE = Pattern.compile("^(.+?):(\\d+)(?::in [`'](.*)')?$");
+
     private final Debugger debugger;
     private final Ruby runtime;
+    private final RubyValueCache values;
     
     private int hookCount;
     private int lastDebuggedThnum;
@@ -52,10 +60,16 @@ final class DebugEventHook extends EventHook {
     
     private boolean inDebugger;
 
+    private final FrameTracking frameTracking = new FrameTracking();
+    private final BreakpointChecking breakpointChecking = new BreakpointChecking();
+    private final Stepping stepping = new Stepping();
+    private volatile FrameTracking processor = stepping;
+
     public DebugEventHook(final Debugger debugger, final Ruby runtime) {
         this.debugger = debugger;
         lastDebuggedThnum = -1;
         this.runtime = runtime;
+        this.values = new RubyValueCache(runtime, debugger.getFileIds());
     }
 
     @Override
@@ -68,6 +82,10 @@ final class DebugEventHook extends EventHook {
             final String methodName, final IRubyObject klass) {
 
         RubyThread currThread = tCtx.getThread();
+        ThreadFilter threads = debugger.getThreadFilter();
+        if (threads != null && !threads.accepts(currThread)) {
+            return;
+        }
         DebugContextPair contexts = debugger.threadContextLookup(currThread, true);
 
         // return if thread is marked as 'ignored'. debugger's threads are marked this way
@@ -112,120 +130,36 @@ final class DebugEventHook extends EventHook {
         // one-based; jruby by default passes zero-based
         hookCount++;
         Ruby _runtime = tCtx.getRuntime();
-        IRubyObject breakpoint = getNil();
         IRubyObject binding = getNil();
         IRubyObject context = contexts.context;
         DebugContext debugContext = contexts.debugContext;
 
 //        debug("jrubydebug> %s:%d [%s] %s\n", file, line, EVENT_NAMES[event], methodName);
 
-        boolean moved = false;
-        if (!debugContext.isForceMove() ||
-            debugContext.getLastLine() != line || debugContext.getLastFile() == null ||
-            !Util.areSameFiles(debugContext.getLastFile(), file)) {
-            debugContext.setEnableBreakpoint(true);
-            moved = true;
-        }
-        //        else if(event != RUBY_EVENT_RETURN && event != RUBY_EVENT_C_RETURN) {
-        //            if(debug == Qtrue)
-        //                fprintf(stderr, "nodeless [%s] %s\n", get_event_name(event), rb_id2name(methodName));
-        //            goto cleanup;
-        //        } else {
-        //            if(debug == Qtrue)
-        //                fprintf(stderr, "nodeless [%s] %s\n", get_event_name(event), rb_id2name(methodName));
-        //        }
-        if (LINE == event) {
-            debugContext.setStepped(true);
+        if (debugContext.isFramesPending() && (event == LINE || event == CALL)) {
+            rebuildFrames(event, tCtx, file, line, methodName, debugContext);
         }
 
-        switch (event) {
-            case LINE:
-                if (debugContext.getStackSize() == 0) {
-                    saveCallFrame(event, tCtx, file, line, methodName, debugContext);
-                } else {
-                    updateTopFrame(event, debugContext, tCtx, file, line, methodName);
-                }
-                if (debugger.isTracing() || debugContext.isTracing()) {
-                    IRubyObject[] args = new IRubyObject[]{
-                        _runtime.newString(file),
-                        _runtime.newFixnum(line)
-                    };
-                    context.callMethod(tCtx, DebugContext.AT_TRACING, args);
-                }
-                if (debugContext.getDestFrame() == -1 || debugContext.getStackSize() == debugContext.getDestFrame()) {
-                    if (moved || !debugContext.isForceMove()) {
-                        debugContext.setStopNext(debugContext.getStopNext() - 1);
-                    }
-                    if (debugContext.getStopNext() < 0) {
-                        debugContext.setStopNext(-1);
-                    }
-                    if (moved || (debugContext.isStepped() && !debugContext.isForceMove())) {
-                        debugContext.setStopLine(debugContext.getStopLine() - 1);
-                        debugContext.setStepped(false);
-                    }
-                } else if (debugContext.getStackSize() < debugContext.getDestFrame()) {
-                    debugContext.setStopNext(0);
-                }
-
-                if (debugContext.getStopNext() == 0 || debugContext.getStopLine() == 0 ||
-                        !(breakpoint = checkBreakpointsByPos(debugContext, file, line)).isNil()) {
-                    binding = (tCtx != null ? RubyBinding.newBinding(_runtime, tCtx.currentBinding()) : getNil());
-                    saveTopBinding(debugContext, binding);
-
-                    debugContext.setStopReason(DebugContext.StopReason.STEP);
+        ExecutionHistory history = debugContext.getHistory();
+        if (history != null && (event == LINE || event == CALL || event == RETURN)) {
+            history.record(event, debugger.getFileIds().getId(file), line, debugContext.getStackSize(),
+                    event == LINE && history.isRecordLocals() ? tCtx.getCurrentScope() : null);
+        }
 
-                    /* Check breakpoint expression. */
-                    if (!breakpoint.isNil()) {
-                        if (!checkBreakpointExpression(tCtx, breakpoint, binding)) {
-                            break;
-                        }
-                        if (!checkBreakpointHitCondition(breakpoint)) {
-                            break;
-                        }
-                        if (breakpoint != debugContext.getBreakpoint()) {
-                            debugContext.setStopReason(DebugContext.StopReason.BREAKPOINT);
-                            context.callMethod(tCtx, DebugContext.AT_BREAKPOINT, breakpoint);
-                        } else {
-                            debugContext.setBreakpoint(getNil());
-                        }
-                    }
+        CallTrace callTrace = debugger.getCallTrace();
+        if (callTrace != null && (event == CALL || event == RETURN)) {
+            callTrace.record(debugContext, event == CALL, file, line, methodName, klass);
+        }
 
-                    /* reset all pointers */
-                    debugContext.setDestFrame(-1);
-                    debugContext.setStopLine(-1);
-                    debugContext.setStopNext(-1);
-                    callAtLine(tCtx, context, debugContext, _runtime, file, line);
-                }
+        switch (event) {
+            case LINE:
+                processorFor(debugContext, file).lineEvent(tCtx, file, line, methodName, contexts);
                 break;
             case CALL:
-                saveCallFrame(event, tCtx, file, line, methodName, debugContext);
-                breakpoint = checkBreakpointsByMethod(debugContext, klass, methodName);
-                if (!breakpoint.isNil()) {
-                    DebugFrame debugFrame = getTopFrame(debugContext);
-                    if (debugFrame != null) {
-                        binding = debugFrame.getBinding();
-                    }
-                    if (tCtx != null && binding.isNil()) {
-                        binding = RubyBinding.newBinding(_runtime, tCtx.currentBinding());
-                    }
-                    saveTopBinding(debugContext, binding);
-
-                    if(!checkBreakpointExpression(tCtx, breakpoint, binding)) {
-                        break;
-                    }
-                    if(!checkBreakpointHitCondition(breakpoint)) {
-                        break;
-                    }
-                    if (breakpoint != debugContext.getBreakpoint()) {
-                        debugContext.setStopReason(DebugContext.StopReason.BREAKPOINT);
-                        context.callMethod(tCtx, DebugContext.AT_BREAKPOINT, breakpoint);
-                    } else {
-                        debugContext.setBreakpoint(getNil());
-                    }
-                    callAtLine(tCtx, context, debugContext, _runtime, file, line);
-                }
+                processorFor(debugContext, file).callEvent(tCtx, file, line, methodName, klass, contexts);
                 break;
             case C_CALL:
+                updateEnableBreakpoint(debugContext, file, line);
                 if(cCallNewFrameP(klass)) {
                     saveCallFrame(event, tCtx, file, line, methodName, debugContext);
                 } else {
@@ -233,6 +167,7 @@ final class DebugEventHook extends EventHook {
                 }
                 break;
             case C_RETURN:
+                updateEnableBreakpoint(debugContext, file, line);
                 /* note if a block is given we fall through! */
                 if (!cCallNewFrameP(klass)) {
                     break;
@@ -243,21 +178,16 @@ final class DebugEventHook extends EventHook {
                     debugContext.setStopNext(1);
                     debugContext.setStopFrame(0);
                 }
-                while (debugContext.getStackSize() > 0) {
-                    DebugFrame topFrame = debugContext.popFrame();
-                    String origMethodName = topFrame.getOrigMethodName();
-                    if ((origMethodName == null && methodName == null) ||
-                            (origMethodName != null && origMethodName.equals(methodName))) {
-                        break;
-                    }
-                }
+                debugContext.popFrames(methodName);
                 debugContext.setEnableBreakpoint(true);
                 break;
             case CLASS:
+                updateEnableBreakpoint(debugContext, file, line);
                 resetTopFrameMethodName(debugContext);
                 saveCallFrame(event, tCtx, file, line, methodName, debugContext);
                 break;
             case RAISE:
+                updateEnableBreakpoint(debugContext, file, line);
                 updateTopFrame(event, debugContext, tCtx, file, line, methodName);
                 
                 // XXX Implement post mortem debugging
@@ -292,7 +222,9 @@ final class DebugEventHook extends EventHook {
                         hitCount = _runtime.newFixnum(RubyFixnum.fix2int(hitCount) + 1);
                         debugger.getCatchpoints().op_aset(tCtx, modName, hitCount);
                         debugContext.setStopReason(DebugContext.StopReason.CATCHPOINT);
-                        context.callMethod(tCtx, DebugContext.AT_CATCHPOINT, exception);
+                        if (!fireEvent(DebugEvent.Type.CATCHPOINT, debugContext, file, line, null, exception)) {
+                            context.callMethod(tCtx, DebugContext.AT_CATCHPOINT, exception);
+                        }
                         
                         DebugFrame debugFrame = getTopFrame(debugContext);
                         if (debugFrame != null) {
@@ -308,16 +240,268 @@ final class DebugEventHook extends EventHook {
                     }
                 }
                 break;
+            default:
+                updateEnableBreakpoint(debugContext, file, line);
+                break;
         }
         cleanUp(debugContext);
     }
 
+    /**
+     * Installs the cheapest processor able to serve the features the
+     * debugger currently uses. Called by the {@link Debugger} whenever
+     * breakpoints or tracing change; contexts which step or wait for a
+     * temporary breakpoint always get {@link Stepping}, see
+     * {@link #processorFor}.
+     */
+    void updateProcessor() {
+        BreakpointRegistry breakpoints = debugger.getBreakpointRegistry();
+        if (debugger.isTracing()) {
+            processor = stepping;
+        } else if (breakpoints != null && breakpoints.getSnapshot().getAll().length > 0) {
+            processor = breakpointChecking;
+        } else {
+            processor = frameTracking;
+        }
+    }
+
+    /**
+     * Files out of the debugger's scope only get their frames tracked, so
+     * neither stepping nor breakpoints stop in them.
+     */
+    private FrameTracking processorFor(final DebugContext debugContext, final String file) {
+        ScopeFilter scope = debugger.getScopeFilter();
+        if (scope != null && !scope.isInScope(debugger.getFileIds().getId(file), file)) {
+            return frameTracking;
+        }
+        if (debugContext.isStepping()) {
+            return stepping;
+        }
+        return processor;
+    }
+
+    /**
+     * Handles line and call events when nothing can stop the thread; only
+     * keeps the frames up to date, so stepping may start at any moment.
+     */
+    private class FrameTracking {
+
+        void lineEvent(final ThreadContext tCtx, final String file, final int line,
+                final String methodName, final DebugContextPair contexts) {
+            DebugContext debugContext = contexts.debugContext;
+            updateEnableBreakpoint(debugContext, file, line);
+            debugContext.setStepped(true);
+            updateFrames(tCtx, file, line, methodName, debugContext);
+        }
+
+        void callEvent(final ThreadContext tCtx, final String file, final int line,
+                final String methodName, final IRubyObject klass, final DebugContextPair contexts) {
+            updateEnableBreakpoint(contexts.debugContext, file, line);
+            saveCallFrame(CALL, tCtx, file, line, methodName, contexts.debugContext);
+        }
+    }
+
+    /** Stops only at breakpoints and watchpoints. */
+    private class BreakpointChecking extends FrameTracking {
+
+        @Override
+        void lineEvent(final ThreadContext tCtx, final String file, final int line,
+                final String methodName, final DebugContextPair contexts) {
+            super.lineEvent(tCtx, file, line, methodName, contexts);
+            DebugContext debugContext = contexts.debugContext;
+            if (!hasLineBreakpoints(debugContext)) {
+                return;
+            }
+            // always read watched variables, to not report old changes later
+            IRubyObject watchpoint = checkWatchpoints(tCtx, debugContext);
+            IRubyObject breakpoint = checkBreakpointsByPos(debugContext, file, line);
+            if (breakpoint.isNil()) {
+                breakpoint = watchpoint;
+            }
+            if (!breakpoint.isNil()) {
+                stopAtLine(tCtx, file, line, breakpoint, contexts);
+            }
+        }
+
+        @Override
+        void callEvent(final ThreadContext tCtx, final String file, final int line,
+                final String methodName, final IRubyObject klass, final DebugContextPair contexts) {
+            super.callEvent(tCtx, file, line, methodName, klass, contexts);
+            DebugContext debugContext = contexts.debugContext;
+            IRubyObject breakpoint = checkBreakpointsByMethod(debugContext, klass, methodName);
+            if (breakpoint.isNil()) {
+                return;
+            }
+            statsOf(breakpoint).matched();
+            if (checkSnapshot(tCtx, breakpoint, debugContext, file, line)) {
+                return;
+            }
+            Ruby _runtime = tCtx.getRuntime();
+            IRubyObject binding = getNil();
+            DebugFrame debugFrame = getTopFrame(debugContext);
+            if (debugFrame != null) {
+                binding = debugFrame.getBinding();
+            }
+            if (tCtx != null && binding.isNil()) {
+                binding = RubyBinding.newBinding(_runtime, tCtx.currentBinding());
+            }
+            saveTopBinding(debugContext, binding);
+
+            if(!checkBreakpointExpression(tCtx, breakpoint, binding)) {
+                return;
+            }
+            if(!checkBreakpointHitCondition(breakpoint)) {
+                return;
+            }
+            statsOf(breakpoint).stopped();
+            if (!debugContext.isTemporaryBreakpoint(breakpoint)) {
+                debugContext.setStopReason(DebugContext.StopReason.BREAKPOINT);
+                if (!fireEvent(DebugEvent.Type.BREAKPOINT, debugContext, file, line, breakpoint, null)) {
+                    contexts.context.callMethod(tCtx, DebugContext.AT_BREAKPOINT, breakpoint);
+                }
+            } else {
+                debugContext.clearBreakpoints();
+            }
+            callAtLine(tCtx, contexts.context, debugContext, _runtime, file, line);
+        }
+    }
+
+    /** Handles everything: "step", "next", "finish", tracing and breakpoints. */
+    private class Stepping extends BreakpointChecking {
+
+        @Override
+        void lineEvent(final ThreadContext tCtx, final String file, final int line,
+                final String methodName, final DebugContextPair contexts) {
+            DebugContext debugContext = contexts.debugContext;
+            if (debugContext.getStackSize() > debugContext.getStepFloor() &&
+                    !debugger.isTracing() && !debugContext.isTracing() && !hasBreakpointsAt(debugContext, file, line)) {
+                // deeper than any pending step target and no breakpoint here, nothing can stop
+                if (!debugContext.isForceMove()) {
+                    debugContext.setEnableBreakpoint(true);
+                }
+                debugContext.setStepped(true);
+                updateTopFrame(LINE, debugContext, tCtx, file, line, methodName);
+                return;
+            }
+
+            boolean moved = updateEnableBreakpoint(debugContext, file, line);
+            debugContext.setStepped(true);
+            updateFrames(tCtx, file, line, methodName, debugContext);
+            if ((debugger.isTracing() || debugContext.isTracing()) &&
+                    !fireEvent(DebugEvent.Type.TRACING, debugContext, file, line, null, null)) {
+                IRubyObject[] args = new IRubyObject[]{
+                    values.file(file),
+                    values.line(line)
+                };
+                contexts.context.callMethod(tCtx, DebugContext.AT_TRACING, args);
+            }
+            if (debugContext.getDestFrame() == -1 || debugContext.getStackSize() == debugContext.getDestFrame()) {
+                if (moved || !debugContext.isForceMove()) {
+                    debugContext.setStopNext(debugContext.getStopNext() - 1);
+                }
+                if (debugContext.getStopNext() < 0) {
+                    debugContext.setStopNext(-1);
+                }
+                if (moved || (debugContext.isStepped() && !debugContext.isForceMove())) {
+                    debugContext.setStopLine(debugContext.getStopLine() - 1);
+                    debugContext.setStepped(false);
+                }
+            } else if (debugContext.getStackSize() < debugContext.getDestFrame()) {
+                debugContext.setStopNext(0);
+            }
+
+            // always read watched variables, to not report old changes later
+            IRubyObject watchpoint = checkWatchpoints(tCtx, debugContext);
+            IRubyObject breakpoint = getNil();
+            if (debugContext.getStopNext() == 0 || debugContext.getStopLine() == 0 ||
+                    !(breakpoint = checkBreakpointsByPos(debugContext, file, line)).isNil() ||
+                    !(breakpoint = watchpoint).isNil()) {
+                stopAtLine(tCtx, file, line, breakpoint, contexts);
+            }
+        }
+    }
+
+    /**
+     * Enables breakpoints again unless the thread is forced to move and has
+     * not left the line it stopped at.
+     *
+     * @return whether the thread moved
+     */
+    private boolean updateEnableBreakpoint(final DebugContext debugContext, final String file, final int line) {
+        if (!debugContext.isForceMove() ||
+            debugContext.getLastLine() != line || debugContext.getLastFile() == null ||
+            !Util.areSameFiles(debugContext.getLastFile(), file)) {
+            debugContext.setEnableBreakpoint(true);
+            return true;
+        }
+        return false;
+    }
+
+    private void updateFrames(final ThreadContext tCtx, final String file, final int line,
+            final String methodName, final DebugContext debugContext) {
+        if (debugContext.getStackSize() == 0) {
+            saveCallFrame(LINE, tCtx, file, line, methodName, debugContext);
+        } else {
+            updateTopFrame(LINE, debugContext, tCtx, file, line, methodName);
+        }
+    }
+
+    /**
+     * Stops on a line because stepping finished or the given breakpoint,
+     * which might be <tt>nil</tt>, was reached.
+     */
+    private void stopAtLine(final ThreadContext tCtx, final String file, final int line,
+            IRubyObject breakpoint, final DebugContextPair contexts) {
+        DebugContext debugContext = contexts.debugContext;
+        Ruby _runtime = tCtx.getRuntime();
+        if (!breakpoint.isNil()) {
+            statsOf(breakpoint).matched();
+            if (checkSnapshot(tCtx, breakpoint, debugContext, file, line)) {
+                if (debugContext.getStopNext() != 0 && debugContext.getStopLine() != 0) {
+                    return;
+                }
+                // stepping stops here anyway
+                breakpoint = getNil();
+            }
+        }
+        /* Check breakpoint expression, before creating a binding which simple ones do not need. */
+        if (!breakpoint.isNil() && !checkBreakpointExpression(tCtx, breakpoint, null)) {
+            return;
+        }
+
+        IRubyObject binding = (tCtx != null ? RubyBinding.newBinding(_runtime, tCtx.currentBinding()) : getNil());
+        saveTopBinding(debugContext, binding);
+
+        debugContext.setStopReason(DebugContext.StopReason.STEP);
+
+        if (!breakpoint.isNil()) {
+            if (!checkBreakpointHitCondition(breakpoint)) {
+                return;
+            }
+            statsOf(breakpoint).stopped();
+            if (!debugContext.isTemporaryBreakpoint(breakpoint)) {
+                debugContext.setStopReason(DebugContext.StopReason.BREAKPOINT);
+                if (!fireEvent(DebugEvent.Type.BREAKPOINT, debugContext, file, line, breakpoint, null)) {
+                    contexts.context.callMethod(tCtx, DebugContext.AT_BREAKPOINT, breakpoint);
+                }
+            } else {
+                debugContext.clearBreakpoints();
+            }
+        }
+
+        /* reset all pointers */
+        debugContext.setDestFrame(-1);
+        debugContext.setStopLine(-1);
+        debugContext.setStopNext(-1);
+        callAtLine(tCtx, contexts.context, debugContext, _runtime, file, line);
+    }
+
     private IRubyObject getNil() {
         return runtime.getNil();
     }
 
-    private IRubyObject getBreakpoints() {
-        return debugger.getBreakpoints();
+    private BreakpointRegistry.Snapshot getBreakpoints() {
+        return debugger.getBreakpointRegistry().getSnapshot();
     }
 
     private void cleanUp(DebugContext debugContext) {
@@ -349,48 +533,70 @@ final class DebugEventHook extends EventHook {
         info.setDynaVars(event == LINE ? tCtx.getCurrentScope() : null);
         debugContext.addFrame(debugFrame);
         if (debugger.isTrackFrameArgs()) {
-            copyScalarArgs(tCtx, debugFrame);
+            // the arguments are read from the scope whenever Context#frame_args_info asks for them
+            DynamicScope argsScope = tCtx.getCurrentScope();
+            info.setArgsScope(argsScope);
+            info.setSignature(argsScope.getStaticScope().getSignature());
+            debugFrame.setArgValues(null);
         } else {
             debugFrame.setArgValues(runtime.getNil());
         }
     }
     
-    private boolean isArgValueSmall(IRubyObject value) {
-        return value == RubyObject.UNDEF ||
-                value instanceof RubyFixnum ||
-                value instanceof RubyFloat ||
-                value instanceof RubyNil ||
-                value instanceof RubyModule ||
-                value instanceof RubyFile ||
-                value instanceof RubyBoolean ||
-                value instanceof RubySymbol;
-    }
-
-    /** Save scalar arguments or a class name. */
-    private void copyScalarArgs(ThreadContext tCtx, DebugFrame debugFrame) {
-        // FIXME: This is all values and is not splatting rest but it will not crash.  We have
-        // no current capability to get just the params on a frame easily and seemingly no one has
-        // called this method in years since it would have crashed since 9.0.
-        RubyArray args = runtime.newArray(tCtx.getCurrentScope().getValues());
-        
-        int len = args.getLength();
-        for (int i = 0; i < len; i++) {
-            IRubyObject obj = args.entry(i);
-            if (obj == null) {
-                obj = runtime.getNil();
-            }
-            if (! isArgValueSmall(obj)) {
-                args.store(i, runtime.newString(obj.getType().getName()));
+    /**
+     * Rebuilds the frames of a thread which was running before the debugger
+     * got attached, from <tt>Kernel#caller</tt>, which all supported JRuby
+     * versions have. Only file, line and method of the callers are known;
+     * they are reported as dead frames.
+     */
+    private void rebuildFrames(final RubyEvent event, final ThreadContext tCtx, final String file,
+            final int line, final String methodName, final DebugContext debugContext) {
+        debugContext.setFramesPending(false);
+        Ruby _runtime = tCtx.getRuntime();
+        IRubyObject backtrace = _runtime.getKernel().callMethod(tCtx, "caller", _runtime.newFixnum(0));
+        if (!(backtrace instanceof RubyArray)) {
+            return;
+        }
+        IRubyObject[] lines = ((RubyArray) backtrace).toJavaArray();
+        List<DebugFrame> callers = new ArrayList<DebugFrame>();
+        // the first element is the current frame, saved with full information below
+        for (int i = lines.length - 1; i > 0; i--) {
+            Matcher element = CALLER_LINE.matcher(lines[i].asJavaString());
+            if (!element.matches() || Util.isJRubyCore(element.group(1))) {
+                continue;
             }
+            DebugFrame debugFrame = new DebugFrame();
+            debugFrame.setFile(Util.relativizeToPWD(element.group(1)));
+            debugFrame.setLine(Integer.parseInt(element.group(2)));
+            debugFrame.setMethodName(element.group(3));
+            debugFrame.setOrigMethodName(element.group(3));
+            debugFrame.setDead(true);
+            debugFrame.setBinding(_runtime.getNil());
+            debugFrame.setSelf(_runtime.getNil());
+            debugFrame.setArgValues(_runtime.getNil());
+            debugFrame.getInfo().setCopyArgs(_runtime.newArray());
+            debugFrame.getInfo().setCopyLocals(RubyHash.newHash(_runtime));
+            callers.add(debugFrame);
+        }
+        debugContext.clearFrames();
+        debugContext.addCallerFrames(callers);
+        if (event == LINE) {
+            // a call event pushes its frame itself
+            saveCallFrame(event, tCtx, file, line, methodName, debugContext);
         }
-        
-        debugFrame.setArgValues(args);
     }
 
     private void updateTopFrame(RubyEvent event, DebugContext debug_context, ThreadContext tCtx,
             String file, int line, String methodName) {
         DebugFrame topFrame = getTopFrame(debug_context);
         if (topFrame != null) {
+            if (event == LINE && topFrame.isDead()) {
+                // returned into a caller known by position only, it is live again
+                topFrame.setDead(false);
+                topFrame.setSlim(false);
+                topFrame.getInfo().setFrame(tCtx.getCurrentFrame());
+                topFrame.getInfo().setScope(tCtx.getCurrentScope().getStaticScope());
+            }
             topFrame.setSelf(tCtx.getFrameSelf());
             topFrame.setFile(file);
             topFrame.setLine(line);
@@ -407,27 +613,71 @@ final class DebugEventHook extends EventHook {
         }
     }
 
+    private boolean hasLineBreakpoints(DebugContext debugContext) {
+        BreakpointRegistry.Snapshot breakpoints = getBreakpoints();
+        return debugContext.hasBreakpoints() || breakpoints.hasLineBreakpoints() ||
+                breakpoints.getWatchpoints().length > 0;
+    }
+
+    /**
+     * Whether a breakpoint at the line, or any watchpoint, may stop the
+     * thread. Looks only at the breakpoints of the line, so stepping over
+     * code without breakpoints stays cheap however many are set elsewhere.
+     */
+    private boolean hasBreakpointsAt(DebugContext debugContext, String file, int line) {
+        BreakpointRegistry.Snapshot breakpoints = getBreakpoints();
+        if (breakpoints.getWatchpoints().length > 0) {
+            return true;
+        }
+        if (debugContext.hasBreakpoints()) {
+            for (IRubyObject breakpoint : debugContext.getBreakpoints()) {
+                if (checkBreakpointByPos(debugContext, breakpoint, file, line)) {
+                    return true;
+                }
+            }
+        }
+        for (IRubyObject breakpoint : breakpoints.atLine(line)) {
+            if (checkBreakpointByPos(debugContext, breakpoint, file, line)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** @return first watchpoint whose variable changed, or <tt>nil</tt> */
+    private IRubyObject checkWatchpoints(ThreadContext tCtx, DebugContext debugContext) {
+        IRubyObject result = getNil();
+        for (IRubyObject watchpoint : getBreakpoints().getWatchpoints()) {
+            DebugBreakpoint debugBreakpoint = (DebugBreakpoint) watchpoint.dataGetStruct();
+            if (!debugBreakpoint.isEnabled() || !debugBreakpoint.appliesTo(debugContext.getThread())) {
+                continue;
+            }
+            DebugBreakpoint.Watch watch = debugBreakpoint.getWatch();
+            if (watch.isReachable(tCtx) && watch.update(tCtx) && result.isNil()) {
+                result = watchpoint;
+            }
+        }
+        return result;
+    }
+
     private IRubyObject checkBreakpointsByPos(DebugContext debugContext, String file, int line) {
         if (!debugContext.isEnableBreakpoint()) {
             return getNil();
         }
-        if (checkBreakpointByPos(debugContext.getBreakpoint(), file, line)) {
-            return debugContext.getBreakpoint();
-        }
-        RubyArray arr = getBreakpoints().convertToArray();
-        if (arr.isEmpty()) {
-            return getNil();
+        for (IRubyObject breakpoint : debugContext.getBreakpoints()) {
+            if (checkBreakpointByPos(debugContext, breakpoint, file, line)) {
+                return breakpoint;
+            }
         }
-        for (int i = 0; i < arr.size(); i++) {
-            IRubyObject breakpoint = arr.entry(i);
-            if (checkBreakpointByPos(breakpoint, file, line)) {
+        for (IRubyObject breakpoint : getBreakpoints().atLine(line)) {
+            if (checkBreakpointByPos(debugContext, breakpoint, file, line)) {
                 return breakpoint;
             }
         }
         return getNil();
     }
 
-    private boolean checkBreakpointByPos(IRubyObject breakpoint, String file, int line) {
+    private boolean checkBreakpointByPos(DebugContext debugContext, IRubyObject breakpoint, String file, int line) {
         if (breakpoint.isNil()) {
             return false;
         }
@@ -435,6 +685,9 @@ final class DebugEventHook extends EventHook {
         if (!debugBreakpoint.isEnabled()) {
             return false;
         }
+        if (!debugBreakpoint.appliesTo(debugContext.getThread())) {
+            return false;
+        }
         if (debugBreakpoint.getType() != DebugBreakpoint.Type.POS) {
             return false;
         }
@@ -456,35 +709,32 @@ final class DebugEventHook extends EventHook {
         if (!debugContext.isEnableBreakpoint()) {
             return getNil();
         }
-        if (checkBreakpointByMethod(debugContext.getBreakpoint(), klass, methodName)) {
-            return debugContext.getBreakpoint();
-        }
-        RubyArray arr = getBreakpoints().convertToArray();
-        if (arr.isEmpty()) {
-            return getNil();
+        for (IRubyObject breakpoint : debugContext.getBreakpoints()) {
+            if (isActiveMethodBreakpoint(debugContext, breakpoint) && checkBreakpointByMethod(breakpoint, klass, methodName)) {
+                return breakpoint;
+            }
         }
-        for (int i = 0; i < arr.size(); i++) {
-            IRubyObject breakpoint = arr.entry(i);
-            if (checkBreakpointByMethod(breakpoint, klass, methodName)) {
+        for (IRubyObject breakpoint : getBreakpoints().getMethodMatcher().candidates(klass, methodName)) {
+            if (isActiveMethodBreakpoint(debugContext, breakpoint)) {
                 return breakpoint;
             }
         }
         return getNil();
     }
 
-    private boolean checkBreakpointByMethod(IRubyObject breakpoint, IRubyObject klass,
-            String methodName) {
+    private boolean isActiveMethodBreakpoint(DebugContext debugContext, IRubyObject breakpoint) {
         if (breakpoint.isNil()) {
             return false;
         }
         DebugBreakpoint debugBreakpoint = (DebugBreakpoint) breakpoint.dataGetStruct();
-        if (!debugBreakpoint.isEnabled()) {
-            return false;
-        }
-        if (debugBreakpoint.getType() != DebugBreakpoint.Type.METHOD) {
-            return false;
-        }
-        if (! debugBreakpoint.getPos().getMethodName().equals(methodName)) {
+        return debugBreakpoint.isEnabled() && debugBreakpoint.appliesTo(debugContext.getThread()) &&
+                debugBreakpoint.getType() == DebugBreakpoint.Type.METHOD;
+    }
+
+    /** Matches temporary breakpoints, which are not in the registry's matcher. */
+    private boolean checkBreakpointByMethod(IRubyObject breakpoint, IRubyObject klass, String methodName) {
+        DebugBreakpoint debugBreakpoint = (DebugBreakpoint) breakpoint.dataGetStruct();
+        if (!debugBreakpoint.getPos().matchesMethod(methodName)) {
             return false;
         }
         RubyString source = debugBreakpoint.getSource().asString();
@@ -497,13 +747,31 @@ final class DebugEventHook extends EventHook {
         return false;
     }
 
+    /**
+     * Evaluates the condition of the breakpoint, in Java if it is simple
+     * enough, else by Ruby eval.
+     *
+     * @param binding binding to evaluate in, or <tt>null</tt> for the current one
+     */
     private boolean checkBreakpointExpression(ThreadContext tCtx, IRubyObject breakpoint, IRubyObject binding) {
         DebugBreakpoint debugBreakpoint = (DebugBreakpoint) breakpoint.dataGetStruct();
         if (debugBreakpoint.getExpr().isNil()) {
             return true;
         }
-        
+        BreakpointStats stats = debugBreakpoint.getStats();
+        long start = System.nanoTime();
         try {
+            ConditionExpression condition = debugBreakpoint.getCondition();
+            if (condition != null) {
+                Boolean result = condition.evaluate(tCtx, tCtx.getCurrentScope(), tCtx.getFrameSelf());
+                if (result != null) {
+                    return result;
+                }
+            }
+            if (binding == null) {
+                binding = RubyBinding.newBinding(tCtx.getRuntime(), tCtx.currentBinding());
+            }
+
             IRubyObject result = RubyKernel.eval(
                     tCtx,
                     breakpoint, 
@@ -511,16 +779,20 @@ final class DebugEventHook extends EventHook {
                     Block.NULL_BLOCK);
             return result.isTrue();
         } catch (RaiseException e) {
-            // XXX Seems like we should tell the user about this, but this how
-            // ruby-debug behaves
+            // ruby-debug does not stop on a failing condition, whether
+            // evaluated in Java or by eval; it is reported through
+            // Breakpoint#stats instead
+            stats.conditionFailed(e.getMessage());
             return false;
+        } finally {
+            stats.conditionEvaluated(System.nanoTime() - start);
         }
     }
 
     private boolean checkBreakpointHitCondition(IRubyObject breakpoint) {
         DebugBreakpoint debugBreakpoint = (DebugBreakpoint) breakpoint.dataGetStruct();
         
-        debugBreakpoint.setHitCount(debugBreakpoint.getHitCount()+1);
+        int hitCount = debugBreakpoint.incrementHitCount();
         
         if (debugBreakpoint.getHitCondition() == null) {
             return true;
@@ -530,17 +802,17 @@ final class DebugEventHook extends EventHook {
             case NONE:
                 return true;
             case GE:
-                if (debugBreakpoint.getHitCount() >= debugBreakpoint.getHitValue()) {
+                if (hitCount >= debugBreakpoint.getHitValue()) {
                     return true;
                 }
                 break;
             case EQ:
-                if (debugBreakpoint.getHitCount() == debugBreakpoint.getHitValue()) {
+                if (hitCount == debugBreakpoint.getHitValue()) {
                     return true;
                 }
                 break;
             case MOD:
-                if (debugBreakpoint.getHitCount() % debugBreakpoint.getHitValue() == 0) {
+                if (hitCount % debugBreakpoint.getHitValue() == 0) {
                     return true;
                 }
                 break;
@@ -552,6 +824,29 @@ final class DebugEventHook extends EventHook {
         return false;
     }
 
+    /**
+     * Captures the state of the thread if the breakpoint is a snapshot
+     * breakpoint and its conditions hold.
+     *
+     * @return whether it is a snapshot breakpoint, which never stops a thread
+     */
+    private boolean checkSnapshot(ThreadContext tCtx, IRubyObject breakpoint, DebugContext debugContext,
+            String file, int line) {
+        DebugBreakpoint debugBreakpoint = (DebugBreakpoint) breakpoint.dataGetStruct();
+        if (!debugBreakpoint.isSnapshot()) {
+            return false;
+        }
+        if (checkBreakpointExpression(tCtx, breakpoint, null) && checkBreakpointHitCondition(breakpoint) &&
+                debugBreakpoint.claimSnapshot()) {
+            debugger.offerSnapshot(new BreakpointSnapshot(debugBreakpoint.getId(), debugContext, file, line));
+        }
+        return true;
+    }
+
+    private BreakpointStats statsOf(IRubyObject breakpoint) {
+        return ((DebugBreakpoint) breakpoint.dataGetStruct()).getStats();
+    }
+
     private void saveTopBinding(DebugContext context, IRubyObject binding) {
         DebugFrame debugFrame = getTopFrame(context);
         if (debugFrame != null) {
@@ -562,20 +857,41 @@ final class DebugEventHook extends EventHook {
     private IRubyObject callAtLine(ThreadContext tCtx,
             IRubyObject context, DebugContext debugContext,
             Ruby runtime, String file, int line) {
-        return callAtLine(tCtx, context, debugContext,
-                runtime.newString(file), runtime.newFixnum(line));
-    }
-    
-    private IRubyObject callAtLine(ThreadContext tCtx,
-            IRubyObject context, DebugContext debugContext,
-            IRubyObject file, IRubyObject line) {
         lastDebuggedThnum = debugContext.getThnum();
         saveCurrentPosition(debugContext);
-        IRubyObject[] args = new IRubyObject[]{
-            file,
-            line
-        };
-        return context.callMethod(tCtx, DebugContext.AT_LINE, args);
+        try {
+            if (fireEvent(DebugEvent.Type.LINE, debugContext, file, line, null, null)) {
+                return runtime.getNil();
+            }
+            IRubyObject[] args = new IRubyObject[]{
+                values.file(file),
+                values.line(line)
+            };
+            return context.callMethod(tCtx, DebugContext.AT_LINE, args);
+        } finally {
+            // pick up changes made through Debugger.breakpoints while stopped
+            BreakpointRegistry breakpoints = debugger.getBreakpointRegistry();
+            if (breakpoints != null) {
+                breakpoints.sync();
+                updateProcessor();
+            }
+        }
+    }
+
+    /**
+     * Notifies the Java listeners, if any.
+     *
+     * @return whether a listener consumed the event, so Ruby code is not
+     *         to be notified
+     */
+    private boolean fireEvent(DebugEvent.Type type, DebugContext debugContext, String file, int line,
+            IRubyObject breakpoint, IRubyObject exception) {
+        DebugEventDispatcher dispatcher = debugger.getEventDispatcher();
+        if (!dispatcher.hasListeners()) {
+            return false;
+        }
+        DebugBreakpoint debugBreakpoint = breakpoint == null ? null : (DebugBreakpoint) breakpoint.dataGetStruct();
+        return dispatcher.fire(new DebugEvent(type, debugContext, file, line, debugBreakpoint, exception));
     }
 
     private void saveCurrentPosition(final DebugContext debugContext) {
@@ -0,0 +1,46 @@
+/*
+ * header & license
+ * Copyright (c) 2008 debug-commons team
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.jruby.debug;
+
+/**
+ * Receives debugger events in Java, without any Ruby objects being created
+ * for the notification. Registered with
+ * {@link RubyDebugger#addEventListener(org.jruby.Ruby, DebugEventListener, boolean)}.
+ * <p>
+ * Synchronous listeners are called on the debugged thread, which waits for
+ * them, while the debugger holds its lock; they must not call back into
+ * the debugged runtime. Asynchronous ones are called on a dispatcher
+ * thread, possibly after the debugged thread went on; events are dropped
+ * when that thread falls too far behind.
+ */
+public interface DebugEventListener {
+
+    /**
+     * @return <tt>true</tt> if a synchronous listener handled the event, so
+     *         the corresponding <tt>Context</tt> method (e.g.
+     *         <tt>at_line</tt>) is not called; ignored for asynchronous
+     *         listeners
+     */
+    boolean onEvent(DebugEvent event);
+}
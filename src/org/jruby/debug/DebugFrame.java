@@ -26,6 +26,7 @@ package org.jruby.debug;
 import org.jruby.parser.StaticScope;
 import org.jruby.runtime.DynamicScope;
 import org.jruby.runtime.Frame;
+import org.jruby.runtime.Signature;
 import org.jruby.runtime.builtin.IRubyObject;
 
 final class DebugFrame {
@@ -39,6 +40,9 @@ final class DebugFrame {
     private IRubyObject self;
     private IRubyObject argValues;
     private Info info;
+    private int repeat;
+    private boolean slim;
+    private boolean placeholder;
 
     DebugFrame() {
         info = new Info();
@@ -76,6 +80,33 @@ final class DebugFrame {
         this.methodName = methodName;
     }
 
+    /** @return number of identical frames folded into this one, see {@link FrameStack} */
+    int getRepeat() {
+        return repeat;
+    }
+
+    void setRepeat(int repeat) {
+        this.repeat = repeat;
+    }
+
+    /** Whether only file, line and method are kept, see {@link FrameStack}. */
+    boolean isSlim() {
+        return slim;
+    }
+
+    void setSlim(boolean slim) {
+        this.slim = slim;
+    }
+
+    /** Whether the frame stands for one whose position was dropped. */
+    boolean isPlaceholder() {
+        return placeholder;
+    }
+
+    void setPlaceholder(boolean placeholder) {
+        this.placeholder = placeholder;
+    }
+
     Info getInfo() {
         return info;
     }
@@ -121,6 +152,8 @@ final class DebugFrame {
         private IRubyObject copyArgs;
         private IRubyObject copyLocals;
         private IRubyObject copyArgAry;
+        private DynamicScope argsScope;
+        private Signature signature;
 
         IRubyObject getCopyArgAry() {
             return copyArgAry;
@@ -162,6 +195,23 @@ final class DebugFrame {
             this.frame = frame;
         }
 
+        /** Scope of the method as entered, holding its arguments. */
+        DynamicScope getArgsScope() {
+            return argsScope;
+        }
+
+        void setArgsScope(DynamicScope argsScope) {
+            this.argsScope = argsScope;
+        }
+
+        Signature getSignature() {
+            return signature;
+        }
+
+        void setSignature(Signature signature) {
+            this.signature = signature;
+        }
+
         StaticScope getScope() {
             return scope;
         }
@@ -171,6 +221,11 @@ final class DebugFrame {
         }
     }
 
+    /**
+     * @return argument values, <tt>nil</tt> if arguments are not tracked or
+     *         <tt>null</tt> if they are read from {@link Info#getArgsScope}
+     *         whenever asked for
+     */
     public IRubyObject getArgValues() {
         return argValues;
     }
@@ -0,0 +1,201 @@
+/*
+ * header & license
+ * Copyright (c) 2008 debug-commons team
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.jruby.debug;
+
+import org.jruby.RubyString;
+import org.jruby.runtime.DynamicScope;
+import org.jruby.runtime.builtin.IRubyObject;
+
+/**
+ * Commands understood by the {@link DebugServer}. Answers are rendered
+ * straight from {@link DebugContext} and {@link DebugFrame} on the server
+ * thread, without calling back into Ruby.
+ * <pre>
+ *   threads                         list of known threads
+ *   stack thnum [locals_depth]      frames of a thread, locals of the top
+ *                                   locals_depth frames (default 1) included
+ *   breakpoints                     registered breakpoints
+ *   dump                            stacks of all threads
+ *   snapshots                       removes and returns the snapshots taken
+ *                                   by snapshot breakpoints
+ * </pre>
+ */
+final class DebugProtocol implements DebugServer.Handler {
+
+    private static final int DEFAULT_LOCALS_DEPTH = 1;
+    private static final int VALUE_LIMIT = 256;
+
+    private final Debugger debugger;
+
+    DebugProtocol(final Debugger debugger) {
+        this.debugger = debugger;
+    }
+
+    public String handle(final String request) {
+        String[] words = request.trim().split("\\s+");
+        JsonWriter json = new JsonWriter();
+        if ("threads".equals(words[0])) {
+            threads(json);
+        } else if ("stack".equals(words[0])) {
+            stack(json, words);
+        } else if ("breakpoints".equals(words[0])) {
+            breakpoints(json);
+        } else if ("dump".equals(words[0])) {
+            ThreadDump.json(json, debugger.getDebugContextsSnapshot());
+        } else if ("snapshots".equals(words[0])) {
+            snapshots(json);
+        } else {
+            error(json, "Unknown command: " + words[0]);
+        }
+        return json.toString();
+    }
+
+    private void threads(final JsonWriter json) {
+        json.beginArray();
+        for (DebugContext debugContext : debugger.getDebugContextsSnapshot()) {
+            json.beginObject();
+            json.name("thnum").value(debugContext.getThnum());
+            json.name("stack_size").value(debugContext.getStackSize());
+            json.name("suspended").value(debugContext.isSuspended());
+            json.name("ignored").value(debugContext.isIgnored());
+            json.name("stop_reason").value(debugContext.getStopReason().name().toLowerCase());
+            json.endObject();
+        }
+        json.endArray();
+    }
+
+    private void stack(final JsonWriter json, final String[] words) {
+        if (words.length < 2) {
+            error(json, "Usage: stack thnum [locals_depth]");
+            return;
+        }
+        int thnum;
+        int localsDepth = DEFAULT_LOCALS_DEPTH;
+        try {
+            thnum = Integer.parseInt(words[1]);
+            if (words.length > 2) {
+                localsDepth = Integer.parseInt(words[2]);
+            }
+        } catch (NumberFormatException nfe) {
+            error(json, "Invalid number: " + nfe.getMessage());
+            return;
+        }
+        DebugContext debugContext = findContext(thnum);
+        if (debugContext == null) {
+            error(json, "Unknown thread: " + thnum);
+            return;
+        }
+        DebugFrame[] frames = debugContext.getFramesSnapshot();
+        json.beginObject();
+        json.name("thnum").value(thnum);
+        json.name("frames").beginArray();
+        for (int i = 0; i < frames.length; i++) {
+            DebugFrame frame = frames[i];
+            json.beginObject();
+            json.name("file").value(frame.getFile());
+            json.name("line").value(frame.getLine());
+            json.name("method").value(frame.getMethodName());
+            if (frame.getRepeat() > 0) {
+                json.name("repeat").value(frame.getRepeat());
+            }
+            if (i < localsDepth) {
+                json.name("self").value(Util.describeValue(frame.getSelf(), VALUE_LIMIT));
+                json.name("locals");
+                locals(json, frame);
+            }
+            json.endObject();
+        }
+        json.endArray();
+        json.endObject();
+    }
+
+    private void locals(final JsonWriter json, final DebugFrame frame) {
+        json.beginObject();
+        for (DynamicScope scope = frame.getInfo().getDynaVars(); scope != null; scope = scope.getNextCapturedScope()) {
+            String[] names = scope.getStaticScope().getVariables();
+            IRubyObject[] values = scope.getValues();
+            if (names == null) {
+                continue;
+            }
+            for (int i = 0; i < names.length && i < values.length; i++) {
+                json.name(names[i]).value(Util.describeValue(values[i], VALUE_LIMIT));
+            }
+        }
+        json.endObject();
+    }
+
+    private void breakpoints(final JsonWriter json) {
+        json.beginArray();
+        BreakpointRegistry breakpoints = debugger.getBreakpointRegistry();
+        if (breakpoints != null) {
+            for (IRubyObject breakpoint : breakpoints.getSnapshot().getAll()) {
+                if (!(breakpoint.dataGetStruct() instanceof DebugBreakpoint)) {
+                    continue;
+                }
+                DebugBreakpoint debugBreakpoint = (DebugBreakpoint) breakpoint.dataGetStruct();
+                json.beginObject();
+                json.name("id").value(debugBreakpoint.getId());
+                json.name("type").value(debugBreakpoint.getType().name().toLowerCase());
+                IRubyObject source = debugBreakpoint.getSource();
+                // watched objects are described without calling their to_s
+                json.name("source").value(source instanceof RubyString ? source.toString() : Util.describeValue(source, VALUE_LIMIT));
+                if (debugBreakpoint.getType() == DebugBreakpoint.Type.POS) {
+                    json.name("pos").value(debugBreakpoint.getPos().getLine());
+                } else if (debugBreakpoint.getType() == DebugBreakpoint.Type.WATCH) {
+                    json.name("pos").value(debugBreakpoint.getWatch().getName());
+                } else {
+                    json.name("pos").value(debugBreakpoint.getPos().getMethodName());
+                }
+                json.name("enabled").value(debugBreakpoint.isEnabled());
+                json.name("hit_count").value(debugBreakpoint.getHitCount());
+                json.name("snapshot").value(debugBreakpoint.isSnapshot());
+                IRubyObject expr = debugBreakpoint.getExpr();
+                json.name("expr").value(expr == null || expr.isNil() ? null : expr.toString());
+                json.endObject();
+            }
+        }
+        json.endArray();
+    }
+
+    private void snapshots(final JsonWriter json) {
+        json.beginArray();
+        for (BreakpointSnapshot snapshot : debugger.drainSnapshots()) {
+            snapshot.writeJson(json);
+        }
+        json.endArray();
+    }
+
+    private DebugContext findContext(final int thnum) {
+        for (DebugContext debugContext : debugger.getDebugContextsSnapshot()) {
+            if (debugContext.getThnum() == thnum) {
+                return debugContext;
+            }
+        }
+        return null;
+    }
+
+    private void error(final JsonWriter json, final String message) {
+        json.beginObject().name("error").value(message).endObject();
+    }
+}
@@ -0,0 +1,283 @@
+/*
+ * header & license
+ * Copyright (c) 2008 debug-commons team
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.jruby.debug;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.logging.Logger;
+
+/**
+ * Non-blocking debug protocol server. Serves any number of clients from a
+ * single selector thread. Every message in both directions is a frame: a
+ * four byte big-endian payload length followed by the UTF-8 payload. Each
+ * request frame is answered by exactly one response frame produced by the
+ * {@link Handler}.
+ */
+final class DebugServer implements Runnable {
+
+    private static final Logger LOGGER = Logger.getLogger(DebugServer.class.getName());
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /** Largest request frame accepted from a client. */
+    static final int MAX_FRAME_SIZE = 1 << 20;
+
+    private static final int INITIAL_BUFFER_SIZE = 1024;
+
+    /** Produces the response payload for a request payload. */
+    interface Handler {
+        String handle(String request);
+    }
+
+    private final Handler handler;
+
+    private Selector selector;
+    private ServerSocketChannel serverChannel;
+    private Thread thread;
+    private volatile boolean running;
+
+    DebugServer(final Handler handler) {
+        this.handler = handler;
+    }
+
+    /**
+     * Binds the server and starts its selector thread.
+     *
+     * @param port port to listen on, 0 picks a free one
+     * @return port the server listens on
+     */
+    synchronized int start(final String host, final int port) throws IOException {
+        if (running) {
+            throw new IllegalStateException("Debug server is already running");
+        }
+        selector = Selector.open();
+        try {
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.configureBlocking(false);
+            serverChannel.socket().setReuseAddress(true);
+            serverChannel.socket().bind(new InetSocketAddress(host, port));
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException ioe) {
+            closeQuietly();
+            throw ioe;
+        }
+        running = true;
+        thread = new Thread(this, "Debugger::DebugServer");
+        thread.setDaemon(true);
+        thread.start();
+        return getPort();
+    }
+
+    synchronized void stop() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        selector.wakeup();
+        try {
+            thread.join(1000);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    boolean isRunning() {
+        return running;
+    }
+
+    int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    public void run() {
+        try {
+            while (running) {
+                selector.select();
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    try {
+                        if (key.isAcceptable()) {
+                            accept();
+                        } else {
+                            if (key.isReadable()) {
+                                read(key);
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                write(key);
+                            }
+                        }
+                    } catch (IOException ioe) {
+                        LOGGER.fine("Closing debug client: " + ioe);
+                        closeClient(key);
+                    }
+                }
+            }
+        } catch (IOException ioe) {
+            LOGGER.warning("Debug server stopped: " + ioe);
+        } finally {
+            running = false;
+            closeQuietly();
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        channel.register(selector, SelectionKey.OP_READ, new Client());
+    }
+
+    private void read(final SelectionKey key) throws IOException {
+        Client client = (Client) key.attachment();
+        SocketChannel channel = (SocketChannel) key.channel();
+        if (channel.read(client.in) < 0) {
+            closeClient(key);
+            return;
+        }
+        client.in.flip();
+        String request;
+        while ((request = decodeFrame(client.in)) != null) {
+            client.out.add(encodeFrame(handleSafely(request)));
+        }
+        client.in.compact();
+        if (!client.in.hasRemaining()) {
+            client.grow();
+        }
+        if (!client.out.isEmpty()) {
+            key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+    }
+
+    private void write(final SelectionKey key) throws IOException {
+        Client client = (Client) key.attachment();
+        SocketChannel channel = (SocketChannel) key.channel();
+        channel.write(client.out.toArray(new ByteBuffer[client.out.size()]));
+        while (!client.out.isEmpty() && !client.out.getFirst().hasRemaining()) {
+            client.out.removeFirst();
+        }
+        if (client.out.isEmpty()) {
+            key.interestOps(SelectionKey.OP_READ);
+        }
+    }
+
+    private String handleSafely(final String request) {
+        try {
+            return handler.handle(request);
+        } catch (RuntimeException e) {
+            LOGGER.fine("Failed to handle '" + request + "': " + e);
+            return new JsonWriter().beginObject().name("error").value(String.valueOf(e)).endObject().toString();
+        }
+    }
+
+    private void closeClient(final SelectionKey key) {
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private void closeQuietly() {
+        if (selector != null) {
+            for (SelectionKey key : selector.keys()) {
+                closeClient(key);
+            }
+            try {
+                selector.close();
+            } catch (IOException ignored) {
+            }
+        }
+        if (serverChannel != null) {
+            try {
+                serverChannel.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    static ByteBuffer encodeFrame(final String payload) {
+        byte[] bytes = payload.getBytes(UTF8);
+        ByteBuffer frame = ByteBuffer.allocate(4 + bytes.length);
+        frame.putInt(bytes.length);
+        frame.put(bytes);
+        frame.flip();
+        return frame;
+    }
+
+    /**
+     * Reads one frame from the given buffer which is in read mode.
+     *
+     * @return frame payload or <tt>null</tt> if the buffer does not contain a
+     *         complete frame yet; in that case the buffer position is kept
+     */
+    static String decodeFrame(final ByteBuffer in) throws IOException {
+        if (in.remaining() < 4) {
+            return null;
+        }
+        int length = in.getInt(in.position());
+        if (length < 0 || length > MAX_FRAME_SIZE) {
+            throw new IOException("Invalid frame length: " + length);
+        }
+        if (in.remaining() < 4 + length) {
+            return null;
+        }
+        in.position(in.position() + 4);
+        byte[] payload = new byte[length];
+        in.get(payload);
+        return new String(payload, UTF8);
+    }
+
+    private static final class Client {
+
+        ByteBuffer in = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+        final LinkedList<ByteBuffer> out = new LinkedList<ByteBuffer>();
+
+        /** Makes room for a frame larger than the current buffer. */
+        void grow() throws IOException {
+            if (in.capacity() >= MAX_FRAME_SIZE + 4) {
+                throw new IOException("Request frame too large");
+            }
+            ByteBuffer bigger = ByteBuffer.allocate(Math.min(in.capacity() * 2, MAX_FRAME_SIZE + 4));
+            in.flip();
+            bigger.put(in);
+            in = bigger;
+        }
+    }
+}
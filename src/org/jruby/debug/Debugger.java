@@ -24,15 +24,27 @@
  */
 package org.jruby.debug;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.JMException;
 
 import org.jruby.Ruby;
 import org.jruby.RubyArray;
 import org.jruby.RubyClass;
 import org.jruby.RubyFixnum;
 import org.jruby.RubyHash;
+import org.jruby.RubyKernel;
+import org.jruby.RubyNumeric;
+import org.jruby.RubyRegexp;
 import org.jruby.RubyString;
 import org.jruby.RubyThread;
 import org.jruby.debug.DebugBreakpoint.Type;
@@ -43,49 +55,61 @@ import org.jruby.runtime.builtin.IRubyObject;
 
 final class Debugger {
 
+    /** Frames kept in full per thread by default, see {@link FrameStack}. */
+    static final int DEFAULT_FRAME_LIMIT = 1000;
+
+    /** Snapshots waiting to be drained at most. */
+    static final int SNAPSHOT_CAPACITY = 256;
+
     private DebugEventHook debugEventHook;
+    private DebugServer debugServer;
+    private DebuggerAgent agent;
+    private volatile boolean lazyFrames;
+    private final DebugEventDispatcher eventDispatcher = new DebugEventDispatcher();
+    private final BlockingQueue<BreakpointSnapshot> snapshots =
+            new ArrayBlockingQueue<BreakpointSnapshot>(SNAPSHOT_CAPACITY);
+    private final AtomicLong droppedSnapshots = new AtomicLong();
+
+    /** Lines of source files, used by LineCache. Lives as long as the runtime. */
+    private final SourceCache sourceCache = new SourceCache();
     
     private Map<RubyThread, Context> threadsTable;
     
-    private IRubyObject breakpoints;
+    private BreakpointRegistry breakpoints;
     private IRubyObject catchpoints;
     private boolean tracing;
     private boolean postMortem;
     private boolean keepFrameBinding;
     private boolean debug;
     private boolean trackFrameArgs;
+    private boolean snapBreakpoints = true;
+    private int historySize;
+    private boolean historyLocals;
+    private int frameLimit = DEFAULT_FRAME_LIMIT;
+
+    /** Ids of files in execution histories. */
+    private final FileIdTable fileIds = new FileIdTable();
+    private volatile ScopeFilter scopeFilter;
+    private volatile CallTrace callTrace;
+    private volatile ThreadFilter threadFilter;
 
     private IRubyObject lastThread;
     private IRubyObject lastContext;
     private DebugContext lastDebugContext;
 
-    private boolean started;
+    private volatile boolean started;
     private int startCount;
     
     /** Used to for unique breakpoint ID for newly added breakpoints. */
     private int lastBreakpointID;
 
+    /** Used to for unique thread number of newly created contexts. */
+    private int lastThnum;
+
 
     IRubyObject start(IRubyObject recv, Block block) {
         Ruby runtime = recv.getRuntime();
-        
-        startCount++;
-        IRubyObject result;
-        if (started) {
-            result = runtime.getFalse();
-        } else {
-            IRubyObject nil = runtime.getNil();
-            lastThread  = nil;
-            lastContext = nil;
-            lastDebugContext = null;
-            started = true;
-            debugEventHook = new DebugEventHook(this, runtime);
-            breakpoints = runtime.newArray();
-            catchpoints = RubyHash.newHash(runtime);
-            threadsTable = new IdentityHashMap<RubyThread, Context>();
-            runtime.addEventHook(debugEventHook);
-            result = runtime.getTrue();
-        }
+        IRubyObject result = runtime.newBoolean(install(runtime));
         
         if (block.isGiven()) {
             try {
@@ -98,15 +122,49 @@ final class Debugger {
         return result;
     }
 
-    boolean stop(final Ruby runtime) {
+    /**
+     * Counts a start and installs the event hook on the first one.
+     * Synchronized with {@link #stop}, as the agent attaches and detaches
+     * from its own threads.
+     *
+     * @return whether the hook was installed
+     */
+    private synchronized boolean install(final Ruby runtime) {
+        startCount++;
+        if (started) {
+            return false;
+        }
+        IRubyObject nil = runtime.getNil();
+        lastThread  = nil;
+        lastContext = nil;
+        lastDebugContext = null;
+        started = true;
+        debugEventHook = new DebugEventHook(this, runtime);
+        breakpoints = new BreakpointRegistry(runtime);
+        catchpoints = RubyHash.newHash(runtime);
+        threadsTable = new IdentityHashMap<RubyThread, Context>();
+        debugEventHook.updateProcessor();
+        runtime.addEventHook(debugEventHook);
+        return true;
+    }
+
+    synchronized boolean stop(final Ruby runtime) {
         checkStarted(runtime);
         startCount--;
         if (startCount > 0) {
             return false;
         }
         runtime.removeEventHook(debugEventHook);
+        stopServer();
+        try {
+            stopCallTrace();
+        } catch (IOException ioe) {
+            // the debugger stops regardless; the trace is incomplete
+        }
+        sourceCache.close();
         breakpoints = null;
         catchpoints = null;
+        threadFilter = null;
         debugEventHook = null;
         started = false;
         threadsTable = null;
@@ -128,7 +186,9 @@ final class Debugger {
 
         start(recv, Block.NULL_BLOCK);
         if (!incrementStart.isTrue()) {
-            startCount--;
+            synchronized (this) {
+                startCount--;
+            }
         }
         IRubyObject context = getCurrentContext(recv);
         DebugContext debugContext = (DebugContext) context.dataGetStruct();
@@ -201,6 +261,213 @@ final class Debugger {
         return threadContextLookup(thread, false).context;
     }
 
+    /**
+     * Debug contexts of all threads seen so far. Safe to be called from any
+     * thread, returns an empty list when the debugger is not started.
+     */
+    List<DebugContext> getDebugContextsSnapshot() {
+        Map<RubyThread, Context> table = threadsTable;
+        if (table == null) {
+            return Collections.emptyList();
+        }
+        List<DebugContext> result = new ArrayList<DebugContext>();
+        synchronized (table) {
+            for (Context context : table.values()) {
+                result.add(context.debugContext());
+            }
+        }
+        return result;
+    }
+
+    /** see {@link RubyDebugger#start_server} */
+    IRubyObject startServer(IRubyObject recv, IRubyObject[] args) {
+        Ruby rt = recv.getRuntime();
+        checkStarted(recv);
+        IRubyObject[] actual = Arity.scanArgs(rt, args, 0, 2);
+        int port = actual[0].isNil() ? 0 : RubyFixnum.fix2int(actual[0]);
+        String host = actual[1].isNil() ? "127.0.0.1" : actual[1].convertToString().toString();
+        synchronized (this) {
+            if (debugServer != null) {
+                throw rt.newRuntimeError("Debug server is already running.");
+            }
+            DebugServer server = new DebugServer(new DebugProtocol(this));
+            try {
+                port = server.start(host, port);
+            } catch (IOException ioe) {
+                throw rt.newIOErrorFromException(ioe);
+            }
+            debugServer = server;
+        }
+        return rt.newFixnum(port);
+    }
+
+    /** see {@link RubyDebugger#start_agent} */
+    IRubyObject startAgent(IRubyObject recv, IRubyObject[] args, Block block) {
+        Ruby rt = recv.getRuntime();
+        IRubyObject[] actual = Arity.scanArgs(rt, args, 0, 1);
+        File signalFile = actual[0].isNil() ? null : new File(actual[0].convertToString().toString());
+        IRubyObject callback = block.isGiven() ? RubyKernel.proc(rt.getCurrentContext(), recv, block) : null;
+        synchronized (this) {
+            if (agent != null) {
+                return rt.getFalse();
+            }
+            DebuggerAgent newAgent = new DebuggerAgent(rt, this, signalFile, callback);
+            try {
+                newAgent.start();
+            } catch (JMException e) {
+                throw rt.newRuntimeError("Cannot start debugger agent: " + e.getMessage());
+            }
+            agent = newAgent;
+        }
+        return rt.getTrue();
+    }
+
+    /** see {@link RubyDebugger#stop_agent} */
+    boolean stopAgent() {
+        DebuggerAgent stopped;
+        synchronized (this) {
+            stopped = agent;
+            agent = null;
+        }
+        if (stopped == null) {
+            return false;
+        }
+        stopped.stop();
+        return true;
+    }
+
+    synchronized boolean isAgentAttached() {
+        return agent != null && agent.isAttached();
+    }
+
+    /**
+     * Whether contexts created from now on rebuild the frames entered before
+     * the debugger was started from the JRuby backtrace. Set while started
+     * by the {@link DebuggerAgent}, since threads are already running then.
+     */
+    boolean isLazyFrames() {
+        return lazyFrames;
+    }
+
+    void setLazyFrames(boolean lazyFrames) {
+        this.lazyFrames = lazyFrames;
+    }
+
+    /**
+     * Threads whose events are processed, or <tt>null</tt> if all threads
+     * are. Checked by the hook before anything else, so untracked threads
+     * cost a field read and an identity lookup per event.
+     */
+    ThreadFilter getThreadFilter() {
+        return threadFilter;
+    }
+
+    /** @return the allowlist set by {@link #setTrackedThreads}, or <tt>null</tt> */
+    RubyThread[] getTrackedThreads() {
+        ThreadFilter filter = threadFilter;
+        return filter == null ? null : filter.getAllowed();
+    }
+
+    boolean isTracked(RubyThread thread) {
+        ThreadFilter filter = threadFilter;
+        return filter == null || filter.accepts(thread);
+    }
+
+    /** Sets the threads to track, <tt>null</tt> for all of them. */
+    synchronized void setTrackedThreads(RubyThread[] threads) {
+        setThreadFilter(threads == null ? null : ThreadFilter.only(threads));
+    }
+
+    /**
+     * Tracks the thread or not, leaving the others alone. Untracking a
+     * thread while all are tracked keeps tracking threads started later.
+     */
+    synchronized void setTracked(RubyThread thread, boolean tracked) {
+        setThreadFilter(ThreadFilter.update(threadFilter, thread, tracked));
+    }
+
+    /**
+     * Frames of threads which were not tracked so far are rebuilt lazily
+     * from their backtrace, since their calls and returns went unseen.
+     */
+    private void setThreadFilter(ThreadFilter filter) {
+        ThreadFilter previous = threadFilter;
+        if (previous != null) {
+            for (DebugContext debugContext : getDebugContextsSnapshot()) {
+                RubyThread thread = debugContext.getThread();
+                if (!previous.accepts(thread) && (filter == null || filter.accepts(thread))) {
+                    // published to the thread by the volatile write below
+                    debugContext.setFramesPending(true);
+                }
+            }
+        }
+        threadFilter = filter;
+    }
+
+    CallTrace getCallTrace() {
+        return callTrace;
+    }
+
+    /** see {@link RubyDebugger#start_call_trace} */
+    IRubyObject startCallTrace(IRubyObject recv, IRubyObject[] args) {
+        Ruby rt = recv.getRuntime();
+        checkStarted(recv);
+        IRubyObject[] actual = Arity.scanArgs(rt, args, 1, 2);
+        File file = new File(actual[0].convertToString().toString());
+        RubyThread thread = null;
+        if (!actual[1].isNil()) {
+            if (!(actual[1] instanceof RubyThread)) {
+                throw rt.newTypeError("thread expected");
+            }
+            thread = (RubyThread) actual[1];
+        }
+        long window = 0;
+        if (!actual[2].isNil()) {
+            double seconds = RubyNumeric.num2dbl(actual[2]);
+            if (seconds <= 0) {
+                throw rt.newArgumentError("Trace window must be positive.");
+            }
+            window = (long) (seconds * 1e9);
+        }
+        synchronized (this) {
+            if (callTrace != null) {
+                throw rt.newRuntimeError("Call trace is already running.");
+            }
+            try {
+                callTrace = CallTrace.open(file, thread, window);
+            } catch (IOException ioe) {
+                throw rt.newIOErrorFromException(ioe);
+            }
+        }
+        return rt.getNil();
+    }
+
+    /**
+     * Finishes the running call trace, if any.
+     *
+     * @return the finished trace or <tt>null</tt>
+     */
+    CallTrace stopCallTrace() throws IOException {
+        CallTrace stopped;
+        synchronized (this) {
+            stopped = callTrace;
+            callTrace = null;
+        }
+        if (stopped != null) {
+            stopped.finish();
+        }
+        return stopped;
+    }
+
+    synchronized boolean stopServer() {
+        if (debugServer == null) {
+            return false;
+        }
+        debugServer.stop();
+        debugServer = null;
+        return true;
+    }
+
     /** Calls {@link #checkStarted(Ruby)} with reciever's runtime. */
     void checkStarted(final IRubyObject recv) {
         checkStarted(recv.getRuntime());
@@ -213,7 +480,13 @@ final class Debugger {
     }
 
     private Context debugContextCreate(RubyThread thread) {
-        DebugContext debugContext = new DebugContext(thread);
+        DebugContext debugContext = new DebugContext(thread, ++lastThnum);
+        if (historySize > 0) {
+            debugContext.setHistory(new ExecutionHistory(historySize, historyLocals));
+        }
+        // with an allowlist, a thread may get tracked deep in its stack
+        debugContext.setFramesPending(lazyFrames || threadFilter != null);
+        debugContext.getFrameStack().setLimit(frameLimit);
         // if (thread.getType() == thread.getRuntime().getClass(DebuggerDef.DEBUG_THREAD_NAME)) {
         if (thread.getType().getName().equals("Debugger::" + RubyDebugger.DEBUG_THREAD_NAME)) {
             debugContext.setIgnored(true);
@@ -280,12 +553,27 @@ final class Debugger {
         return contexts;
     }
 
+    SourceCache getSourceCache() {
+        return sourceCache;
+    }
+
     boolean isStarted() {
         return started;
     }
 
+    /**
+     * Keeps the debugger away from the thread, e.g. a non-Ruby thread which
+     * has to run Ruby code on behalf of the debugger. No-op when stopped.
+     */
+    synchronized void ignoreThread(final RubyThread thread) {
+        if (started) {
+            threadContextLookup(thread, true).debugContext.setIgnored(true);
+        }
+    }
+
     void setTracing(boolean tracing) {
         this.tracing = tracing;
+        updateEventProcessor();
     }
     
     boolean isTracing() {
@@ -305,29 +593,156 @@ final class Debugger {
     }
 
     IRubyObject getBreakpoints() {
+        return breakpoints == null ? null : breakpoints.getView();
+    }
+
+    /** Java listeners; they stay registered when the debugger is stopped. */
+    DebugEventDispatcher getEventDispatcher() {
+        return eventDispatcher;
+    }
+
+    /**
+     * Queues a snapshot for clients, dropping it if {@link #SNAPSHOT_CAPACITY}
+     * snapshots are waiting already.
+     */
+    void offerSnapshot(BreakpointSnapshot snapshot) {
+        if (!snapshots.offer(snapshot)) {
+            droppedSnapshots.incrementAndGet();
+        }
+    }
+
+    /** Removes the waiting snapshots, oldest first. */
+    List<BreakpointSnapshot> drainSnapshots() {
+        List<BreakpointSnapshot> result = new ArrayList<BreakpointSnapshot>();
+        snapshots.drainTo(result);
+        return result;
+    }
+
+    /** @return snapshots dropped because the queue was full */
+    long getDroppedSnapshots() {
+        return droppedSnapshots.get();
+    }
+
+    /** @return breakpoints or <tt>null</tt> if the debugger is not started */
+    BreakpointRegistry getBreakpointRegistry() {
         return breakpoints;
     }
     
     IRubyObject addBreakpoint(IRubyObject recv, IRubyObject[] args) {
         checkStarted(recv);
         IRubyObject result = createBreakpointFromArgs(recv, args, ++lastBreakpointID);
-        ((RubyArray) breakpoints).add(result);
+        breakpoints.add(result);
+        updateEventProcessor();
         return result;
     }
 
     IRubyObject removeBreakpoint(IRubyObject recv, IRubyObject breakpointId) {
         checkStarted(recv);
-        int id = RubyFixnum.fix2int(breakpointId);
-        RubyArray breakpointsA = ((RubyArray) breakpoints);
-        for(int i = 0; i < breakpointsA.size(); i++) {
-            IRubyObject breakpoint = breakpointsA.entry(i);
-            DebugBreakpoint debugBreakpoint = (DebugBreakpoint) breakpoint.dataGetStruct();
-            if(debugBreakpoint.getId() == id) {
-                breakpointsA.remove(i);
-                return breakpoint;
-            }
+        IRubyObject breakpoint = breakpoints.remove(RubyFixnum.fix2int(breakpointId));
+        updateEventProcessor();
+        return breakpoint == null ? Util.nil(recv) : breakpoint;
+    }
+
+    /** see {@link RubyDebugger#add_breakpoints} */
+    IRubyObject addBreakpoints(IRubyObject recv, IRubyObject specs) {
+        checkStarted(recv);
+        IRubyObject[] added = createBreakpointsFromSpecs(recv, specs);
+        breakpoints.update(added, new int[0]);
+        updateEventProcessor();
+        return RubyArray.newArray(recv.getRuntime(), added);
+    }
+
+    /** see {@link RubyDebugger#remove_breakpoints} */
+    IRubyObject removeBreakpoints(IRubyObject recv, IRubyObject breakpointIds) {
+        checkStarted(recv);
+        IRubyObject[] ids = breakpointIds.convertToArray().toJavaArray();
+        int[] removedIds = new int[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            removedIds[i] = RubyFixnum.fix2int(ids[i]);
+        }
+        IRubyObject[] removed = breakpoints.update(new IRubyObject[0], removedIds);
+        updateEventProcessor();
+        return RubyArray.newArray(recv.getRuntime(), removed);
+    }
+
+    /** see {@link RubyDebugger#replace_breakpoints} */
+    IRubyObject replaceBreakpoints(IRubyObject recv, IRubyObject specs) {
+        checkStarted(recv);
+        IRubyObject[] replacement = createBreakpointsFromSpecs(recv, specs);
+        breakpoints.replace(replacement);
+        updateEventProcessor();
+        return RubyArray.newArray(recv.getRuntime(), replacement);
+    }
+
+    private IRubyObject[] createBreakpointsFromSpecs(IRubyObject recv, IRubyObject specs) {
+        IRubyObject[] specsA = specs.convertToArray().toJavaArray();
+        IRubyObject[] result = new IRubyObject[specsA.length];
+        for (int i = 0; i < specsA.length; i++) {
+            result[i] = createBreakpointFromArgs(recv, specsA[i].convertToArray().toJavaArray());
+        }
+        return result;
+    }
+
+    /** see {@link RubyDebugger#add_watchpoint} */
+    IRubyObject addWatchpoint(IRubyObject recv, IRubyObject object, IRubyObject name, IRubyObject expr) {
+        checkStarted(recv);
+        String ivarName = name.asJavaString();
+        if (!ivarName.startsWith("@") || ivarName.startsWith("@@")) {
+            throw recv.getRuntime().newArgumentError("Not an instance variable name: " + ivarName);
+        }
+        return addWatchpoint(recv.getRuntime(), object, DebugBreakpoint.Watch.instanceVariable(ivarName, object), expr);
+    }
+
+    /**
+     * Adds a WATCH breakpoint stopping when the watched variable changes.
+     *
+     * @param source what is shown as the breakpoint's source
+     */
+    IRubyObject addWatchpoint(Ruby rt, IRubyObject source, DebugBreakpoint.Watch watch, IRubyObject expr) {
+        checkStarted(rt);
+        DebugBreakpoint debugBreakpoint = new DebugBreakpoint();
+        debugBreakpoint.setId(++lastBreakpointID);
+        debugBreakpoint.setSource(source);
+        debugBreakpoint.setType(DebugBreakpoint.Type.WATCH);
+        debugBreakpoint.setWatch(watch);
+        debugBreakpoint.setExpr(expr.isNil() ? expr : expr.convertToString());
+        debugBreakpoint.setHitCount(0);
+        debugBreakpoint.setHitValue(0);
+        debugBreakpoint.setHitCondition(DebugBreakpoint.HitCondition.NONE);
+        RubyClass cBreakpoint = rt.getModule("Debugger").getClass("Breakpoint");
+        IRubyObject breakpoint = cBreakpoint.allocate();
+        breakpoint.dataWrapStruct(debugBreakpoint);
+        breakpoints.add(breakpoint);
+        updateEventProcessor();
+        return breakpoint;
+    }
+
+    /**
+     * Lets the event hook pick the cheapest processing for the current
+     * breakpoints and tracing, see {@link DebugEventHook#updateProcessor}.
+     */
+    private void updateEventProcessor() {
+        DebugEventHook hook = debugEventHook;
+        if (hook != null) {
+            hook.updateProcessor();
+        }
+    }
+
+    /** see {@link RubyDebugger#sync_breakpoints} */
+    void syncBreakpoints() {
+        BreakpointRegistry registry = breakpoints;
+        if (registry != null) {
+            registry.sync();
+            updateEventProcessor();
+        }
+    }
+
+    /** Called when the position of a breakpoint was changed. */
+    void breakpointMoved() {
+        BreakpointRegistry registry = breakpoints;
+        if (registry != null) {
+            registry.rebuild();
         }
-        return Util.nil(recv);
     }
     
     IRubyObject createBreakpointFromArgs(IRubyObject recv, IRubyObject[] args) {
@@ -349,17 +764,24 @@ final class Debugger {
         Type type = pos instanceof RubyFixnum ? DebugBreakpoint.Type.POS : DebugBreakpoint.Type.METHOD;
         if (type == DebugBreakpoint.Type.POS) {
             source = source.asString();
-        } else {
-            pos = pos.asString();
         }
         DebugBreakpoint debugBreakpoint = new DebugBreakpoint();
         debugBreakpoint.setId(id);
         debugBreakpoint.setSource(source);
         debugBreakpoint.setType(type);
         if (type == DebugBreakpoint.Type.POS) {
-            debugBreakpoint.getPos().setLine(RubyFixnum.num2int(pos));
+            int line = RubyFixnum.num2int(pos);
+            if (snapBreakpoints) {
+                line = snapLine(rt, source.toString(), line);
+            }
+            debugBreakpoint.getPos().setLine(line);
+        } else if (pos instanceof RubyRegexp) {
+            debugBreakpoint.getPos().setMethodName(pos.inspect().toString());
+            debugBreakpoint.getPos().setMethodPattern(MethodBreakpointMatcher.compileRegexp((RubyRegexp) pos));
         } else {
-            debugBreakpoint.getPos().setMethodName(((RubyString) pos).toString());
+            String methodName = pos.asString().toString();
+            debugBreakpoint.getPos().setMethodName(methodName);
+            debugBreakpoint.getPos().setMethodPattern(MethodBreakpointMatcher.compileGlob(methodName));
         }
         debugBreakpoint.setExpr(expr.isNil() ? expr : (RubyString) expr);
         debugBreakpoint.setHitCount(0);
@@ -371,6 +793,70 @@ final class Debugger {
         return breakpoint;
     }
 
+    /**
+     * Lines the debugger can stop at in the given file. Tables are cached
+     * until the file is modified.
+     *
+     * @return table or <tt>null</tt> if the file cannot be read or parsed
+     */
+    ExecutableLines getExecutableLines(final Ruby runtime, final String path) {
+        LineIndex index = sourceCache.getFresh(path);
+        return index == null ? null : index.getExecutableLines(runtime);
+    }
+
+    /**
+     * Moves the line to the nearest one the debugger can stop at. Lines of
+     * files without a table are kept as they are.
+     */
+    int snapLine(final Ruby runtime, final String path, final int line) {
+        ExecutableLines lines = getExecutableLines(runtime, path);
+        if (lines == null) {
+            return line;
+        }
+        int snapped = lines.snap(line);
+        return snapped == -1 ? line : snapped;
+    }
+
+    /** see {@link RubyDebugger#executable_lines} */
+    IRubyObject executableLines(IRubyObject recv, IRubyObject file) {
+        Ruby rt = recv.getRuntime();
+        ExecutableLines lines = getExecutableLines(rt, file.convertToString().toString());
+        if (lines == null) {
+            return rt.getNil();
+        }
+        RubyArray result = rt.newArray();
+        for (int line : lines.getLines()) {
+            result.append(rt.newFixnum(line));
+        }
+        return result;
+    }
+
+    /** see {@link RubyDebugger#snap_lines} */
+    IRubyObject snapLines(IRubyObject recv, IRubyObject file, IRubyObject lines) {
+        Ruby rt = recv.getRuntime();
+        ExecutableLines table = getExecutableLines(rt, file.convertToString().toString());
+        RubyArray requested = lines.convertToArray();
+        RubyArray result = rt.newArray();
+        for (int i = 0; i < requested.size(); i++) {
+            IRubyObject line = requested.entry(i);
+            if (table == null) {
+                result.append(line);
+                continue;
+            }
+            int snapped = table.snap(RubyFixnum.num2int(line));
+            result.append(snapped == -1 ? rt.getNil() : rt.newFixnum(snapped));
+        }
+        return result;
+    }
+
+    boolean isSnapBreakpoints() {
+        return snapBreakpoints;
+    }
+
+    void setSnapBreakpoints(boolean snapBreakpoints) {
+        this.snapBreakpoints = snapBreakpoints;
+    }
+
     IRubyObject lastInterrupted(IRubyObject recv) {
         checkStarted(recv);
         IRubyObject result = Util.nil(recv);
@@ -438,6 +924,53 @@ final class Debugger {
     void setTrackFrameArgs(boolean trackFrameArgs) {
         this.trackFrameArgs = trackFrameArgs;
     }
+
+    int getHistorySize() {
+        return historySize;
+    }
+
+    boolean isHistoryLocals() {
+        return historyLocals;
+    }
+
+    /**
+     * Sets up execution histories of all contexts, existing and future ones,
+     * dropping the events recorded so far. No history is recorded when the
+     * size is zero.
+     */
+    void setHistory(int historySize, boolean historyLocals) {
+        this.historySize = historySize;
+        this.historyLocals = historyLocals;
+        for (DebugContext debugContext : getDebugContextsSnapshot()) {
+            debugContext.setHistory(historySize > 0 ? new ExecutionHistory(historySize, historyLocals) : null);
+        }
+    }
+
+    int getFrameLimit() {
+        return frameLimit;
+    }
+
+    /** Sets the limit of full frames for all contexts, existing and future ones. */
+    void setFrameLimit(int frameLimit) {
+        this.frameLimit = frameLimit;
+        for (DebugContext debugContext : getDebugContextsSnapshot()) {
+            debugContext.getFrameStack().setLimit(frameLimit);
+        }
+    }
+
+    FileIdTable getFileIds() {
+        return fileIds;
+    }
+
+    /** @return files being debugged or <tt>null</tt> if all of them are */
+    ScopeFilter getScopeFilter() {
+        return scopeFilter;
+    }
+
+    /** Restricts debugging to the given files; no patterns at all lift the restriction. */
+    void setScope(List<String> includes, List<String> excludes) {
+        this.scopeFilter = includes.isEmpty() && excludes.isEmpty() ? null : new ScopeFilter(includes, excludes);
+    }
     
     RubyHash getCatchpoints() {
         return (RubyHash) catchpoints;
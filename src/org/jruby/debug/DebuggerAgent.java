@@ -0,0 +1,203 @@
+/*
+ * header & license
+ * Copyright (c) 2008 debug-commons team
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.jruby.debug;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+import org.jruby.Ruby;
+import org.jruby.exceptions.RaiseException;
+import org.jruby.runtime.Block;
+import org.jruby.runtime.ThreadContext;
+import org.jruby.runtime.builtin.IRubyObject;
+
+/**
+ * Keeps a {@link Debugger} dormant until a local trigger arrives: the
+ * <tt>attach</tt> operation of the agent's MBean, or the creation of a
+ * signal file. Only then the debugger is started and its event hook
+ * registered; <tt>detach</tt> (or deleting the signal file) removes it
+ * again. While detached the debugged runtime runs without any hook.
+ * <p>
+ * Threads which were running when the debugger got attached have their
+ * frames rebuilt from the JRuby backtrace at their first event, see
+ * {@link Debugger#isLazyFrames}.
+ */
+final class DebuggerAgent implements DebuggerAgentMBean, Runnable {
+
+    private static final Logger LOGGER = Logger.getLogger(DebuggerAgent.class.getName());
+
+    /** How often the signal file is looked for, in milliseconds. */
+    private static final long POLL_INTERVAL = 1000;
+
+    private final Ruby runtime;
+    private final Debugger debugger;
+    private final File signalFile;
+    private final IRubyObject callback;
+
+    private ObjectName objectName;
+    private Thread poller;
+
+    /** Written under the agent's lock, read without it by {@link Debugger#isAgentAttached}. */
+    private volatile boolean attached;
+    private boolean attachedBySignal;
+
+    /**
+     * @param signalFile file whose existence attaches the debugger, or <tt>null</tt>
+     * @param callback called with <tt>true</tt> after attaching and with
+     *        <tt>false</tt> after detaching, or <tt>null</tt>
+     */
+    DebuggerAgent(Ruby runtime, Debugger debugger, File signalFile, IRubyObject callback) {
+        this.runtime = runtime;
+        this.debugger = debugger;
+        this.signalFile = signalFile;
+        this.callback = callback;
+    }
+
+    /** Registers the MBean and starts polling for the signal file. */
+    void start() throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        objectName = new ObjectName("org.jruby.debug:type=DebuggerAgent,runtime="
+                + Integer.toHexString(System.identityHashCode(runtime)));
+        server.registerMBean(new StandardMBean(this, DebuggerAgentMBean.class), objectName);
+        if (signalFile != null) {
+            poller = new Thread(this, "Debugger::Agent");
+            poller.setDaemon(true);
+            poller.start();
+        }
+    }
+
+    /** Unregisters the MBean, stops polling and detaches. */
+    void stop() {
+        if (poller != null) {
+            poller.interrupt();
+            poller = null;
+        }
+        if (objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch (JMException e) {
+                LOGGER.log(Level.FINE, "Cannot unregister " + objectName, e);
+            }
+            objectName = null;
+        }
+        detach();
+    }
+
+    ObjectName getObjectName() {
+        return objectName;
+    }
+
+    public boolean attach() {
+        return attach(false);
+    }
+
+    /** @return whether this call attached the debugger */
+    private boolean attach(final boolean bySignal) {
+        synchronized (this) {
+            if (attached) {
+                return false;
+            }
+            debugger.setLazyFrames(true);
+            debugger.start(runtime.getModule("Debugger"), Block.NULL_BLOCK);
+            attached = true;
+            attachedBySignal = bySignal;
+        }
+        notifyCallback(true);
+        return true;
+    }
+
+    public void detach() {
+        synchronized (this) {
+            if (!attached) {
+                return;
+            }
+            attached = false;
+            attachedBySignal = false;
+            debugger.stop(runtime);
+            if (!debugger.isStarted()) {
+                debugger.setLazyFrames(false);
+            }
+        }
+        notifyCallback(false);
+    }
+
+    public boolean isAttached() {
+        return attached;
+    }
+
+    public String threadDump() {
+        return ThreadDump.text(debugger.getDebugContextsSnapshot());
+    }
+
+    public String threadDumpJson() {
+        JsonWriter json = new JsonWriter();
+        ThreadDump.json(json, debugger.getDebugContextsSnapshot());
+        return json.toString();
+    }
+
+    public void run() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                boolean signalled = signalFile.exists();
+                boolean attach;
+                boolean detach;
+                synchronized (this) {
+                    attach = signalled && !attached;
+                    // only undo what the signal file did
+                    detach = !signalled && attached && attachedBySignal;
+                }
+                if (attach) {
+                    // no-op if attached through JMX meanwhile, which the file must not undo
+                    attach(true);
+                } else if (detach) {
+                    detach();
+                }
+                Thread.sleep(POLL_INTERVAL);
+            }
+        } catch (InterruptedException ie) {
+            // stopped
+        }
+    }
+
+    private void notifyCallback(final boolean attachedNow) {
+        if (callback == null) {
+            return;
+        }
+        // called on the poller or a JMX thread, which becomes a Ruby thread
+        // here and must not be debugged
+        ThreadContext tCtx = runtime.getCurrentContext();
+        debugger.ignoreThread(tCtx.getThread());
+        try {
+            callback.callMethod(tCtx, "call", runtime.newBoolean(attachedNow));
+        } catch (RaiseException e) {
+            LOGGER.log(Level.WARNING, "Debugger agent callback failed", e);
+        }
+    }
+}
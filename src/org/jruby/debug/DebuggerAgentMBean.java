@@ -0,0 +1,48 @@
+/*
+ * header & license
+ * Copyright (c) 2008 debug-commons team
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.jruby.debug;
+
+/**
+ * Management interface of {@link DebuggerAgent}, exposed through JMX.
+ */
+public interface DebuggerAgentMBean {
+
+    /**
+     * Starts the debugger, registering its event hook.
+     *
+     * @return <tt>false</tt> if it was attached already
+     */
+    boolean attach();
+
+    /** Stops the debugger, removing its event hook. */
+    void detach();
+
+    boolean isAttached();
+
+    /** Ruby stacks of all debugged threads, see {@link ThreadDump}. */
+    String threadDump();
+
+    /** Like {@link #threadDump()}, as a JSON array. */
+    String threadDumpJson();
+}
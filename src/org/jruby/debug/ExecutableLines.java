@@ -0,0 +1,120 @@
+/*
+ * header & license
+ * Copyright (c) 2008 debug-commons team
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.jruby.debug;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.jruby.Ruby;
+import org.jruby.ast.Node;
+import org.jruby.exceptions.RaiseException;
+
+/**
+ * Sorted table of lines of one source file where the debugger can stop,
+ * i.e. lines JRuby fires a line event for.
+ */
+final class ExecutableLines {
+
+    private final int[] lines;
+
+    ExecutableLines(final int[] sortedLines) {
+        this.lines = sortedLines;
+    }
+
+    /**
+     * Parses the given source with the JRuby parser and collects lines of
+     * all newline nodes.
+     *
+     * @return table or <tt>null</tt> if the source cannot be parsed
+     */
+    static ExecutableLines parse(final Ruby runtime, final String file, final byte[] source) {
+        Node root;
+        try {
+            root = runtime.parseFile(new ByteArrayInputStream(source), file, null);
+        } catch (RaiseException syntaxError) {
+            return null;
+        }
+        boolean[] executable = new boolean[16];
+        List<Node> pending = new ArrayList<Node>();
+        if (root != null) {
+            pending.add(root);
+        }
+        while (!pending.isEmpty()) {
+            Node node = pending.remove(pending.size() - 1);
+            if (node.isNewline()) {
+                int line = node.getLine() + 1; // zero-based in the AST
+                if (line >= executable.length) {
+                    executable = Arrays.copyOf(executable, Math.max(line + 1, executable.length * 2));
+                }
+                executable[line] = true;
+            }
+            for (Node child : node.childNodes()) {
+                if (child != null) {
+                    pending.add(child);
+                }
+            }
+        }
+        int count = 0;
+        for (boolean e : executable) {
+            if (e) {
+                count++;
+            }
+        }
+        int[] lines = new int[count];
+        for (int line = 0, i = 0; line < executable.length; line++) {
+            if (executable[line]) {
+                lines[i++] = line;
+            }
+        }
+        return new ExecutableLines(lines);
+    }
+
+    boolean isExecutable(final int line) {
+        return Arrays.binarySearch(lines, line) >= 0;
+    }
+
+    /**
+     * Nearest executable line at or after the given one; the last executable
+     * line before it when there is none after.
+     *
+     * @return snapped line or <tt>-1</tt> if the file has no executable line
+     */
+    int snap(final int line) {
+        int pos = Arrays.binarySearch(lines, line);
+        if (pos >= 0) {
+            return line;
+        }
+        int insertion = -pos - 1;
+        if (insertion < lines.length) {
+            return lines[insertion];
+        }
+        return lines.length == 0 ? -1 : lines[lines.length - 1];
+    }
+
+    int[] getLines() {
+        return lines.clone();
+    }
+}
@@ -0,0 +1,258 @@
+/*
+ * header & license
+ * Copyright (c) 2008 debug-commons team
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.jruby.debug;
+
+import org.jruby.Ruby;
+import org.jruby.RubyBoolean;
+import org.jruby.RubyFixnum;
+import org.jruby.RubyFloat;
+import org.jruby.parser.StaticScope;
+import org.jruby.runtime.DynamicScope;
+import org.jruby.runtime.RubyEvent;
+import org.jruby.runtime.builtin.IRubyObject;
+
+/**
+ * The last events of a thread, recorded into pre-allocated primitive arrays
+ * used as a ring buffer, so recording never allocates and memory per thread
+ * is fixed by the capacity. Optionally also records scalar local variables
+ * (nil, booleans, Fixnums and Floats) which changed since the previous line
+ * event in the same scope, up to {@link #MAX_LOCALS} per event.
+ * <p>
+ * Written by the owning thread only; read while that thread is stopped.
+ * Entries are indexed from the oldest (<tt>0</tt>) to the newest one.
+ */
+final class ExecutionHistory {
+
+    /** Changed locals recorded per event at most. */
+    static final int MAX_LOCALS = 4;
+
+    /** Slots of a scope compared for changes. */
+    private static final int TRACKED_SLOTS = 32;
+
+    private static final byte NONE = 0;
+    private static final byte NIL = 1;
+    private static final byte TRUE = 2;
+    private static final byte FALSE = 3;
+    private static final byte FIXNUM = 4;
+    private static final byte FLOAT = 5;
+
+    private static final RubyEvent[] EVENTS = RubyEvent.values();
+
+    private final int capacity;
+    private final byte[] events;
+    private final int[] fileIds;
+    private final int[] lines;
+    private final int[] depths;
+    private final long[] times;
+
+    private final boolean recordLocals;
+    private final StaticScope[] scopes;
+    private final int[] localSlots;
+    private final byte[] localTypes;
+    private final long[] localValues;
+
+    /** Last seen values of the scope of the previous line event. */
+    private DynamicScope lastScope;
+    private final byte[] lastTypes;
+    private final long[] lastValues;
+
+    private int next;
+    private long recorded;
+
+    ExecutionHistory(final int capacity, final boolean recordLocals) {
+        this.capacity = capacity;
+        this.events = new byte[capacity];
+        this.fileIds = new int[capacity];
+        this.lines = new int[capacity];
+        this.depths = new int[capacity];
+        this.times = new long[capacity];
+        this.recordLocals = recordLocals;
+        int localsCapacity = recordLocals ? capacity * MAX_LOCALS : 0;
+        this.scopes = new StaticScope[recordLocals ? capacity : 0];
+        this.localSlots = new int[localsCapacity];
+        this.localTypes = new byte[localsCapacity];
+        this.localValues = new long[localsCapacity];
+        this.lastTypes = new byte[recordLocals ? TRACKED_SLOTS : 0];
+        this.lastValues = new long[recordLocals ? TRACKED_SLOTS : 0];
+    }
+
+    int getCapacity() {
+        return capacity;
+    }
+
+    boolean isRecordLocals() {
+        return recordLocals;
+    }
+
+    /**
+     * @param scope scope to look for changed locals in, or <tt>null</tt>
+     */
+    void record(final RubyEvent event, final int fileId, final int line, final int depth, final DynamicScope scope) {
+        int i = next;
+        events[i] = (byte) event.ordinal();
+        fileIds[i] = fileId;
+        lines[i] = line;
+        depths[i] = depth;
+        times[i] = System.nanoTime();
+        if (recordLocals) {
+            recordLocals(i, scope);
+        }
+        next = i + 1 == capacity ? 0 : i + 1;
+        recorded++;
+    }
+
+    private void recordLocals(final int entry, final DynamicScope scope) {
+        int base = entry * MAX_LOCALS;
+        int count = 0;
+        if (scope != null) {
+            StaticScope staticScope = scope.getStaticScope();
+            scopes[entry] = staticScope;
+            if (scope != lastScope) {
+                lastScope = scope;
+                for (int slot = 0; slot < TRACKED_SLOTS; slot++) {
+                    lastTypes[slot] = NONE;
+                }
+            }
+            int slots = Math.min(staticScope.getNumberOfVariables(), TRACKED_SLOTS);
+            for (int slot = 0; slot < slots && count < MAX_LOCALS; slot++) {
+                IRubyObject value = scope.getValue(slot, 0);
+                byte type;
+                long bits;
+                if (value == null || value.isNil()) {
+                    type = NIL;
+                    bits = 0;
+                } else if (value instanceof RubyFixnum) {
+                    type = FIXNUM;
+                    bits = ((RubyFixnum) value).getLongValue();
+                } else if (value instanceof RubyFloat) {
+                    type = FLOAT;
+                    bits = Double.doubleToRawLongBits(((RubyFloat) value).getDoubleValue());
+                } else if (value instanceof RubyBoolean) {
+                    type = value.isTrue() ? TRUE : FALSE;
+                    bits = 0;
+                } else {
+                    type = NONE; // not a scalar
+                    bits = 0;
+                }
+                if (type != lastTypes[slot] || bits != lastValues[slot]) {
+                    lastTypes[slot] = type;
+                    lastValues[slot] = bits;
+                    if (type != NONE) {
+                        localSlots[base + count] = slot;
+                        localTypes[base + count] = type;
+                        localValues[base + count] = bits;
+                        count++;
+                    }
+                }
+            }
+        } else {
+            scopes[entry] = null;
+        }
+        for (int j = count; j < MAX_LOCALS; j++) {
+            localSlots[base + j] = -1;
+        }
+    }
+
+    /** Number of entries available. */
+    int size() {
+        return (int) Math.min(recorded, capacity);
+    }
+
+    /** Number of events recorded since created, including overwritten ones. */
+    long getRecorded() {
+        return recorded;
+    }
+
+    void clear() {
+        next = 0;
+        recorded = 0;
+        lastScope = null;
+    }
+
+    private int slot(final int index) {
+        if (index < 0 || index >= size()) {
+            throw new IndexOutOfBoundsException("index: " + index + ", size: " + size());
+        }
+        int oldest = recorded > capacity ? next : 0;
+        return (oldest + index) % capacity;
+    }
+
+    RubyEvent getEvent(final int index) {
+        return EVENTS[events[slot(index)]];
+    }
+
+    int getFileId(final int index) {
+        return fileIds[slot(index)];
+    }
+
+    int getLine(final int index) {
+        return lines[slot(index)];
+    }
+
+    int getDepth(final int index) {
+        return depths[slot(index)];
+    }
+
+    /** @return {@link System#nanoTime} of the event */
+    long getTime(final int index) {
+        return times[slot(index)];
+    }
+
+    /** Number of changed locals recorded with the event. */
+    int getLocalCount(final int index) {
+        if (!recordLocals) {
+            return 0;
+        }
+        int base = slot(index) * MAX_LOCALS;
+        int count = 0;
+        while (count < MAX_LOCALS && localSlots[base + count] != -1) {
+            count++;
+        }
+        return count;
+    }
+
+    String getLocalName(final int index, final int local) {
+        int entry = slot(index);
+        String[] names = scopes[entry].getVariables();
+        int variable = localSlots[entry * MAX_LOCALS + local];
+        return variable < names.length ? names[variable] : null;
+    }
+
+    IRubyObject getLocalValue(final Ruby runtime, final int index, final int local) {
+        int position = slot(index) * MAX_LOCALS + local;
+        long bits = localValues[position];
+        switch (localTypes[position]) {
+            case TRUE:
+                return runtime.getTrue();
+            case FALSE:
+                return runtime.getFalse();
+            case FIXNUM:
+                return runtime.newFixnum(bits);
+            case FLOAT:
+                return runtime.newFloat(Double.longBitsToDouble(bits));
+            default:
+                return runtime.getNil();
+        }
+    }
+}
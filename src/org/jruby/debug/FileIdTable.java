@@ -0,0 +1,69 @@
+/*
+ * header & license
+ * Copyright (c) 2008 debug-commons team
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.jruby.debug;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Small integer ids of source file names, so per-event records can store
+ * an <tt>int</tt> instead of a reference. Ids are never reused; looking up a
+ * known file does not allocate.
+ */
+final class FileIdTable {
+
+    private final ConcurrentMap<String, Integer> ids = new ConcurrentHashMap<String, Integer>();
+    private final List<String> files = new ArrayList<String>();
+
+    int getId(final String file) {
+        Integer id = ids.get(file);
+        if (id != null) {
+            return id;
+        }
+        synchronized (files) {
+            id = ids.get(file);
+            if (id == null) {
+                id = files.size();
+                files.add(file);
+                ids.put(file, id);
+            }
+            return id;
+        }
+    }
+
+    /** @return file name of the id or <tt>null</tt> if there is no such id */
+    String getFile(final int id) {
+        synchronized (files) {
+            return id >= 0 && id < files.size() ? files.get(id) : null;
+        }
+    }
+
+    int size() {
+        synchronized (files) {
+            return files.size();
+        }
+    }
+}
@@ -0,0 +1,294 @@
+/*
+ * header & license
+ * Copyright (c) 2008 debug-commons team
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.jruby.debug;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jruby.Ruby;
+import org.jruby.RubyHash;
+import org.jruby.runtime.builtin.IRubyObject;
+
+/**
+ * The frames the debugger keeps for a thread, with bounded memory.
+ * <p>
+ * Only the top {@link #getLimit} frames are kept in full. Deeper frames are
+ * slimmed down to their file, line and method, so they pin no Ruby objects
+ * and are reported as dead. Consecutive identical slim frames, as left by
+ * deep recursion, are folded into one entry with a repeat count. If even
+ * the folded entries exceed {@link #STORED_FACTOR} times the limit, the
+ * bottom ones are dropped and only counted.
+ * <p>
+ * Frame numbers and the stack size always count every frame, folded and
+ * dropped ones included, so stepping works at any depth.
+ */
+final class FrameStack {
+
+    /** Entries kept at most, in multiples of the limit. */
+    static final int STORED_FACTOR = 4;
+
+    /** Rough size of a stored frame itself, for {@link #getEstimatedBytes}. */
+    static final int FRAME_BYTES = 160;
+
+    /** File of frames whose position was dropped. */
+    static final String UNKNOWN_FILE = "(unknown)";
+
+    private final Ruby runtime;
+    private final List<DebugFrame> frames = new ArrayList<DebugFrame>();
+    private int size;
+    private int dropped;
+    private volatile int limit;
+    private volatile boolean limitChanged;
+
+    /** @param runtime used to describe slim frames to Ruby, <tt>null</tt> in tests */
+    FrameStack(final Ruby runtime, final int limit) {
+        this.runtime = runtime;
+        this.limit = limit;
+    }
+
+    /** @return frames kept in full, 0 for all */
+    int getLimit() {
+        return limit;
+    }
+
+    /** May be called from any thread, applied by the owning one on its next call. */
+    void setLimit(final int limit) {
+        this.limit = limit;
+        this.limitChanged = true;
+    }
+
+    /** @return number of frames, including folded and dropped ones */
+    int size() {
+        return size;
+    }
+
+    void push(final DebugFrame frame) {
+        size++;
+        frames.add(frame);
+        if (limitChanged) {
+            limitChanged = false;
+            enforceLimit(0);
+        } else {
+            enforceLimit(frames.size() - limit - 1);
+        }
+    }
+
+    /** Puts frames entered before the debugger got attached below the current ones. */
+    void pushCallers(final List<DebugFrame> callers) {
+        size += callers.size();
+        frames.addAll(0, callers);
+        enforceLimit(0);
+    }
+
+    /** Removes the top frame. */
+    DebugFrame pop() {
+        size--;
+        DebugFrame top = frames.remove(frames.size() - 1);
+        restoreTop();
+        return top;
+    }
+
+    /**
+     * Pops frames until the one of the returning method is gone, as a
+     * return might have been reported for frames whose call was not.
+     */
+    void popMethod(final String methodName) {
+        while (size > 0) {
+            DebugFrame top = pop();
+            if (top.isPlaceholder()) {
+                // the method of a dropped frame is not known
+                break;
+            }
+            String origMethodName = top.getOrigMethodName();
+            if ((origMethodName == null && methodName == null) ||
+                    (origMethodName != null && origMethodName.equals(methodName))) {
+                break;
+            }
+        }
+    }
+
+    void clear() {
+        frames.clear();
+        size = 0;
+        dropped = 0;
+    }
+
+    DebugFrame getTop() {
+        return frames.get(frames.size() - 1);
+    }
+
+    /** @param index frame number, 0 for the top frame */
+    DebugFrame get(int index) {
+        for (int i = frames.size() - 1; i >= 0; i--) {
+            DebugFrame frame = frames.get(i);
+            if (index <= frame.getRepeat()) {
+                return frame;
+            }
+            index -= 1 + frame.getRepeat();
+        }
+        if (index < 0 || index >= dropped) {
+            throw new IndexOutOfBoundsException("No frame " + index);
+        }
+        return placeholder();
+    }
+
+    /**
+     * Copy of the stored entries, top frame first, which may be taken from
+     * any thread while the owning thread keeps running. A folded entry
+     * stands for {@link DebugFrame#getRepeat} more frames; the dropped
+     * frames, see {@link #getDropped}, are not included.
+     */
+    DebugFrame[] snapshot() {
+        for (int attempt = 0; attempt < 10; attempt++) {
+            try {
+                Object[] copy = frames.toArray();
+                List<DebugFrame> result = new ArrayList<DebugFrame>(copy.length);
+                for (int i = copy.length - 1; i >= 0; i--) {
+                    if (copy[i] != null) {
+                        result.add((DebugFrame) copy[i]);
+                    }
+                }
+                return result.toArray(new DebugFrame[result.size()]);
+            } catch (RuntimeException concurrentlyModified) {
+                // frames changed under our hands, try again
+            }
+        }
+        return new DebugFrame[0];
+    }
+
+    /** @return frames below the stored ones, known by their number only */
+    int getDropped() {
+        return dropped;
+    }
+
+    int getStored() {
+        return frames.size();
+    }
+
+    /** @return frames folded into entries below them */
+    int getFolded() {
+        return size - dropped - frames.size();
+    }
+
+    /** @return stored frames which are slim, the others might pin Ruby objects */
+    int getSlim() {
+        int result = 0;
+        for (DebugFrame frame : snapshot()) {
+            if (frame.isSlim()) {
+                result++;
+            }
+        }
+        return result;
+    }
+
+    /** @return rough memory taken by the stored frames, not counting Ruby objects they pin */
+    long getEstimatedBytes() {
+        return (long) frames.size() * FRAME_BYTES;
+    }
+
+    /** Slims, folds and drops the entries from the given index up to the limit. */
+    private void enforceLimit(int from) {
+        int limit = this.limit;
+        if (limit <= 0) {
+            return;
+        }
+        for (int i = Math.max(from, 0); i < frames.size() - limit; i++) {
+            DebugFrame frame = frames.get(i);
+            if (i > 0 && isRepetition(frames.get(i - 1), frame)) {
+                DebugFrame below = frames.get(i - 1);
+                below.setRepeat(below.getRepeat() + 1 + frame.getRepeat());
+                frames.remove(i);
+                i--;
+            } else if (!frame.isSlim()) {
+                slim(frame);
+            }
+        }
+        while (frames.size() > limit * STORED_FACTOR) {
+            DebugFrame bottom = frames.remove(0);
+            dropped += 1 + bottom.getRepeat();
+        }
+    }
+
+    /** Whether the frame is the same as the slim one below it, e.g. recursive calls. */
+    private static boolean isRepetition(final DebugFrame below, final DebugFrame frame) {
+        return below.isSlim() && !below.isPlaceholder() && !frame.isPlaceholder() &&
+                below.getLine() == frame.getLine() &&
+                equal(below.getFile(), frame.getFile()) &&
+                equal(below.getMethodName(), frame.getMethodName()) &&
+                equal(below.getOrigMethodName(), frame.getOrigMethodName());
+    }
+
+    private static boolean equal(final String a, final String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    /** Makes sure the top entry is one frame only, it might get updated. */
+    private void restoreTop() {
+        int stored = frames.size();
+        if (stored == 0) {
+            if (dropped > 0) {
+                dropped--;
+                frames.add(placeholder());
+            }
+            return;
+        }
+        DebugFrame top = frames.get(stored - 1);
+        if (top.getRepeat() > 0) {
+            top.setRepeat(top.getRepeat() - 1);
+            DebugFrame copy = new DebugFrame();
+            copy.setFile(top.getFile());
+            copy.setLine(top.getLine());
+            copy.setMethodName(top.getMethodName());
+            copy.setOrigMethodName(top.getOrigMethodName());
+            slim(copy);
+            frames.add(copy);
+        }
+    }
+
+    private DebugFrame placeholder() {
+        DebugFrame frame = new DebugFrame();
+        frame.setFile(UNKNOWN_FILE);
+        frame.setPlaceholder(true);
+        slim(frame);
+        return frame;
+    }
+
+    private void slim(final DebugFrame frame) {
+        IRubyObject nil = runtime == null ? null : runtime.getNil();
+        frame.setSlim(true);
+        frame.setDead(true);
+        frame.setBinding(nil);
+        frame.setSelf(nil);
+        frame.setArgValues(nil);
+        DebugFrame.Info info = frame.getInfo();
+        info.setFrame(null);
+        info.setScope(null);
+        info.setDynaVars(null);
+        info.setArgsScope(null);
+        info.setSignature(null);
+        info.setCopyArgAry(null);
+        info.setCopyArgs(runtime == null ? null : runtime.newArray());
+        info.setCopyLocals(runtime == null ? null : RubyHash.newHash(runtime));
+    }
+}
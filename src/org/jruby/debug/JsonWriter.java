@@ -0,0 +1,170 @@
+/*
+ * header & license
+ * Copyright (c) 2008 debug-commons team
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.jruby.debug;
+
+/**
+ * Minimal JSON writer used by the Java side of the debugger to render
+ * responses without going through Ruby. Callers are responsible for a
+ * well-formed sequence of calls.
+ */
+final class JsonWriter {
+
+    private final StringBuilder out;
+    private boolean comma;
+
+    JsonWriter() {
+        this(new StringBuilder());
+    }
+
+    JsonWriter(final StringBuilder out) {
+        this.out = out;
+    }
+
+    JsonWriter beginObject() {
+        separate();
+        out.append('{');
+        comma = false;
+        return this;
+    }
+
+    JsonWriter endObject() {
+        out.append('}');
+        comma = true;
+        return this;
+    }
+
+    JsonWriter beginArray() {
+        separate();
+        out.append('[');
+        comma = false;
+        return this;
+    }
+
+    JsonWriter endArray() {
+        out.append(']');
+        comma = true;
+        return this;
+    }
+
+    JsonWriter name(final String name) {
+        separate();
+        string(name);
+        out.append(':');
+        comma = false;
+        return this;
+    }
+
+    JsonWriter value(final String value) {
+        separate();
+        if (value == null) {
+            out.append("null");
+        } else {
+            string(value);
+        }
+        comma = true;
+        return this;
+    }
+
+    JsonWriter value(final long value) {
+        separate();
+        out.append(value);
+        comma = true;
+        return this;
+    }
+
+    /** Writes <tt>thousandths / 1000</tt> as a decimal number, e.g. nanoseconds as microseconds. */
+    JsonWriter milliValue(final long thousandths) {
+        separate();
+        long fraction = Math.abs(thousandths % 1000);
+        if (thousandths < 0) {
+            out.append('-');
+        }
+        out.append(Math.abs(thousandths / 1000)).append('.');
+        if (fraction < 100) {
+            out.append(fraction < 10 ? "00" : "0");
+        }
+        out.append(fraction);
+        comma = true;
+        return this;
+    }
+
+    JsonWriter value(final boolean value) {
+        separate();
+        out.append(value);
+        comma = true;
+        return this;
+    }
+
+    JsonWriter nullValue() {
+        separate();
+        out.append("null");
+        comma = true;
+        return this;
+    }
+
+    StringBuilder getBuffer() {
+        return out;
+    }
+
+    public @Override String toString() {
+        return out.toString();
+    }
+
+    private void separate() {
+        if (comma) {
+            out.append(',');
+        }
+    }
+
+    private void string(final String value) {
+        out.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    out.append("\\\"");
+                    break;
+                case '\\':
+                    out.append("\\\\");
+                    break;
+                case '\n':
+                    out.append("\\n");
+                    break;
+                case '\r':
+                    out.append("\\r");
+                    break;
+                case '\t':
+                    out.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        out.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        out.append(c);
+                    }
+            }
+        }
+        out.append('"');
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * header & license
+ * Copyright (c) 2008 debug-commons team
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.jruby.debug;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jruby.Ruby;
+import org.jruby.RubyArray;
+
+/**
+ * Lines of one source file. The file is read once into a heap buffer and
+ * indexed by line start offsets, so any line is an O(1) slice of it. It is
+ * not memory-mapped: a mapped file truncated meanwhile crashes the JVM on
+ * access, and on Windows cannot be edited while mapped. The SHA1
+ * digest is computed only when asked for.
+ */
+final class LineIndex {
+
+    private static final AtomicLong VERSIONS = new AtomicLong();
+
+    private final File file;
+    private final long version = VERSIONS.incrementAndGet();
+    private final long lastModified;
+    private final long length;
+    private final ByteBuffer content;
+
+    /** Start offset of every line plus the end of the content. */
+    private final int[] offsets;
+    private final int lineCount;
+
+    private String sha1;
+
+    /** Lines as Ruby Strings, see {@link RubySourceCache#getlines}. */
+    private volatile RubyArray rubyLines;
+
+    /** Watcher notified of changes of the file since it was indexed, if any. */
+    private volatile SourceWatcher watcher;
+    private volatile boolean invalidated;
+
+    private ExecutableLines executableLines;
+    private boolean executableLinesParsed;
+
+    private LineIndex(File file, long lastModified, ByteBuffer content, int[] offsets, int lineCount) {
+        this.file = file;
+        this.lastModified = lastModified;
+        this.length = content.limit();
+        this.content = content;
+        this.offsets = offsets;
+        this.lineCount = lineCount;
+    }
+
+    static LineIndex load(final File file) throws IOException {
+        long lastModified = file.lastModified();
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        ByteBuffer content;
+        try {
+            FileChannel channel = raf.getChannel();
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("File too large: " + file);
+            }
+            content = ByteBuffer.allocate((int) size);
+            while (content.hasRemaining() && channel.read(content) != -1) {
+                // the file may shrink meanwhile, keep what was read
+            }
+            content.flip();
+        } finally {
+            raf.close();
+        }
+
+        int[] offsets = new int[64];
+        int lineCount = 0;
+        int limit = content.limit();
+        int start = 0;
+        for (int i = 0; i < limit; i++) {
+            if (content.get(i) == '\n') {
+                offsets = store(offsets, lineCount++, start);
+                start = i + 1;
+            }
+        }
+        if (start < limit) { // last line without trailing newline
+            offsets = store(offsets, lineCount++, start);
+        }
+        offsets = store(offsets, lineCount, limit);
+        return new LineIndex(file, lastModified, content, offsets, lineCount);
+    }
+
+    private static int[] store(int[] offsets, final int index, final int value) {
+        if (index == offsets.length) {
+            int[] bigger = new int[offsets.length * 2];
+            System.arraycopy(offsets, 0, bigger, 0, offsets.length);
+            offsets = bigger;
+        }
+        offsets[index] = value;
+        return offsets;
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    int getLineCount() {
+        return lineCount;
+    }
+
+    /**
+     * @param line one-based line number
+     * @return bytes of the line including its line terminator, or
+     *         <tt>null</tt> if there is no such line
+     */
+    byte[] getLine(final int line) {
+        if (line < 1 || line > lineCount) {
+            return null;
+        }
+        int start = offsets[line - 1];
+        byte[] bytes = new byte[offsets[line] - start];
+        ByteBuffer slice = content.duplicate();
+        slice.position(start);
+        slice.get(bytes);
+        return bytes;
+    }
+
+    RubyArray getRubyLines() {
+        return rubyLines;
+    }
+
+    void setRubyLines(RubyArray rubyLines) {
+        this.rubyLines = rubyLines;
+    }
+
+    /** Whether the file changed since it was indexed, judged by mtime and size. */
+    boolean isStale() {
+        return file.lastModified() != lastModified || file.length() != length;
+    }
+
+    /** Differs for every index created, so a reloaded file is told apart. */
+    long getVersion() {
+        return version;
+    }
+
+    SourceWatcher getWatcher() {
+        return watcher;
+    }
+
+    void setWatcher(SourceWatcher watcher) {
+        this.watcher = watcher;
+    }
+
+    /** Set once the file is known to have changed. */
+    boolean isInvalidated() {
+        return invalidated;
+    }
+
+    void invalidate() {
+        invalidated = true;
+    }
+
+    /**
+     * Lines the debugger can stop at, parsed on first call.
+     *
+     * @return table or <tt>null</tt> if the file cannot be parsed
+     */
+    synchronized ExecutableLines getExecutableLines(final Ruby runtime) {
+        if (!executableLinesParsed) {
+            byte[] source = new byte[(int) length];
+            content.duplicate().get(source);
+            executableLines = ExecutableLines.parse(runtime, file.getPath(), source);
+            executableLinesParsed = true;
+        }
+        return executableLines;
+    }
+
+    synchronized String getSha1() {
+        if (sha1 == null) {
+            MessageDigest digest;
+            try {
+                digest = MessageDigest.getInstance("SHA1");
+            } catch (NoSuchAlgorithmException nsae) {
+                throw new IllegalStateException(nsae);
+            }
+            digest.update(content.duplicate());
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest.digest()) {
+                hex.append(Character.forDigit((b >> 4) & 0xf, 16));
+                hex.append(Character.forDigit(b & 0xf, 16));
+            }
+            sha1 = hex.toString();
+        }
+        return sha1;
+    }
+}
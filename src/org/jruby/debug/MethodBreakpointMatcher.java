@@ -0,0 +1,228 @@
+/*
+ * header & license
+ * Copyright (c) 2008 debug-commons team
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.jruby.debug;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import org.jruby.MetaClass;
+import org.jruby.RubyModule;
+import org.jruby.RubyRegexp;
+import org.jruby.runtime.builtin.IRubyObject;
+
+/**
+ * Finds the method breakpoints of a call. Breakpoints are grouped by the
+ * name of their class once, when the {@link BreakpointRegistry.Snapshot}
+ * is built; the method name patterns of a class are compiled into one
+ * regular expression, so a call of a method no pattern matches is rejected
+ * by a single match. Patterns referring to their own groups are matched on
+ * their own, as combining them would renumber or duplicate the groups. Results are cached per class object (by identity) and
+ * method name until the breakpoints change, which builds a new matcher.
+ * Anonymous classes, which may get a name later, and singleton classes of
+ * objects other than modules, which would keep the objects alive, are not
+ * cached; neither are more than {@link #MAX_CACHED_CLASSES} classes.
+ * <p>
+ * A method breakpoint names a method exactly, by a glob (<tt>charge_*</tt>,
+ * <tt>*</tt> for every method of the class) or by a Regexp. The cache is
+ * used under the hook's lock only.
+ */
+final class MethodBreakpointMatcher {
+
+    private static final IRubyObject[] NO_BREAKPOINTS = new IRubyObject[0];
+
+    /** Backreferences by number or name, and named groups. */
+    private static final Pattern GROUP_REFERENCE = Pattern.compile("\\\\(?:[1-9]|k<)|\\(\\?<[a-zA-Z]");
+
+    /** Classes cached at most; the cache starts over when full. */
+    static final int MAX_CACHED_CLASSES = 1024;
+
+    /** Method breakpoints by the name of their class, in order of addition. */
+    private final Map<String, List<IRubyObject>> byClassName = new HashMap<String, List<IRubyObject>>();
+    private final Map<IRubyObject, ClassEntry> classes = new IdentityHashMap<IRubyObject, ClassEntry>();
+
+    MethodBreakpointMatcher(final IRubyObject[] methodBreakpoints) {
+        for (IRubyObject breakpoint : methodBreakpoints) {
+            String className = ((DebugBreakpoint) breakpoint.dataGetStruct()).getSource().asString().toString();
+            List<IRubyObject> breakpoints = byClassName.get(className);
+            if (breakpoints == null) {
+                breakpoints = new ArrayList<IRubyObject>(1);
+                byClassName.put(className, breakpoints);
+            }
+            breakpoints.add(breakpoint);
+        }
+    }
+
+    /**
+     * Breakpoints whose class and method pattern match the call, whether
+     * enabled or not. Singleton methods are looked up by the name of the
+     * object they are defined on. Must not be modified.
+     */
+    IRubyObject[] candidates(final IRubyObject klass, final String methodName) {
+        if (byClassName.isEmpty()) {
+            return NO_BREAKPOINTS;
+        }
+        ClassEntry entry = classes.get(klass);
+        if (entry == null) {
+            List<IRubyObject> breakpoints = new ArrayList<IRubyObject>();
+            boolean cacheable = !isAnonymous(addBreakpointsOf(breakpoints, klass));
+            if (klass instanceof MetaClass) {
+                IRubyObject attached = ((MetaClass) klass).getAttached();
+                String attachedName = addBreakpointsOf(breakpoints, attached);
+                cacheable = attached instanceof RubyModule && !isAnonymous(attachedName);
+            }
+            if (!cacheable && breakpoints.isEmpty()) {
+                return NO_BREAKPOINTS;
+            }
+            entry = new ClassEntry(breakpoints);
+            if (cacheable) {
+                if (classes.size() >= MAX_CACHED_CLASSES) {
+                    classes.clear();
+                }
+                classes.put(klass, entry);
+            }
+        }
+        return entry.candidates(methodName);
+    }
+
+    /** @return the name the breakpoints were looked up by */
+    private String addBreakpointsOf(final List<IRubyObject> breakpoints, final IRubyObject klass) {
+        String name = klass.asString().toString();
+        List<IRubyObject> named = byClassName.get(name);
+        if (named != null) {
+            breakpoints.addAll(named);
+        }
+        return name;
+    }
+
+    /** Whether the name is that of a class or module without a constant, e.g. <tt>#&lt;Class:0x1f&gt;</tt>. */
+    static boolean isAnonymous(final String className) {
+        return className.startsWith("#<");
+    }
+
+    /** Method breakpoints of one class and the methods looked up so far. */
+    private static final class ClassEntry {
+
+        private final IRubyObject[] breakpoints;
+        /**
+         * Any of the combinable patterns of this class, <tt>null</tt> if
+         * there are none.
+         */
+        private final Pattern anyPattern;
+        /** Whether the pattern of the breakpoint at the index is in {@link #anyPattern}. */
+        private final boolean[] combined;
+        private final Map<String, IRubyObject[]> byMethod = new HashMap<String, IRubyObject[]>();
+
+        ClassEntry(final List<IRubyObject> breakpoints) {
+            this.breakpoints = breakpoints.toArray(new IRubyObject[breakpoints.size()]);
+            this.combined = new boolean[this.breakpoints.length];
+            StringBuilder any = new StringBuilder();
+            for (int i = 0; i < this.breakpoints.length; i++) {
+                Pattern pattern = ((DebugBreakpoint) this.breakpoints[i].dataGetStruct()).getPos().getMethodPattern();
+                if (pattern != null && isCombinable(pattern)) {
+                    combined[i] = true;
+                    if (any.length() > 0) {
+                        any.append('|');
+                    }
+                    any.append("(?").append((pattern.flags() & Pattern.CASE_INSENSITIVE) != 0 ? "i" : "").append(':');
+                    any.append(pattern.pattern()).append(')');
+                }
+            }
+            this.anyPattern = any.length() == 0 ? null : Pattern.compile(any.toString());
+        }
+
+        IRubyObject[] candidates(final String methodName) {
+            if (breakpoints.length == 0) {
+                return NO_BREAKPOINTS;
+            }
+            IRubyObject[] result = byMethod.get(methodName);
+            if (result == null) {
+                boolean patternMatches = anyPattern != null && anyPattern.matcher(methodName).find();
+                List<IRubyObject> matching = new ArrayList<IRubyObject>(1);
+                for (int i = 0; i < breakpoints.length; i++) {
+                    DebugBreakpoint.Pos pos = ((DebugBreakpoint) breakpoints[i].dataGetStruct()).getPos();
+                    if (pos.getMethodPattern() == null ? pos.getMethodName().equals(methodName)
+                            : (patternMatches || !combined[i]) && pos.matchesMethod(methodName)) {
+                        matching.add(breakpoints[i]);
+                    }
+                }
+                result = matching.isEmpty() ? NO_BREAKPOINTS : matching.toArray(new IRubyObject[matching.size()]);
+                byMethod.put(methodName, result);
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Whether the pattern keeps its meaning as an alternative of a larger
+     * one. Backslashes which merely escape a backslash make it look
+     * uncombinable, which only costs a match of its own.
+     */
+    static boolean isCombinable(final Pattern pattern) {
+        return !GROUP_REFERENCE.matcher(pattern.pattern()).find();
+    }
+
+    /**
+     * @return pattern of the glob, or <tt>null</tt> if it has no wildcards
+     *         and so names a single method
+     */
+    static Pattern compileGlob(final String glob) {
+        if (glob.indexOf('*') == -1 && glob.indexOf('?') == -1) {
+            return null;
+        }
+        StringBuilder regex = new StringBuilder("^");
+        int literalStart = 0;
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            if (c == '*' || c == '?') {
+                if (i > literalStart) {
+                    regex.append(Pattern.quote(glob.substring(literalStart, i)));
+                }
+                regex.append(c == '*' ? ".*" : ".");
+                literalStart = i + 1;
+            }
+        }
+        if (literalStart < glob.length()) {
+            regex.append(Pattern.quote(glob.substring(literalStart)));
+        }
+        return Pattern.compile(regex.append('$').toString());
+    }
+
+    /**
+     * Compiles the Regexp for Java. Method names are matched anywhere, as
+     * by <tt>=~</tt>; constructs Java does not know are rejected.
+     */
+    static Pattern compileRegexp(final RubyRegexp regexp) {
+        String source = regexp.source().toString();
+        try {
+            return Pattern.compile(source, regexp.getOptions().isIgnorecase() ? Pattern.CASE_INSENSITIVE : 0);
+        } catch (PatternSyntaxException pse) {
+            throw regexp.getRuntime().newArgumentError("Unsupported method pattern " + source + ": " + pse.getDescription());
+        }
+    }
+}
@@ -24,11 +24,21 @@
  */
 package org.jruby.debug;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
 import org.jruby.Ruby;
+import org.jruby.RubyArray;
 import org.jruby.RubyClass;
+import org.jruby.RubyHash;
 import org.jruby.RubyKernel;
 import org.jruby.RubyModule;
+import org.jruby.RubyNumeric;
 import org.jruby.RubyProc;
+import org.jruby.RubyThread;
 import org.jruby.anno.JRubyMethod;
 import org.jruby.debug.RubyDebugBaseLibrary.DebugThread;
 import org.jruby.runtime.Block;
@@ -42,14 +52,17 @@ public final class RubyDebugger {
     static final String DEBUG_THREAD_NAME = "DebugThread";
     static final String CONTEXT_NAME = "Context";
     
-    private static Debugger debugger;
-    
     public static RubyModule createDebuggerModule(Ruby runtime) {
         
         /* Debugger module. */
         RubyModule debuggerMod = runtime.defineModule("Debugger");
         debuggerMod.defineAnnotatedMethods(RubyDebugger.class);
 
+        /* Each runtime gets its own debugger state, kept on its Debugger module. */
+        if (!(debuggerMod.dataGetStruct() instanceof Debugger)) {
+            debuggerMod.dataWrapStruct(new Debugger());
+        }
+
         /* Debugger::ThreadsTable */
         /* RubyClass threadsTable = */ debuggerMod.defineClassUnder("ThreadsTable", runtime.getObject(), runtime.getObject().getAllocator());
         
@@ -65,16 +78,42 @@ public final class RubyDebugger {
         RubyClass context = debuggerMod.defineClassUnder(CONTEXT_NAME, runtime.getObject(), CONTEXT_ALLOCATOR);
         context.defineAnnotatedMethods(Context.class);
 
+        /* Debugger::SourceCache */
+        RubyModule sourceCache = debuggerMod.defineModuleUnder("SourceCache");
+        sourceCache.defineAnnotatedMethods(RubySourceCache.class);
+
         return debuggerMod;
     }
     
-    private static Debugger debugger() {
-        synchronized (RubyDebugger.class) {
-            if (debugger == null) {
-                debugger = new Debugger();
-            }
-        }
-        return debugger;
+    /**
+     * Returns the {@link Debugger} which belongs to the given runtime. It is
+     * installed by {@link #createDebuggerModule}, so runtimes living in the
+     * same JVM never share breakpoints, contexts or event hook state.
+     */
+    static Debugger debugger(final Ruby runtime) {
+        return (Debugger) runtime.getModule("Debugger").dataGetStruct();
+    }
+
+    /**
+     * Registers a Java listener for the debugger events of the given
+     * runtime, which must have loaded the debugger. A listener registered
+     * twice is notified twice.
+     *
+     * @param async whether to notify the listener on a dispatcher thread
+     *        instead of the debugged one
+     */
+    public static void addEventListener(final Ruby runtime, final DebugEventListener listener, final boolean async) {
+        debugger(runtime).getEventDispatcher().add(listener, async);
+    }
+
+    /** Unregisters a listener added by {@link #addEventListener}. */
+    public static void removeEventListener(final Ruby runtime, final DebugEventListener listener) {
+        debugger(runtime).getEventDispatcher().remove(listener);
+    }
+
+    /** Calls {@link #debugger(Ruby)} with reciever's runtime. */
+    private static Debugger debugger(final IRubyObject recv) {
+        return debugger(recv.getRuntime());
     }
     
     /**
@@ -89,7 +128,7 @@ public final class RubyDebugger {
      */
     @JRubyMethod(name="start_", module=true)
     public static IRubyObject start(IRubyObject recv, Block block) {
-        return debugger().start(recv, block);
+        return debugger(recv).start(recv, block);
     }
 
     /**
@@ -102,85 +141,272 @@ public final class RubyDebugger {
      */
     @JRubyMethod(name="stop", module=true)
     public static IRubyObject stop(IRubyObject recv, Block block) {
-        boolean stopped = debugger().stop(recv.getRuntime());
+        boolean stopped = debugger(recv).stop(recv.getRuntime());
         return Util.toRBoolean(recv, stopped);
     }
     
     @JRubyMethod(name="started?", module=true)
     public static IRubyObject started_p(IRubyObject recv, Block block) {
-        return Util.toRBoolean(recv, debugger().isStarted());
+        return Util.toRBoolean(recv, debugger(recv).isStarted());
     }
 
     @JRubyMethod(name="breakpoints", module=true)
     public static IRubyObject breakpoints(IRubyObject recv, Block block) {
-        debugger().checkStarted(recv);
-        return debugger().getBreakpoints();
+        debugger(recv).checkStarted(recv);
+        return debugger(recv).getBreakpoints();
     }
 
+    /**
+     * Adopts changes made directly to the Array returned by
+     * <tt>Debugger.breakpoints</tt>. Called by its writers, see
+     * <tt>Debugger::BreakpointList</tt>; there is no need to call it
+     * otherwise.
+     */
+    @JRubyMethod(name="sync_breakpoints", module=true)
+    public static IRubyObject sync_breakpoints(IRubyObject recv, Block block) {
+        debugger(recv).syncBreakpoints();
+        return recv.getRuntime().getNil();
+    }
+
+    /**
+     * <pre>
+     * Debugger.add_breakpoint(file, line, expr = nil) -> breakpoint
+     * Debugger.add_breakpoint(class_name, method, expr = nil) -> breakpoint
+     * </pre>
+     * <p>
+     * A method breakpoint stops on calls of the named method, of methods
+     * matching a glob (<tt>'charge_*'</tt>, <tt>'*'</tt> for any method of
+     * the class) or of methods matching a Regexp (<tt>/^charge_/</tt>).
+     * </p>
+     */
     @JRubyMethod(name="add_breakpoint", module=true, required=2, optional=1)
     public static IRubyObject add_breakpoint(IRubyObject recv, IRubyObject[] args, Block block) {
-        return debugger().addBreakpoint(recv, args);
+        return debugger(recv).addBreakpoint(recv, args);
     }
 
     @JRubyMethod(name="remove_breakpoint", module=true, required=1)
     public static IRubyObject remove_breakpoint(IRubyObject recv, IRubyObject breakpointId, Block block) {
-        return debugger().removeBreakpoint(recv, breakpointId);
+        return debugger(recv).removeBreakpoint(recv, breakpointId);
+    }
+
+    /**
+     * <pre>
+     * Debugger.add_breakpoints([[source, pos, expr], ...]) -> array
+     * </pre>
+     * <p>
+     * Adds many breakpoints at once, each given by the arguments of
+     * <tt>add_breakpoint</tt>. Returns the new breakpoints.
+     * </p>
+     */
+    @JRubyMethod(name="add_breakpoints", module=true, required=1)
+    public static IRubyObject add_breakpoints(IRubyObject recv, IRubyObject specs, Block block) {
+        return debugger(recv).addBreakpoints(recv, specs);
+    }
+
+    /**
+     * <pre>
+     * Debugger.remove_breakpoints([id, ...]) -> array
+     * </pre>
+     * <p>
+     * Removes the breakpoints with the given ids at once. Returns the
+     * removed breakpoints.
+     * </p>
+     */
+    @JRubyMethod(name="remove_breakpoints", module=true, required=1)
+    public static IRubyObject remove_breakpoints(IRubyObject recv, IRubyObject breakpointIds, Block block) {
+        return debugger(recv).removeBreakpoints(recv, breakpointIds);
+    }
+
+    /**
+     * <pre>
+     * Debugger.replace_breakpoints([[source, pos, expr], ...]) -> array
+     * </pre>
+     * <p>
+     * Replaces all breakpoints by new ones, given like for
+     * <tt>add_breakpoints</tt>. Running threads switch from the old set to
+     * the new one at once, never seeing a partial update. Returns the new
+     * breakpoints.
+     * </p>
+     */
+    @JRubyMethod(name="replace_breakpoints", module=true, required=1)
+    public static IRubyObject replace_breakpoints(IRubyObject recv, IRubyObject specs, Block block) {
+        return debugger(recv).replaceBreakpoints(recv, specs);
+    }
+
+    /**
+     * <pre>
+     * Debugger.add_watchpoint(object, :@name, expr = nil) -> breakpoint
+     * </pre>
+     * <p>
+     * Adds a breakpoint which stops at the line after the instance variable
+     * of the object has changed. The variable is looked at only while the
+     * object is +self+. Values are compared by identity or as numbers,
+     * only other objects of the same class are compared by <tt>==</tt>.
+     * For local variables see <tt>Context#add_watchpoint</tt>.
+     * </p>
+     */
+    @JRubyMethod(name="add_watchpoint", module=true, required=2, optional=1)
+    public static IRubyObject add_watchpoint(IRubyObject recv, IRubyObject[] args, Block block) {
+        IRubyObject expr = args.length > 2 ? args[2] : recv.getRuntime().getNil();
+        return debugger(recv).addWatchpoint(recv, args[0], args[1], expr);
+    }
+
+    /**
+     * <pre>
+     * Debugger.executable_lines(file) -> array or nil
+     * </pre>
+     * <p>
+     * Returns sorted numbers of lines the debugger can stop at in the given
+     * file, as found by the JRuby parser. The table is cached until the file
+     * changes. Returns +nil+ if the file cannot be read or parsed.
+     * </p>
+     */
+    @JRubyMethod(name="executable_lines", module=true, required=1)
+    public static IRubyObject executable_lines(IRubyObject recv, IRubyObject file, Block block) {
+        return debugger(recv).executableLines(recv, file);
+    }
+
+    /**
+     * <pre>
+     * Debugger.snap_lines(file, lines) -> array
+     * </pre>
+     * <p>
+     * Validates many breakpoint lines at once. Every line is replaced by the
+     * nearest line the debugger can stop at (the same one a new breakpoint
+     * would be moved to), or +nil+ if the file has no such line. Lines are
+     * returned unchanged if the file cannot be parsed.
+     * </p>
+     */
+    @JRubyMethod(name="snap_lines", module=true, required=2)
+    public static IRubyObject snap_lines(IRubyObject recv, IRubyObject file, IRubyObject lines, Block block) {
+        return debugger(recv).snapLines(recv, file, lines);
+    }
+
+    @JRubyMethod(name="snap_breakpoints?", module=true)
+    public static IRubyObject snap_breakpoints_p(IRubyObject recv, Block block) {
+        return Util.toRBoolean(recv, debugger(recv).isSnapBreakpoints());
+    }
+
+    /**
+     * When +true+ (the default) line breakpoints set on a line the debugger
+     * cannot stop at, like a comment or a blank line, are moved to the next
+     * executable line when created.
+     */
+    @JRubyMethod(name="snap_breakpoints=", module=true, required=1)
+    public static IRubyObject snap_breakpoints_set(IRubyObject recv, IRubyObject snap, Block block) {
+        debugger(recv).setSnapBreakpoints(snap.isTrue());
+        return snap;
+    }
+
+    /**
+     * Removes and returns the snapshots taken by snapshot breakpoints, oldest
+     * first, as Hashes with <tt>:breakpoint</tt>, <tt>:thnum</tt>,
+     * <tt>:time</tt> (milliseconds), <tt>:file</tt>, <tt>:line</tt> and
+     * <tt>:frames</tt>. See <tt>Breakpoint#snapshot=</tt>.
+     */
+    @JRubyMethod(name="snapshots", module=true)
+    public static IRubyObject snapshots(IRubyObject recv, Block block) {
+        Ruby rt = recv.getRuntime();
+        RubyArray result = rt.newArray();
+        for (BreakpointSnapshot snapshot : debugger(recv).drainSnapshots()) {
+            result.append(snapshot.toHash(rt));
+        }
+        return result;
+    }
+
+    /** Like <tt>Debugger.snapshots</tt>, but returns a JSON array. */
+    @JRubyMethod(name="snapshots_json", module=true)
+    public static IRubyObject snapshots_json(IRubyObject recv, Block block) {
+        JsonWriter json = new JsonWriter();
+        json.beginArray();
+        for (BreakpointSnapshot snapshot : debugger(recv).drainSnapshots()) {
+            snapshot.writeJson(json);
+        }
+        json.endArray();
+        return recv.getRuntime().newString(json.toString());
+    }
+
+    /** Number of snapshots dropped since nobody drained the queue in time. */
+    @JRubyMethod(name="dropped_snapshots", module=true)
+    public static IRubyObject dropped_snapshots(IRubyObject recv, Block block) {
+        return recv.getRuntime().newFixnum(debugger(recv).getDroppedSnapshots());
+    }
+
+    /**
+     * Debugger.thread_dump(format = :text) -> string
+     * <p>
+     * Returns the Ruby stacks of all debugged threads, as text or, with
+     * <tt>:json</tt>, as a JSON array. Runs no Ruby code on the dumped
+     * threads and does not suspend them, so it works while they hang.
+     */
+    @JRubyMethod(name="thread_dump", module=true, optional=1)
+    public static IRubyObject thread_dump(IRubyObject recv, IRubyObject[] args, Block block) {
+        Ruby rt = recv.getRuntime();
+        List<DebugContext> debugContexts = debugger(recv).getDebugContextsSnapshot();
+        if (args.length == 0 || "text".equals(args[0].asJavaString())) {
+            return rt.newString(ThreadDump.text(debugContexts));
+        } else if ("json".equals(args[0].asJavaString())) {
+            JsonWriter json = new JsonWriter();
+            ThreadDump.json(json, debugContexts);
+            return rt.newString(json.toString());
+        }
+        throw rt.newArgumentError("Unknown format: " + args[0].asJavaString());
     }
 
     @JRubyMethod(name="catchpoints", module=true)
     public static IRubyObject catchpoint(IRubyObject recv, Block block) {
-        debugger().checkStarted(recv);
-        return debugger().getCatchpoints();
+        debugger(recv).checkStarted(recv);
+        return debugger(recv).getCatchpoints();
     }
 
     @JRubyMethod(name="add_catchpoint", module=true, required=1)
     public static IRubyObject addCatchpoint(IRubyObject recv, IRubyObject catchpoint, Block block) {
-        debugger().addCatchpoint(recv, catchpoint);
+        debugger(recv).addCatchpoint(recv, catchpoint);
         return catchpoint;
     }
 
     @JRubyMethod(name="last_context", module=true)
     public static IRubyObject last_context(IRubyObject recv, Block block) {
-        return debugger().lastInterrupted(recv);
+        return debugger(recv).lastInterrupted(recv);
     }
 
     @JRubyMethod(name="contexts", module=true)
     public static IRubyObject contexts(IRubyObject recv, Block block) {
-        return debugger().getDebugContexts(recv);
+        return debugger(recv).getDebugContexts(recv);
     }
 
     @JRubyMethod(name="current_context", module=true)
     public static IRubyObject current_context(IRubyObject recv, Block block) {
-        return debugger().getCurrentContext(recv);
+        return debugger(recv).getCurrentContext(recv);
     }
 
     @JRubyMethod(name="thread_context", module=true, required=1)
     public static IRubyObject thread_context(IRubyObject recv, IRubyObject context, Block block) {
-        return debugger().getCurrentContext(recv);
+        return debugger(recv).getCurrentContext(recv);
     }
 
     @JRubyMethod(name="suspend", module=true)
     public static IRubyObject suspend(IRubyObject recv, Block block) {
-        debugger().suspend(recv);
+        debugger(recv).suspend(recv);
         
         return recv;
     }
 
     @JRubyMethod(name="resume", module=true)
     public static IRubyObject resume(IRubyObject recv, Block block) {
-        debugger().resume(recv);
+        debugger(recv).resume(recv);
         
         return recv;
     }
 
     @JRubyMethod(name="tracing", module=true)
     public static IRubyObject tracing(IRubyObject recv, Block block) {
-        return recv.getRuntime().newBoolean(debugger().isTracing());
+        return recv.getRuntime().newBoolean(debugger(recv).isTracing());
     }
 
     @JRubyMethod(name="tracing=", module=true, required=1)
     public static IRubyObject tracing_set(IRubyObject recv, IRubyObject tracing, Block block) {
-        debugger().setTracing(tracing.isTrue());
+        debugger(recv).setTracing(tracing.isTrue());
         
         return tracing;
     }
@@ -201,12 +427,104 @@ public final class RubyDebugger {
      */
     @JRubyMethod(name="debug_load", module=true, required=1, optional=2)
     public static IRubyObject debug_load(IRubyObject recv, IRubyObject[] args, Block block) {
-        return debugger().load(recv, args);
+        return debugger(recv).load(recv, args);
+    }
+
+    /**
+     * <pre>
+     * Debugger.start_server(port = 0, host = '127.0.0.1') -> port
+     * </pre>
+     * <p>
+     * Starts the Java-side debug protocol server and returns the port it
+     * listens on. Clients send length-prefixed commands (<tt>threads</tt>,
+     * <tt>stack thnum [locals_depth]</tt>, <tt>breakpoints</tt>) and get
+     * JSON answers built directly from the debugger's frames, so the
+     * debugged threads do not need to run any Ruby code to serve them. The
+     * server is stopped together with the debugger.
+     * </p>
+     */
+    @JRubyMethod(name="start_server", module=true, optional=2)
+    public static IRubyObject start_server(IRubyObject recv, IRubyObject[] args, Block block) {
+        return debugger(recv).startServer(recv, args);
+    }
+
+    @JRubyMethod(name="stop_server", module=true)
+    public static IRubyObject stop_server(IRubyObject recv, Block block) {
+        return Util.toRBoolean(recv, debugger(recv).stopServer());
+    }
+
+    /**
+     * <pre>
+     * Debugger.start_call_trace(path, thread = nil, seconds = nil) -> nil
+     * </pre>
+     * <p>
+     * Starts writing a timeline of Ruby method calls to <i>path</i> in the
+     * Chrome trace event format, to be opened with chrome://tracing or
+     * Perfetto. Only calls of <i>thread</i> are recorded if given, and only
+     * during the first <i>seconds</i> if given. Events are streamed to the
+     * file while recording; they are dropped when the disk cannot keep up.
+     * </p>
+     */
+    @JRubyMethod(name="start_call_trace", module=true, required=1, optional=2)
+    public static IRubyObject start_call_trace(IRubyObject recv, IRubyObject[] args, Block block) {
+        return debugger(recv).startCallTrace(recv, args);
+    }
+
+    /**
+     * Finishes the call trace and returns a hash with the number of
+     * <tt>:events</tt> written and <tt>:dropped</tt>, or +nil+ if no trace
+     * was running.
+     */
+    @JRubyMethod(name="stop_call_trace", module=true)
+    public static IRubyObject stop_call_trace(IRubyObject recv, Block block) {
+        Ruby rt = recv.getRuntime();
+        CallTrace trace;
+        try {
+            trace = debugger(recv).stopCallTrace();
+        } catch (IOException ioe) {
+            throw rt.newIOErrorFromException(ioe);
+        }
+        if (trace == null) {
+            return rt.getNil();
+        }
+        RubyHash result = RubyHash.newHash(rt);
+        result.op_aset(rt.getCurrentContext(), rt.newSymbol("events"), rt.newFixnum(trace.getWritten()));
+        result.op_aset(rt.getCurrentContext(), rt.newSymbol("dropped"), rt.newFixnum(trace.getDropped()));
+        return result;
+    }
+
+    /**
+     * <pre>
+     * Debugger.start_agent(signal_file = nil) { |attached| ... } -> bool
+     * </pre>
+     * <p>
+     * Leaves the debugger dormant, with no event hook registered, until it
+     * is attached by the <tt>attach</tt> operation of the JMX MBean
+     * <tt>org.jruby.debug:type=DebuggerAgent</tt>, or by creating
+     * <i>signal_file</i>. <tt>detach</tt>, or deleting the file, stops the
+     * debugger again. The optional block is called with +true+ after
+     * attaching (e.g. to start a debugger interface) and with +false+ after
+     * detaching. Returns +false+ if the agent was already started.
+     * </p>
+     */
+    @JRubyMethod(name="start_agent", module=true, optional=1)
+    public static IRubyObject start_agent(IRubyObject recv, IRubyObject[] args, Block block) {
+        return debugger(recv).startAgent(recv, args, block);
+    }
+
+    @JRubyMethod(name="stop_agent", module=true)
+    public static IRubyObject stop_agent(IRubyObject recv, Block block) {
+        return Util.toRBoolean(recv, debugger(recv).stopAgent());
+    }
+
+    @JRubyMethod(name="agent_attached?", module=true)
+    public static IRubyObject agent_attached_p(IRubyObject recv, Block block) {
+        return Util.toRBoolean(recv, debugger(recv).isAgentAttached());
     }
 
     @JRubyMethod(name="skip", module=true)
     public static IRubyObject skip(IRubyObject recv, Block block) {
-        return debugger().skip(recv, block);
+        return debugger(recv).skip(recv, block);
     }
 
     @JRubyMethod(name="debug_at_exit", module=true)
@@ -219,14 +537,14 @@ public final class RubyDebugger {
 
     @JRubyMethod(name="post_mortem?", module=true)
     public static IRubyObject post_mortem_p(IRubyObject recv, Block block) {
-        return Util.toRBoolean(recv, debugger().isPostMortem());
+        return Util.toRBoolean(recv, debugger(recv).isPostMortem());
     }
 
     @JRubyMethod(name="post_mortem=", module=true, required=1)
     public static IRubyObject post_mortem_set(IRubyObject recv, IRubyObject postMortem, Block block) {
         throw recv.getRuntime().newRuntimeError("Post mortem debugging is not (yet) supported");
         /*
-        debugger().setPostMortem(postMortem.isTrue());
+        debugger(recv).setPostMortem(postMortem.isTrue());
         
         return postMortem;
         */
@@ -234,36 +552,186 @@ public final class RubyDebugger {
 
     @JRubyMethod(name="keep_frame_binding?", module=true)
     public static IRubyObject keep_frame_binding_p(IRubyObject recv, Block block) {
-        return recv.getRuntime().newBoolean(debugger().isKeepFrameBinding());
+        return recv.getRuntime().newBoolean(debugger(recv).isKeepFrameBinding());
     }
 
     @JRubyMethod(name="keep_frame_binding=", module=true, required=1)
     public static IRubyObject keep_frame_binding_set(IRubyObject recv, IRubyObject keepFrameBinding, Block block) {
-        debugger().setKeepFrameBinding(keepFrameBinding.isTrue());
+        debugger(recv).setKeepFrameBinding(keepFrameBinding.isTrue());
         
         return keepFrameBinding;
     }
     
     @JRubyMethod(name="track_frame_args?", module=true)
     public static IRubyObject track_frame_args_p(IRubyObject recv, Block block) {
-        return recv.getRuntime().newBoolean(debugger().isTrackFrameArgs());
+        return recv.getRuntime().newBoolean(debugger(recv).isTrackFrameArgs());
     }
 
     @JRubyMethod(name="track_frame_args=", module=true, required=1)
     public static IRubyObject track_frame_args_set(IRubyObject recv, IRubyObject traceFrameArgs, Block block) {
-        debugger().setTrackFrameArgs(traceFrameArgs.isTrue());
+        debugger(recv).setTrackFrameArgs(traceFrameArgs.isTrue());
         
         return traceFrameArgs;
     }    
 
+    @JRubyMethod(name="frame_limit", module=true)
+    public static IRubyObject frame_limit(IRubyObject recv, Block block) {
+        int limit = debugger(recv).getFrameLimit();
+        return limit <= 0 ? recv.getRuntime().getNil() : recv.getRuntime().newFixnum(limit);
+    }
+
+    /**
+     * Number of frames of each thread, counted from the top one, the
+     * debugger keeps in full. Deeper frames keep only their position, are
+     * reported as dead and repetitions of them are folded, so deep recursion
+     * takes little memory. +nil+ keeps all frames in full.
+     */
+    @JRubyMethod(name="frame_limit=", module=true, required=1)
+    public static IRubyObject frame_limit_set(IRubyObject recv, IRubyObject limit, Block block) {
+        int frameLimit = limit.isNil() ? 0 : RubyNumeric.fix2int(limit);
+        if (frameLimit < 0) {
+            throw recv.getRuntime().newArgumentError("Frame limit can't be negative.");
+        }
+        debugger(recv).setFrameLimit(frameLimit);
+        return limit;
+    }
+
+    /**
+     * Threads set by track_threads=, or +nil+ when all threads are tracked
+     * except those untracked by Context#tracked=.
+     */
+    @JRubyMethod(name="track_threads", module=true)
+    public static IRubyObject track_threads(IRubyObject recv, Block block) {
+        RubyThread[] tracked = debugger(recv).getTrackedThreads();
+        return tracked == null ? recv.getRuntime().getNil() : recv.getRuntime().newArray(Arrays.copyOf(tracked, tracked.length, IRubyObject[].class));
+    }
+
+    /**
+     * Restricts the debugger to the given threads, e.g. the one serving a
+     * request. Events of all other threads are dropped right away: they
+     * neither stop nor keep frames, which are rebuilt from the backtrace
+     * when a thread gets tracked later on. +nil+ tracks all threads. See
+     * also Context#tracked=.
+     */
+    @JRubyMethod(name="track_threads=", module=true, required=1)
+    public static IRubyObject track_threads_set(IRubyObject recv, IRubyObject threads, Block block) {
+        RubyThread[] tracked = null;
+        if (!threads.isNil()) {
+            IRubyObject[] given = threads.convertToArray().toJavaArray();
+            tracked = new RubyThread[given.length];
+            for (int i = 0; i < given.length; i++) {
+                if (!(given[i] instanceof RubyThread)) {
+                    throw recv.getRuntime().newTypeError("thread expected, got " + given[i].getMetaClass().getName());
+                }
+                tracked[i] = (RubyThread) given[i];
+            }
+        }
+        debugger(recv).setTrackedThreads(tracked);
+        return threads;
+    }
+
+    @JRubyMethod(name="include_paths", module=true)
+    public static IRubyObject include_paths(IRubyObject recv, Block block) {
+        ScopeFilter scope = debugger(recv).getScopeFilter();
+        return toRubyArray(recv.getRuntime(), scope == null ? new String[0] : scope.getIncludes());
+    }
+
+    /**
+     * Restricts debugging ("just my code") to files matching any of the given
+     * path patterns, e.g. <tt>['app', 'lib/**&#47;*.rb']</tt>. Out of scope
+     * files are run through by stepping and their breakpoints are ignored.
+     * +nil+ or an empty array includes all files.
+     */
+    @JRubyMethod(name="include_paths=", module=true, required=1)
+    public static IRubyObject include_paths_set(IRubyObject recv, IRubyObject paths, Block block) {
+        Debugger debugger = debugger(recv);
+        ScopeFilter scope = debugger.getScopeFilter();
+        debugger.setScope(toStringList(paths), scope == null ? Collections.<String>emptyList() : Arrays.asList(scope.getExcludes()));
+        return paths;
+    }
+
+    @JRubyMethod(name="exclude_paths", module=true)
+    public static IRubyObject exclude_paths(IRubyObject recv, Block block) {
+        ScopeFilter scope = debugger(recv).getScopeFilter();
+        return toRubyArray(recv.getRuntime(), scope == null ? new String[0] : scope.getExcludes());
+    }
+
+    /**
+     * Excludes files matching any of the given path patterns from debugging,
+     * e.g. gems or the standard library; see #include_paths=. +nil+ or an
+     * empty array excludes nothing.
+     */
+    @JRubyMethod(name="exclude_paths=", module=true, required=1)
+    public static IRubyObject exclude_paths_set(IRubyObject recv, IRubyObject paths, Block block) {
+        Debugger debugger = debugger(recv);
+        ScopeFilter scope = debugger.getScopeFilter();
+        debugger.setScope(scope == null ? Collections.<String>emptyList() : Arrays.asList(scope.getIncludes()), toStringList(paths));
+        return paths;
+    }
+
+    private static List<String> toStringList(IRubyObject paths) {
+        List<String> result = new ArrayList<String>();
+        if (paths.isNil()) {
+            return result;
+        }
+        for (IRubyObject path : paths.convertToArray().toJavaArray()) {
+            result.add(path.convertToString().toString());
+        }
+        return result;
+    }
+
+    private static RubyArray toRubyArray(Ruby runtime, String[] strings) {
+        RubyArray result = runtime.newArray();
+        for (String string : strings) {
+            result.append(runtime.newString(string));
+        }
+        return result;
+    }
+
+    @JRubyMethod(name="history_size", module=true)
+    public static IRubyObject history_size(IRubyObject recv, Block block) {
+        return recv.getRuntime().newFixnum(debugger(recv).getHistorySize());
+    }
+
+    /**
+     * Number of the last line, call and return events each thread keeps for
+     * Context#history. Memory is reserved up front for every thread. Zero
+     * (the default) turns recording off.
+     */
+    @JRubyMethod(name="history_size=", module=true, required=1)
+    public static IRubyObject history_size_set(IRubyObject recv, IRubyObject size, Block block) {
+        int historySize = RubyNumeric.fix2int(size);
+        if (historySize < 0) {
+            throw recv.getRuntime().newArgumentError("History size can't be negative.");
+        }
+        debugger(recv).setHistory(historySize, debugger(recv).isHistoryLocals());
+        return size;
+    }
+
+    @JRubyMethod(name="history_locals?", module=true)
+    public static IRubyObject history_locals_p(IRubyObject recv, Block block) {
+        return recv.getRuntime().newBoolean(debugger(recv).isHistoryLocals());
+    }
+
+    /**
+     * When +true+, line events in the history also keep local variables
+     * holding +nil+, booleans, Fixnums or Floats which changed since the
+     * previous line.
+     */
+    @JRubyMethod(name="history_locals=", module=true, required=1)
+    public static IRubyObject history_locals_set(IRubyObject recv, IRubyObject locals, Block block) {
+        debugger(recv).setHistory(debugger(recv).getHistorySize(), locals.isTrue());
+        return locals;
+    }
+
     @JRubyMethod(name="debug", module=true)
     public static IRubyObject debug(IRubyObject recv, Block block) {
-        return Util.toRBoolean(recv, debugger().isDebug());
+        return Util.toRBoolean(recv, debugger(recv).isDebug());
     }
 
     @JRubyMethod(name="debug=", module=true, required=1)
     public static IRubyObject debug_set(IRubyObject recv, IRubyObject debug, Block block) {
-        debugger().setDebug(debug.isTrue());
+        debugger(recv).setDebug(debug.isTrue());
         
         return debug;
     }
@@ -276,7 +744,7 @@ public final class RubyDebugger {
 
     private static final ObjectAllocator CONTEXT_ALLOCATOR = new ObjectAllocator() {
         public IRubyObject allocate(Ruby runtime, RubyClass klass) {
-            return new Context(runtime, klass, debugger());
+            return new Context(runtime, klass, debugger(runtime));
         }
     };
 }
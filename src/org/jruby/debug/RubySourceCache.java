@@ -0,0 +1,148 @@
+/*
+ * header & license
+ * Copyright (c) 2008 debug-commons team
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.jruby.debug;
+
+import org.jruby.Ruby;
+import org.jruby.RubyArray;
+import org.jruby.RubyNumeric;
+import org.jruby.RubyString;
+import org.jruby.anno.JRubyMethod;
+import org.jruby.runtime.Block;
+import org.jruby.runtime.builtin.IRubyObject;
+import org.jruby.util.ByteList;
+
+/**
+ * Debugger::SourceCache module. Java-backed storage for LineCache: lines of
+ * source files are served from the {@link LineIndex}es of the
+ * runtime's {@link SourceCache}; Ruby Strings are only created for the
+ * lines asked for, or once per index for <tt>getlines</tt>.
+ */
+public final class RubySourceCache {
+
+    private RubySourceCache() {/* forbid instances */}
+
+    private static SourceCache sourceCache(IRubyObject recv) {
+        return RubyDebugger.debugger(recv.getRuntime()).getSourceCache();
+    }
+
+    /** Indexes the file if needed. Returns <tt>true</tt> if it is readable. */
+    @JRubyMethod(name="load", module=true, required=1)
+    public static IRubyObject load(IRubyObject recv, IRubyObject path, Block block) {
+        return Util.toRBoolean(recv, sourceCache(recv).get(path.convertToString().toString()) != null);
+    }
+
+    @JRubyMethod(name="getline", module=true, required=2)
+    public static IRubyObject getline(IRubyObject recv, IRubyObject path, IRubyObject line, Block block) {
+        LineIndex index = sourceCache(recv).get(path.convertToString().toString());
+        if (index == null) {
+            return Util.nil(recv);
+        }
+        byte[] bytes = index.getLine(RubyNumeric.fix2int(line));
+        return bytes == null ? Util.nil(recv) : newString(recv.getRuntime(), bytes);
+    }
+
+    @JRubyMethod(name="getlines", module=true, required=1)
+    public static IRubyObject getlines(IRubyObject recv, IRubyObject path, Block block) {
+        LineIndex index = sourceCache(recv).get(path.convertToString().toString());
+        if (index == null) {
+            return Util.nil(recv);
+        }
+        // built once per index, as LineCache did; a modified file gets a new index
+        RubyArray lines = index.getRubyLines();
+        if (lines == null) {
+            Ruby runtime = recv.getRuntime();
+            int count = index.getLineCount();
+            lines = runtime.newArray(count);
+            for (int i = 1; i <= count; i++) {
+                lines.append(newString(runtime, index.getLine(i)));
+            }
+            index.setRubyLines(lines);
+        }
+        return lines;
+    }
+
+    @JRubyMethod(name="size", module=true, required=1)
+    public static IRubyObject size(IRubyObject recv, IRubyObject path, Block block) {
+        LineIndex index = sourceCache(recv).get(path.convertToString().toString());
+        return index == null ? Util.nil(recv) : recv.getRuntime().newFixnum(index.getLineCount());
+    }
+
+    @JRubyMethod(name="sha1", module=true, required=1)
+    public static IRubyObject sha1(IRubyObject recv, IRubyObject path, Block block) {
+        LineIndex index = sourceCache(recv).get(path.convertToString().toString());
+        return index == null ? Util.nil(recv) : recv.getRuntime().newString(index.getSha1());
+    }
+
+    /**
+     * Whether the file was modified since indexed, or is not indexed at all.
+     * Does not touch the file system for files in watched directories.
+     */
+    @JRubyMethod(name="stale?", module=true, required=1)
+    public static IRubyObject stale_p(IRubyObject recv, IRubyObject path, Block block) {
+        return Util.toRBoolean(recv, sourceCache(recv).isStale(path.convertToString().toString()));
+    }
+
+    /**
+     * Version of the file's current index, or +nil+ if it is stale or not
+     * indexed. Changes whenever the file is indexed again, e.g. by
+     * <tt>getline</tt> after the watcher evicted it. Like <tt>stale?</tt>,
+     * does not touch the file system for files in watched directories.
+     */
+    @JRubyMethod(name="version", module=true, required=1)
+    public static IRubyObject version(IRubyObject recv, IRubyObject path, Block block) {
+        long version = sourceCache(recv).getVersion(path.convertToString().toString());
+        return version < 0 ? Util.nil(recv) : recv.getRuntime().newFixnum(version);
+    }
+
+    /**
+     * Whether modifications of cached files are detected by file system
+     * events. If not, <tt>stale?</tt> has to stat the file.
+     */
+    @JRubyMethod(name="watching?", module=true)
+    public static IRubyObject watching_p(IRubyObject recv, Block block) {
+        return Util.toRBoolean(recv, sourceCache(recv).isWatching());
+    }
+
+    @JRubyMethod(name="watching=", module=true, required=1)
+    public static IRubyObject watching_set(IRubyObject recv, IRubyObject watching, Block block) {
+        sourceCache(recv).setWatching(watching.isTrue());
+        return watching;
+    }
+
+    @JRubyMethod(name="evict", module=true, required=1)
+    public static IRubyObject evict(IRubyObject recv, IRubyObject path, Block block) {
+        sourceCache(recv).evict(path.convertToString().toString());
+        return Util.nil(recv);
+    }
+
+    @JRubyMethod(name="clear", module=true)
+    public static IRubyObject clear(IRubyObject recv, Block block) {
+        sourceCache(recv).clear();
+        return Util.nil(recv);
+    }
+
+    private static RubyString newString(Ruby runtime, byte[] bytes) {
+        return RubyString.newString(runtime, new ByteList(bytes, runtime.getDefaultExternalEncoding(), false));
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * header & license
+ * Copyright (c) 2008 debug-commons team
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.jruby.debug;
+
+import java.util.Arrays;
+
+import org.jruby.Ruby;
+import org.jruby.RubyFixnum;
+import org.jruby.RubyString;
+
+/**
+ * Ruby values of file names and line numbers passed to the callbacks of
+ * {@link DebugEventHook}, created once and shared from then on. File names
+ * are frozen strings kept per {@link FileIdTable file id}; Fixnums are
+ * immutable anyway and kept for lines up to {@link #MAX_CACHED_LINE}.
+ * <p>
+ * Used under the hook's lock. Should two threads grow a table at once, the
+ * entries lost are simply created again.
+ */
+final class RubyValueCache {
+
+    /** Lines above are rare enough to get a new Fixnum each time. */
+    static final int MAX_CACHED_LINE = 1 << 16;
+
+    private final Ruby runtime;
+    private final FileIdTable fileIds;
+    private volatile RubyString[] files = new RubyString[64];
+    private volatile RubyFixnum[] lines = new RubyFixnum[1024];
+
+    RubyValueCache(final Ruby runtime, final FileIdTable fileIds) {
+        this.runtime = runtime;
+        this.fileIds = fileIds;
+    }
+
+    RubyString file(final String file) {
+        int id = fileIds.getId(file);
+        RubyString[] current = files;
+        if (id < current.length && current[id] != null) {
+            return current[id];
+        }
+        RubyString result = runtime.newString(file);
+        result.setFrozen(true);
+        if (id >= current.length) {
+            current = Arrays.copyOf(current, Math.max(current.length * 2, id + 1));
+        }
+        current[id] = result;
+        files = current;
+        return result;
+    }
+
+    RubyFixnum line(final int line) {
+        if (line < 0 || line > MAX_CACHED_LINE) {
+            return runtime.newFixnum(line);
+        }
+        RubyFixnum[] current = lines;
+        if (line < current.length && current[line] != null) {
+            return current[line];
+        }
+        RubyFixnum result = runtime.newFixnum(line);
+        if (line >= current.length) {
+            current = Arrays.copyOf(current, Math.min(Math.max(current.length * 2, line + 1), MAX_CACHED_LINE + 1));
+        }
+        current[line] = result;
+        lines = current;
+        return result;
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * header & license
+ * Copyright (c) 2008 debug-commons team
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.jruby.debug;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Which source files are debugged ("just my code"). A file is in scope if
+ * it matches an include pattern, or there are none, and matches no exclude
+ * pattern. Events of other files only keep the frames up to date: they
+ * never stop a thread, so stepping runs through them until it gets back to
+ * code in scope.
+ * <p>
+ * Patterns are matched against file names as reported by the hook, i.e.
+ * relative to the working directory when below it. <tt>*</tt> and
+ * <tt>?</tt> match within a directory, <tt>**</tt> across directories; a
+ * pattern without wildcards matches the file or directory it names. All
+ * patterns of a kind are compiled into one regular expression, whose
+ * result is cached per file id.
+ */
+final class ScopeFilter {
+
+    private static final byte UNKNOWN = 0;
+    private static final byte IN = 1;
+    private static final byte OUT = 2;
+
+    private final String[] includes;
+    private final String[] excludes;
+    private final Pattern include;
+    private final Pattern exclude;
+    private volatile byte[] cache = new byte[64];
+
+    ScopeFilter(final List<String> includes, final List<String> excludes) {
+        this.includes = includes.toArray(new String[includes.size()]);
+        this.excludes = excludes.toArray(new String[excludes.size()]);
+        this.include = compile(this.includes);
+        this.exclude = compile(this.excludes);
+    }
+
+    String[] getIncludes() {
+        return includes.clone();
+    }
+
+    String[] getExcludes() {
+        return excludes.clone();
+    }
+
+    /**
+     * @param fileId id of the file in {@link Debugger#getFileIds}
+     */
+    boolean isInScope(final int fileId, final String file) {
+        byte[] current = cache;
+        if (fileId < current.length && current[fileId] != UNKNOWN) {
+            return current[fileId] == IN;
+        }
+        boolean result = matches(file);
+        if (fileId >= current.length) {
+            // racing threads might lose each other's entries, which are computed again
+            current = Arrays.copyOf(current, Math.max(current.length * 2, fileId + 1));
+        }
+        current[fileId] = result ? IN : OUT;
+        cache = current;
+        return result;
+    }
+
+    boolean matches(String file) {
+        if (file.startsWith("./")) {
+            file = file.substring(2);
+        }
+        return (include == null || include.matcher(file).matches()) &&
+                (exclude == null || !exclude.matcher(file).matches());
+    }
+
+    private static Pattern compile(final String[] patterns) {
+        if (patterns.length == 0) {
+            return null;
+        }
+        StringBuilder regex = new StringBuilder();
+        for (String pattern : patterns) {
+            if (regex.length() > 0) {
+                regex.append('|');
+            }
+            regex.append("(?:").append(globToRegex(pattern)).append(')');
+        }
+        return Pattern.compile(regex.toString());
+    }
+
+    static String globToRegex(String glob) {
+        if (glob.startsWith("./")) {
+            glob = glob.substring(2);
+        }
+        boolean wildcards = glob.indexOf('*') != -1 || glob.indexOf('?') != -1;
+        if (!wildcards) {
+            // a file or everything below a directory
+            while (glob.endsWith("/") && glob.length() > 1) {
+                glob = glob.substring(0, glob.length() - 1);
+            }
+            return Pattern.quote(glob) + "(?:/.*)?";
+        }
+        StringBuilder regex = new StringBuilder();
+        int literalStart = 0;
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            if (c != '*' && c != '?') {
+                continue;
+            }
+            if (i > literalStart) {
+                regex.append(Pattern.quote(glob.substring(literalStart, i)));
+            }
+            if (c == '?') {
+                regex.append("[^/]");
+            } else if (glob.startsWith("**/", i)) {
+                // any directories, including none
+                regex.append("(?:.*/)?");
+                i += 2;
+            } else if (glob.startsWith("**", i)) {
+                regex.append(".*");
+                i++;
+            } else {
+                regex.append("[^/]*");
+            }
+            literalStart = i + 1;
+        }
+        if (literalStart < glob.length()) {
+            regex.append(Pattern.quote(glob.substring(literalStart)));
+        }
+        return regex.toString();
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * header & license
+ * Copyright (c) 2008 debug-commons team
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.jruby.debug;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * {@link LineIndex}es of source files keyed by absolute path. Entries are
+ * never checked for modifications implicitly; see {@link #isStale}. When
+ * the platform supports it, a {@link SourceWatcher} invalidates and evicts
+ * entries of modified files, so {@link #isStale} needs to stat only files
+ * whose directory is not watched. Watch events arrive asynchronously, a
+ * modification is noticed a moment after it happened.
+ */
+final class SourceCache {
+
+    private final ConcurrentMap<String, LineIndex> indexes = new ConcurrentHashMap<String, LineIndex>();
+
+    private boolean watchingEnabled = true;
+    private volatile SourceWatcher watcher;
+
+    /**
+     * Returns index of the given file, indexing it on first access.
+     *
+     * @return index or <tt>null</tt> if the file cannot be read
+     */
+    LineIndex get(final String path) {
+        String key = key(path);
+        LineIndex index = indexes.get(key);
+        if (index == null) {
+            File file = new File(key);
+            if (!file.isFile()) {
+                return null;
+            }
+            // watch before reading, so no modification after the read is missed
+            SourceWatcher watchedBy = watch(file);
+            try {
+                index = LineIndex.load(file);
+            } catch (IOException ioe) {
+                return null;
+            }
+            index.setWatcher(watchedBy);
+            LineIndex previous = indexes.putIfAbsent(key, index);
+            if (previous != null) {
+                index = previous;
+            } else if (watchedBy != null && index.isStale()) {
+                // modified while being read, its event might have been handled already
+                index.invalidate();
+                indexes.remove(key, index);
+            }
+        }
+        return index;
+    }
+
+    /** Like {@link #get} but re-indexes the file first if it was modified. */
+    LineIndex getFresh(final String path) {
+        LineIndex index = indexes.get(key(path));
+        if (index != null && isStale(index)) {
+            indexes.remove(key(path), index);
+        }
+        return get(path);
+    }
+
+    boolean isCached(final String path) {
+        return indexes.containsKey(key(path));
+    }
+
+    /** Not cached files are considered stale. */
+    boolean isStale(final String path) {
+        LineIndex index = indexes.get(key(path));
+        return index == null || isStale(index);
+    }
+
+    /**
+     * @return version of the file's index, or <tt>-1</tt> if it is stale or
+     *         not cached; see {@link LineIndex#getVersion}
+     */
+    long getVersion(final String path) {
+        LineIndex index = indexes.get(key(path));
+        return index == null || isStale(index) ? -1 : index.getVersion();
+    }
+
+    private boolean isStale(final LineIndex index) {
+        if (index.isInvalidated()) {
+            return true;
+        }
+        SourceWatcher current = watcher;
+        if (current != null && index.getWatcher() == current && current.isWatched(index.getFile())) {
+            return false; // the watcher invalidates it on change
+        }
+        return index.isStale();
+    }
+
+    void evict(final String path) {
+        LineIndex index = indexes.remove(key(path));
+        if (index != null) {
+            index.invalidate();
+        }
+    }
+
+    void clear() {
+        for (LineIndex index : indexes.values()) {
+            index.invalidate();
+        }
+        indexes.clear();
+    }
+
+    boolean isWatching() {
+        return watcher != null;
+    }
+
+    /**
+     * Turns file watching on or off. With watching off every staleness
+     * check stats the file.
+     */
+    synchronized void setWatching(final boolean watching) {
+        watchingEnabled = watching;
+        if (!watching && watcher != null) {
+            watcher.close();
+            watcher = null;
+        }
+    }
+
+    /**
+     * Stops the watcher thread, if any. Files indexed so far are checked by
+     * stat from now on. Watching resumes on the next indexed file unless it
+     * was turned off by {@link #setWatching}.
+     */
+    synchronized void close() {
+        if (watcher != null) {
+            watcher.close();
+            watcher = null;
+        }
+    }
+
+    /** @return watcher reporting changes of the file, or <tt>null</tt> */
+    private SourceWatcher watch(final File file) {
+        SourceWatcher current = watcher;
+        if (current == null) {
+            synchronized (this) {
+                if (watcher == null && watchingEnabled) {
+                    watcher = SourceWatcher.start(this);
+                    watchingEnabled = watcher != null;
+                }
+                current = watcher;
+            }
+        }
+        return current != null && current.watch(file) ? current : null;
+    }
+
+    private static String key(final String path) {
+        return new File(path).getAbsoluteFile().toPath().normalize().toString();
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * header & license
+ * Copyright (c) 2008 debug-commons team
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.jruby.debug;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+/**
+ * Evicts entries of a {@link SourceCache} when their files change, using
+ * the platform {@link WatchService} on directories of cached files. While
+ * a file's directory is watched by the watcher which was running when the
+ * file was indexed, the cache does not stat the file to find out whether it
+ * is up to date. One thread per watcher; {@link #close} stops it.
+ */
+final class SourceWatcher implements Runnable {
+
+    private static final Logger LOGGER = Logger.getLogger(SourceWatcher.class.getName());
+
+    private final SourceCache cache;
+    private final WatchService watchService;
+    private final Map<Path, WatchKey> directories = new ConcurrentHashMap<Path, WatchKey>();
+    private final Thread thread;
+
+    private SourceWatcher(SourceCache cache, WatchService watchService) {
+        this.cache = cache;
+        this.watchService = watchService;
+        this.thread = new Thread(this, "Debugger::SourceWatcher");
+        thread.setDaemon(true);
+    }
+
+    /**
+     * @return running watcher, or <tt>null</tt> if the platform offers no
+     *         native file watching; stat polling has to be used then
+     */
+    static SourceWatcher start(final SourceCache cache) {
+        WatchService watchService;
+        try {
+            watchService = FileSystems.getDefault().newWatchService();
+        } catch (IOException ioe) {
+            LOGGER.fine("File watching not available: " + ioe);
+            return null;
+        } catch (UnsupportedOperationException uoe) {
+            LOGGER.fine("File watching not available: " + uoe);
+            return null;
+        }
+        // The JDK's fallback implementation polls with a delay of seconds,
+        // which is both slower and less accurate than checking mtime.
+        if (watchService.getClass().getName().contains("Polling")) {
+            try {
+                watchService.close();
+            } catch (IOException ignored) {
+            }
+            return null;
+        }
+        SourceWatcher watcher = new SourceWatcher(cache, watchService);
+        watcher.thread.start();
+        return watcher;
+    }
+
+    /**
+     * Starts watching directory of the given file.
+     *
+     * @return whether changes of the file will be reported
+     */
+    boolean watch(final File file) {
+        Path dir = directory(file);
+        if (dir == null) {
+            return false;
+        }
+        if (directories.containsKey(dir)) {
+            return true;
+        }
+        try {
+            WatchKey key = dir.register(watchService,
+                    StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_DELETE,
+                    StandardWatchEventKinds.ENTRY_MODIFY);
+            directories.put(dir, key);
+            return true;
+        } catch (IOException ioe) {
+            LOGGER.fine("Cannot watch " + dir + ": " + ioe);
+        } catch (ClosedWatchServiceException cwse) {
+            // closing down
+        }
+        return false;
+    }
+
+    boolean isWatched(final File file) {
+        Path dir = directory(file);
+        return dir != null && directories.containsKey(dir);
+    }
+
+    void close() {
+        directories.clear();
+        try {
+            watchService.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    public void run() {
+        try {
+            while (true) {
+                WatchKey key = watchService.take();
+                Path dir = (Path) key.watchable();
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        // events were lost, nothing in the cache can be trusted
+                        cache.clear();
+                        continue;
+                    }
+                    cache.evict(dir.resolve((Path) event.context()).toString());
+                }
+                if (!key.reset()) {
+                    // directory is gone; its files fall back to stat checks
+                    directories.remove(dir);
+                }
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        } catch (ClosedWatchServiceException cwse) {
+            // closed
+        }
+    }
+
+    private static Path directory(final File file) {
+        File parent = file.getAbsoluteFile().getParentFile();
+        return parent == null ? null : parent.toPath().normalize();
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * header & license
+ * Copyright (c) 2008 debug-commons team
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.jruby.debug;
+
+import java.util.List;
+
+import org.jruby.RubyThread;
+
+/**
+ * Ruby level stacks of all debugged threads, read from the frames the
+ * debugger keeps for each {@link DebugContext}. Runs no Ruby code and does
+ * not suspend any thread, so it works while Ruby threads hang; stacks of
+ * running threads are as recent as their last event.
+ */
+final class ThreadDump {
+
+    private ThreadDump() {
+    }
+
+    static String text(final List<DebugContext> debugContexts) {
+        StringBuilder out = new StringBuilder();
+        for (DebugContext debugContext : debugContexts) {
+            out.append("Thread ").append(debugContext.getThnum());
+            Thread nativeThread = nativeThread(debugContext);
+            if (nativeThread != null) {
+                out.append(" \"").append(nativeThread.getName()).append("\" ").append(nativeThread.getState());
+            }
+            if (debugContext.isSuspended()) {
+                out.append(" suspended");
+            }
+            if (debugContext.isIgnored()) {
+                out.append(" ignored");
+            }
+            out.append('\n');
+            for (DebugFrame frame : debugContext.getFramesSnapshot()) {
+                out.append("\tfrom ").append(frame.getFile()).append(':').append(frame.getLine());
+                if (frame.getMethodName() != null) {
+                    out.append(":in `").append(frame.getMethodName()).append('\'');
+                }
+                out.append('\n');
+                if (frame.getRepeat() > 0) {
+                    out.append("\t ... ").append(frame.getRepeat()).append(" more times\n");
+                }
+            }
+            int dropped = debugContext.getFrameStack().getDropped();
+            if (dropped > 0) {
+                out.append("\t ... ").append(dropped).append(" frames dropped\n");
+            }
+        }
+        return out.toString();
+    }
+
+    static void json(final JsonWriter json, final List<DebugContext> debugContexts) {
+        json.beginArray();
+        for (DebugContext debugContext : debugContexts) {
+            json.beginObject();
+            json.name("thnum").value(debugContext.getThnum());
+            Thread nativeThread = nativeThread(debugContext);
+            json.name("name").value(nativeThread == null ? null : nativeThread.getName());
+            json.name("state").value(nativeThread == null ? null : nativeThread.getState().name().toLowerCase());
+            json.name("suspended").value(debugContext.isSuspended());
+            json.name("ignored").value(debugContext.isIgnored());
+            json.name("frames").beginArray();
+            for (DebugFrame frame : debugContext.getFramesSnapshot()) {
+                json.beginObject();
+                json.name("file").value(frame.getFile());
+                json.name("line").value(frame.getLine());
+                json.name("method").value(frame.getMethodName());
+                if (frame.getRepeat() > 0) {
+                    json.name("repeat").value(frame.getRepeat());
+                }
+                json.endObject();
+            }
+            json.endArray();
+            int dropped = debugContext.getFrameStack().getDropped();
+            if (dropped > 0) {
+                json.name("dropped").value(dropped);
+            }
+            json.endObject();
+        }
+        json.endArray();
+    }
+
+    private static Thread nativeThread(final DebugContext debugContext) {
+        RubyThread thread = debugContext.getThread();
+        return thread == null ? null : thread.getNativeThread();
+    }
+}
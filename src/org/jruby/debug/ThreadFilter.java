@@ -0,0 +1,94 @@
+/*
+ * header & license
+ * Copyright (c) 2008 debug-commons team
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.jruby.debug;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+import org.jruby.RubyThread;
+
+/**
+ * Threads whose events the debugger processes. Either an allowlist set by
+ * <tt>Debugger.track_threads=</tt>, or the threads untracked by
+ * <tt>Context#tracked=</tt> while all others are tracked, so threads
+ * started later are tracked too. Immutable; the event hook checks it with
+ * one identity lookup, never calling Ruby's <tt>==</tt>.
+ */
+final class ThreadFilter {
+
+    private final Set<RubyThread> threads;
+    private final boolean allow;
+
+    private ThreadFilter(final Set<RubyThread> threads, final boolean allow) {
+        this.threads = threads;
+        this.allow = allow;
+    }
+
+    /** Tracks the given threads only. */
+    static ThreadFilter only(final RubyThread[] threads) {
+        Set<RubyThread> set = newSet();
+        Collections.addAll(set, threads);
+        return new ThreadFilter(set, true);
+    }
+
+    /**
+     * @return the filter with the thread tracked or not, <tt>null</tt> if
+     *         that tracks all threads
+     */
+    static ThreadFilter update(final ThreadFilter filter, final RubyThread thread, final boolean tracked) {
+        if (filter == null) {
+            if (tracked) {
+                return null;
+            }
+            Set<RubyThread> set = newSet();
+            set.add(thread);
+            return new ThreadFilter(set, false);
+        }
+        if (filter.accepts(thread) == tracked) {
+            return filter;
+        }
+        Set<RubyThread> set = newSet();
+        set.addAll(filter.threads);
+        if (tracked == filter.allow) {
+            set.add(thread);
+        } else {
+            set.remove(thread);
+        }
+        return !filter.allow && set.isEmpty() ? null : new ThreadFilter(set, filter.allow);
+    }
+
+    boolean accepts(final RubyThread thread) {
+        return threads.contains(thread) == allow;
+    }
+
+    /** @return the tracked threads, <tt>null</tt> unless this is an allowlist */
+    RubyThread[] getAllowed() {
+        return allow ? threads.toArray(new RubyThread[threads.size()]) : null;
+    }
+
+    private static Set<RubyThread> newSet() {
+        return Collections.newSetFromMap(new IdentityHashMap<RubyThread, Boolean>());
+    }
+}
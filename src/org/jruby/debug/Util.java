@@ -27,6 +27,11 @@ import java.io.File;
 import java.io.IOException;
 import java.util.logging.Logger;
 import org.jruby.RubyBoolean;
+import org.jruby.RubyFixnum;
+import org.jruby.RubyFloat;
+import org.jruby.RubyModule;
+import org.jruby.RubyString;
+import org.jruby.RubySymbol;
 import org.jruby.runtime.RubyEvent;
 import org.jruby.runtime.builtin.IRubyObject;
 
@@ -104,5 +109,41 @@ final class Util {
     static RubyEvent typeForEvent(final String event) {
         return RubyEvent.fromName(event);
     }
+
+    /**
+     * Describes the given value without calling any Ruby code, so it is safe
+     * to use from non-Ruby threads. Scalars are rendered by value, other
+     * objects by their class name only.
+     *
+     * @param limit maximal length of a rendered String value
+     */
+    static String describeValue(final IRubyObject value, final int limit) {
+        if (value == null || value.isNil()) {
+            return "nil";
+        }
+        if (value instanceof RubyBoolean) {
+            return value.isTrue() ? "true" : "false";
+        }
+        if (value instanceof RubyFixnum) {
+            return String.valueOf(((RubyFixnum) value).getLongValue());
+        }
+        if (value instanceof RubyFloat) {
+            return String.valueOf(((RubyFloat) value).getValue());
+        }
+        if (value instanceof RubySymbol) {
+            return ':' + ((RubySymbol) value).asJavaString();
+        }
+        if (value instanceof RubyString) {
+            String str = value.asJavaString();
+            if (str.length() > limit) {
+                str = str.substring(0, limit) + "...";
+            }
+            return '"' + str + '"';
+        }
+        if (value instanceof RubyModule) {
+            return ((RubyModule) value).getName();
+        }
+        return "#<" + value.getMetaClass().getRealClass().getName() + '>';
+    }
 }
 
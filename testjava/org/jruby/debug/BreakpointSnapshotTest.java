@@ -0,0 +1,71 @@
+/*
+ * header & license
+ * Copyright (c) 2008 debug-commons team
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.jruby.debug;
+
+import junit.framework.TestCase;
+
+public class BreakpointSnapshotTest extends TestCase {
+
+    public BreakpointSnapshotTest(String testName) {
+        super(testName);
+    }
+
+    public void testCapturesFramesTopFirst() {
+        DebugContext debugContext = new DebugContext(null, 2);
+        debugContext.addFrame(TestFrames.frame("main.rb", 10, null));
+        debugContext.addFrame(TestFrames.frame("lib.rb", 3, "work"));
+        BreakpointSnapshot snapshot = new BreakpointSnapshot(7, debugContext, "lib.rb", 4);
+        assertEquals(7, snapshot.getBreakpointId());
+        assertEquals(2, snapshot.getThnum());
+        assertEquals(2, snapshot.getFrameCount());
+        assertEquals("lib.rb", snapshot.getFrameFile(0));
+        assertEquals("work", snapshot.getFrameMethod(0));
+        assertEquals(10, snapshot.getFrameLine(1));
+        assertTrue(snapshot.getFrameLocals(0).isEmpty());
+        assertNull(snapshot.getFrameLocals(BreakpointSnapshot.LOCALS_DEPTH));
+    }
+
+    public void testJson() {
+        DebugContext debugContext = new DebugContext(null, 1);
+        debugContext.addFrame(TestFrames.frame("main.rb", 10, null));
+        BreakpointSnapshot snapshot = new BreakpointSnapshot(1, debugContext, "main.rb", 10);
+        JsonWriter json = new JsonWriter();
+        snapshot.writeJson(json);
+        assertEquals("{\"breakpoint\":1,\"thnum\":1,\"time\":" + snapshot.getTime() +
+                ",\"file\":\"main.rb\",\"line\":10,\"frames\":[{\"file\":\"main.rb\",\"line\":10," +
+                "\"method\":null,\"locals\":{}}]}", json.toString());
+    }
+
+    public void testSnapshotLimit() {
+        DebugBreakpoint breakpoint = new DebugBreakpoint();
+        breakpoint.setSnapshotLimit(2);
+        assertTrue(breakpoint.claimSnapshot());
+        assertTrue(breakpoint.claimSnapshot());
+        assertFalse(breakpoint.claimSnapshot());
+        assertEquals(2, breakpoint.getSnapshotCount());
+
+        breakpoint.setSnapshotLimit(0);
+        assertTrue(breakpoint.claimSnapshot());
+    }
+}
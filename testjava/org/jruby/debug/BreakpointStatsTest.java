@@ -0,0 +1,88 @@
+/*
+ * header & license
+ * Copyright (c) 2008 debug-commons team
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.jruby.debug;
+
+import junit.framework.TestCase;
+
+public class BreakpointStatsTest extends TestCase {
+
+    public BreakpointStatsTest(String testName) {
+        super(testName);
+    }
+
+    public void testBuckets() {
+        assertEquals(0, BreakpointStats.bucketOf(0));
+        assertEquals(0, BreakpointStats.bucketOf(999));
+        assertEquals(1, BreakpointStats.bucketOf(1000));
+        assertEquals(2, BreakpointStats.bucketOf(3999));
+        assertEquals(3, BreakpointStats.bucketOf(4000));
+        assertEquals(BreakpointStats.BUCKETS - 1, BreakpointStats.bucketOf(Long.MAX_VALUE));
+        assertEquals(1, BreakpointStats.getBucketLimit(0));
+        assertEquals(-1, BreakpointStats.getBucketLimit(BreakpointStats.BUCKETS - 1));
+    }
+
+    public void testConditionCounters() {
+        BreakpointStats stats = new BreakpointStats();
+        stats.matched();
+        stats.conditionEvaluated(500);
+        stats.conditionEvaluated(2500);
+        stats.conditionFailed("undefined local variable or method `x'");
+        stats.stopped();
+        assertEquals(1, stats.getMatches());
+        assertEquals(2, stats.getConditionEvaluations());
+        assertEquals(3000, stats.getConditionNanos());
+        assertEquals(1, stats.getConditionTimes(0));
+        assertEquals(1, stats.getConditionTimes(2));
+        assertEquals(1, stats.getConditionErrors());
+        assertEquals("undefined local variable or method `x'", stats.getLastConditionError());
+        assertEquals(1, stats.getStops());
+
+        stats.reset();
+        assertEquals(0, stats.getMatches());
+        assertEquals(0, stats.getConditionTimes(2));
+        assertNull(stats.getLastConditionError());
+    }
+
+    public void testConcurrentHits() throws InterruptedException {
+        final DebugBreakpoint breakpoint = new DebugBreakpoint();
+        final int hits = 10000;
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                public void run() {
+                    for (int j = 0; j < hits; j++) {
+                        breakpoint.incrementHitCount();
+                        breakpoint.getStats().matched();
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(threads.length * hits, breakpoint.getHitCount());
+        assertEquals(threads.length * hits, breakpoint.getStats().getMatches());
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * header & license
+ * Copyright (c) 2008 debug-commons team
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.jruby.debug;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.concurrent.CountDownLatch;
+import junit.framework.TestCase;
+
+public class CallTraceTest extends TestCase {
+
+    public CallTraceTest(String testName) {
+        super(testName);
+    }
+
+    public void testBeginAndEndEvents() throws IOException {
+        StringWriter out = new StringWriter();
+        CallTrace trace = new CallTrace(out, null, 0);
+        DebugContext debugContext = new DebugContext(null, 3);
+        trace.record(debugContext, false, "a.rb", 1, "entered_before", null);
+        trace.record(debugContext, true, "a.rb", 2, "foo", null);
+        trace.record(debugContext, false, "a.rb", 4, "foo", null);
+        trace.finish();
+        String json = out.toString();
+        assertTrue(json, json.startsWith("{\"displayTimeUnit\":\"ns\",\"traceEvents\":["));
+        assertTrue(json, json.trim().endsWith("]}"));
+        assertTrue(json, json.contains("\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":1,\"tid\":3"));
+        assertTrue(json, json.contains("\"name\":\"?#foo\",\"ph\":\"B\""));
+        assertTrue(json, json.contains("\"args\":{\"file\":\"a.rb\",\"line\":2}"));
+        assertEquals("unmatched return skipped", 2, trace.getWritten());
+        assertEquals(1, count(json, "\"ph\":\"E\""));
+    }
+
+    public void testChunksHandedToWriter() throws IOException {
+        StringWriter out = new StringWriter();
+        CallTrace trace = new CallTrace(out, null, 0);
+        DebugContext debugContext = new DebugContext(null, 1);
+        int calls = CallTrace.CHUNK_SIZE * 3 / 2;
+        for (int i = 0; i < calls; i++) {
+            trace.record(debugContext, true, "a.rb", i, "m", null);
+            trace.record(debugContext, false, "a.rb", i, "m", null);
+        }
+        trace.finish();
+        assertEquals(0, trace.getDropped());
+        assertEquals(2L * calls, trace.getWritten());
+        assertEquals(calls, count(out.toString(), "\"ph\":\"B\""));
+    }
+
+    public void testDroppedCallsStayBalanced() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        StringWriter out = new StringWriter() {
+            @Override
+            public void write(String str) {
+                try {
+                    release.await(); // the writer falls behind
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                }
+                super.write(str);
+            }
+        };
+        CallTrace trace = new CallTrace(out, null, 0);
+        DebugContext debugContext = new DebugContext(null, 1);
+        // fills the queue, the last chunk holds 100 calls and 3000 returns
+        int queued = CallTrace.CHUNK_SIZE * CallTrace.QUEUE_CHUNKS;
+        for (int i = 0; i < queued + 100; i++) {
+            trace.record(debugContext, true, "a.rb", i, "m", null);
+        }
+        for (int i = 0; i < 3000; i++) {
+            trace.record(debugContext, false, "a.rb", i, "m", null);
+        }
+        // dropped with the chunk, its return must be skipped
+        trace.record(debugContext, true, "a.rb", 1, "dropped", null);
+        for (int i = 0; i < CallTrace.CHUNK_SIZE; i++) {
+            trace.record(debugContext, true, "a.rb", i, "short", null);
+            trace.record(debugContext, false, "a.rb", i, "short", null);
+        }
+        trace.record(debugContext, false, "a.rb", 1, "dropped", null);
+        release.countDown();
+        trace.finish();
+        assertTrue(trace.getDropped() > 0);
+        String json = out.toString();
+        assertEquals(2L * count(json, "\"ph\":\"B\""), trace.getWritten());
+        int depth = 0;
+        for (int i = json.indexOf("\"ph\":\""); i != -1; i = json.indexOf("\"ph\":\"", i + 1)) {
+            char phase = json.charAt(i + 6);
+            if (phase == 'B') {
+                depth++;
+            } else if (phase == 'E') {
+                assertTrue("end without begin at " + i, --depth >= 0);
+            }
+        }
+        assertEquals("calls left open", 0, depth);
+    }
+
+    public void testRunningCallsEndedOnFinish() throws IOException {
+        StringWriter out = new StringWriter();
+        CallTrace trace = new CallTrace(out, null, 0);
+        DebugContext debugContext = new DebugContext(null, 1);
+        trace.record(debugContext, true, "a.rb", 1, "outer", null);
+        trace.record(debugContext, true, "a.rb", 2, "inner", null);
+        trace.finish();
+        assertEquals(4, trace.getWritten());
+        assertEquals(2, count(out.toString(), "\"ph\":\"E\""));
+    }
+
+    public void testRunningCallsEndedAtWindow() throws Exception {
+        StringWriter out = new StringWriter();
+        long window = 50000000L;
+        CallTrace trace = new CallTrace(out, null, window);
+        DebugContext debugContext = new DebugContext(null, 1);
+        trace.record(debugContext, true, "a.rb", 1, "m", null);
+        Thread.sleep(100);
+        trace.record(debugContext, false, "a.rb", 1, "m", null);
+        trace.finish();
+        String json = out.toString();
+        assertEquals(2, trace.getWritten());
+        assertTrue(json, json.contains("\"ph\":\"E\",\"ts\":" + new JsonWriter().milliValue(window)));
+    }
+
+    public void testNothingRecordedAfterWindow() throws Exception {
+        StringWriter out = new StringWriter();
+        CallTrace trace = new CallTrace(out, null, 1);
+        Thread.sleep(2);
+        trace.record(new DebugContext(null, 1), true, "a.rb", 1, "m", null);
+        trace.finish();
+        assertEquals(0, trace.getWritten());
+    }
+
+    public void testNothingRecordedAfterFinish() throws IOException {
+        CallTrace trace = new CallTrace(new StringWriter(), null, 0);
+        DebugContext debugContext = new DebugContext(null, 1);
+        trace.finish();
+        trace.record(debugContext, true, "a.rb", 1, "m", null);
+        assertNull(debugContext.getCallTraceRecorder());
+    }
+
+    public void testMicroseconds() {
+        assertEquals("1234.567", new JsonWriter().milliValue(1234567).toString());
+        assertEquals("0.005", new JsonWriter().milliValue(5).toString());
+        assertEquals("-1.050", new JsonWriter().milliValue(-1050).toString());
+    }
+
+    private static int count(String text, String part) {
+        int count = 0;
+        for (int i = text.indexOf(part); i != -1; i = text.indexOf(part, i + 1)) {
+            count++;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * header & license
+ * Copyright (c) 2008 debug-commons team
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.jruby.debug;
+
+import junit.framework.TestCase;
+
+public class ConditionExpressionTest extends TestCase {
+
+    public ConditionExpressionTest(String testName) {
+        super(testName);
+    }
+
+    public void testSupported() {
+        assertSupported("id == 42");
+        assertSupported("@user.nil?");
+        assertSupported("count > 1_000");
+        assertSupported("x >= -1.5");
+        assertSupported("state == :done || !(a && b)");
+        assertSupported("name != 'jruby' && @flag == true");
+        assertSupported("\"it's\" == s");
+        assertSupported("(a.nil?)");
+    }
+
+    public void testUnsupported() {
+        assertUnsupported("foo(1) == 2");
+        assertUnsupported("user.id == 1");
+        assertUnsupported("list.empty?");
+        assertUnsupported("Foo == 1");
+        assertUnsupported("a = 1");
+        assertUnsupported("a and b");
+        assertUnsupported("\"#{a}\" == 'x'");
+        assertUnsupported("a <=> b");
+        assertUnsupported("a === b");
+        assertUnsupported("@@count > 1");
+        assertUnsupported("x > 99999999999999999999");
+        assertUnsupported("(a == 1");
+        assertUnsupported("a == 1)");
+        assertUnsupported("a ==");
+        assertUnsupported("");
+    }
+
+    private static void assertSupported(String condition) {
+        assertNotNull(condition, ConditionExpression.parse(condition));
+    }
+
+    private static void assertUnsupported(String condition) {
+        assertNull(condition, ConditionExpression.parse(condition));
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * header & license
+ * Copyright (c) 2008 debug-commons team
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.jruby.debug;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import junit.framework.TestCase;
+
+public class DebugEventDispatcherTest extends TestCase {
+
+    public DebugEventDispatcherTest(String testName) {
+        super(testName);
+    }
+
+    private static DebugEvent lineEvent() {
+        return new DebugEvent(DebugEvent.Type.LINE, new DebugContext(null, 1), "a.rb", 3, null, null);
+    }
+
+    public void testNoListeners() {
+        DebugEventDispatcher dispatcher = new DebugEventDispatcher();
+        assertFalse(dispatcher.hasListeners());
+        assertFalse(dispatcher.fire(lineEvent()));
+    }
+
+    public void testSynchronousListenerConsumes() {
+        DebugEventDispatcher dispatcher = new DebugEventDispatcher();
+        final DebugEvent[] received = new DebugEvent[1];
+        DebugEventListener listener = new DebugEventListener() {
+            public boolean onEvent(DebugEvent event) {
+                received[0] = event;
+                return true;
+            }
+        };
+        dispatcher.add(listener, false);
+        DebugEvent event = lineEvent();
+        assertTrue(dispatcher.fire(event));
+        assertSame(event, received[0]);
+        assertEquals("a.rb", received[0].getFile());
+        assertEquals(3, received[0].getLine());
+        assertEquals(-1, received[0].getBreakpointId());
+
+        dispatcher.remove(listener);
+        assertFalse(dispatcher.hasListeners());
+        assertFalse(dispatcher.fire(lineEvent()));
+    }
+
+    public void testFailingListenerSkipped() {
+        DebugEventDispatcher dispatcher = new DebugEventDispatcher();
+        final int[] calls = new int[1];
+        dispatcher.add(new DebugEventListener() {
+            public boolean onEvent(DebugEvent event) {
+                throw new IllegalStateException("listener bug");
+            }
+        }, false);
+        dispatcher.add(new DebugEventListener() {
+            public boolean onEvent(DebugEvent event) {
+                calls[0]++;
+                return true;
+            }
+        }, false);
+        assertTrue(dispatcher.fire(lineEvent()));
+        assertEquals(1, calls[0]);
+    }
+
+    public void testAsynchronousListenerDoesNotConsume() throws InterruptedException {
+        DebugEventDispatcher dispatcher = new DebugEventDispatcher();
+        final CountDownLatch delivered = new CountDownLatch(1);
+        final Thread[] deliveryThread = new Thread[1];
+        dispatcher.add(new DebugEventListener() {
+            public boolean onEvent(DebugEvent event) {
+                deliveryThread[0] = Thread.currentThread();
+                delivered.countDown();
+                return true;
+            }
+        }, true);
+        assertFalse(dispatcher.fire(lineEvent()));
+        assertTrue(delivered.await(5, TimeUnit.SECONDS));
+        assertTrue(deliveryThread[0] != Thread.currentThread());
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * header & license
+ * Copyright (c) 2008 debug-commons team
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.jruby.debug;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import junit.framework.TestCase;
+
+public class DebugServerTest extends TestCase {
+
+    private DebugServer server;
+    private int port;
+
+    public DebugServerTest(String testName) {
+        super(testName);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        server = new DebugServer(new DebugServer.Handler() {
+            public String handle(String request) {
+                if ("fail".equals(request)) {
+                    throw new IllegalStateException("failed");
+                }
+                return "re:" + request;
+            }
+        });
+        port = server.start("127.0.0.1", 0);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        server.stop();
+    }
+
+    public void testFrameRoundTrip() throws IOException {
+        ByteBuffer frame = DebugServer.encodeFrame("stack 1");
+        assertEquals(4 + 7, frame.remaining());
+        assertEquals("stack 1", DebugServer.decodeFrame(frame));
+        assertFalse(frame.hasRemaining());
+    }
+
+    public void testIncompleteFrame() throws IOException {
+        ByteBuffer frame = DebugServer.encodeFrame("threads");
+        frame.limit(6);
+        assertNull(DebugServer.decodeFrame(frame));
+        assertEquals("position kept", 0, frame.position());
+    }
+
+    public void testInvalidFrameLength() {
+        ByteBuffer frame = ByteBuffer.allocate(8);
+        frame.putInt(-1).putInt(0).flip();
+        try {
+            DebugServer.decodeFrame(frame);
+            fail("negative length accepted");
+        } catch (IOException expected) {
+        }
+    }
+
+    public void testSeveralClients() throws IOException {
+        SocketChannel first = connect();
+        SocketChannel second = connect();
+        try {
+            send(second, "threads");
+            send(first, "breakpoints");
+            assertEquals("re:breakpoints", receive(first));
+            assertEquals("re:threads", receive(second));
+        } finally {
+            first.close();
+            second.close();
+        }
+    }
+
+    public void testPipelinedAndSplitRequests() throws IOException {
+        SocketChannel client = connect();
+        try {
+            ByteBuffer one = DebugServer.encodeFrame("one");
+            ByteBuffer two = DebugServer.encodeFrame("two");
+            ByteBuffer both = ByteBuffer.allocate(one.remaining() + two.remaining());
+            both.put(one).put(two).flip();
+            both.limit(5);
+            writeFully(client, both);
+            both.limit(both.capacity());
+            writeFully(client, both);
+            assertEquals("re:one", receive(client));
+            assertEquals("re:two", receive(client));
+        } finally {
+            client.close();
+        }
+    }
+
+    public void testLargeRequest() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 10000; i++) {
+            sb.append("0123456789");
+        }
+        SocketChannel client = connect();
+        try {
+            send(client, sb.toString());
+            assertEquals("re:" + sb, receive(client));
+        } finally {
+            client.close();
+        }
+    }
+
+    public void testHandlerFailure() throws IOException {
+        SocketChannel client = connect();
+        try {
+            send(client, "fail");
+            assertTrue(receive(client).startsWith("{\"error\":"));
+            send(client, "again");
+            assertEquals("re:again", receive(client));
+        } finally {
+            client.close();
+        }
+    }
+
+    private SocketChannel connect() throws IOException {
+        return SocketChannel.open(new InetSocketAddress("127.0.0.1", port));
+    }
+
+    private void send(SocketChannel client, String request) throws IOException {
+        writeFully(client, DebugServer.encodeFrame(request));
+    }
+
+    private void writeFully(SocketChannel client, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            client.write(buffer);
+        }
+    }
+
+    private String receive(SocketChannel client) throws IOException {
+        ByteBuffer length = ByteBuffer.allocate(4);
+        readFully(client, length);
+        ByteBuffer frame = ByteBuffer.allocate(4 + length.getInt(0));
+        frame.put(length.array());
+        readFully(client, frame);
+        frame.flip();
+        return DebugServer.decodeFrame(frame);
+    }
+
+    private void readFully(SocketChannel client, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (client.read(buffer) < 0) {
+                throw new IOException("connection closed");
+            }
+        }
+    }
+}
@@ -0,0 +1,372 @@
+/*
+ * header & license
+ * Copyright (c) 2008 debug-commons team
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.jruby.debug;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import junit.framework.TestCase;
+import org.jruby.Ruby;
+import org.jruby.RubyInstanceConfig;
+import org.jruby.runtime.builtin.IRubyObject;
+
+/**
+ * Runs generated workloads on 1 to 64 threads of an embedded runtime while
+ * another thread keeps adding and removing breakpoints and catchpoints,
+ * suspending and resuming contexts and starting short-lived threads. Checks
+ * that every thread finishes, that each breakpoint and catchpoint hit is
+ * reported exactly once, and that throughput does not collapse as threads
+ * are added.
+ * <p>
+ * Sizes can be changed with the system properties
+ * <tt>jruby.debug.stress.threads</tt> (comma separated thread counts),
+ * <tt>jruby.debug.stress.iterations</tt> (per thread),
+ * <tt>jruby.debug.stress.timeout</tt> (seconds per round) and
+ * <tt>jruby.debug.stress.minScaling</tt> (lowest acceptable throughput of a
+ * round relative to the one with a single thread).
+ */
+public class DebuggerStressTest extends TestCase {
+
+    private static final String WORKLOAD_FILE = "stress_workload.rb";
+    private static final int WORKLOAD_SHAPES = 4;
+    private static final int RAISE_EVERY = 10;
+
+    private static final int[] THREAD_COUNTS = parseThreadCounts(System.getProperty("jruby.debug.stress.threads", "1,2,4,8,16,32,64"));
+    private static final int ITERATIONS = Integer.getInteger("jruby.debug.stress.iterations", 1000);
+    private static final int TIMEOUT_SECONDS = Integer.getInteger("jruby.debug.stress.timeout", 120);
+    private static final double MIN_SCALING = Double.parseDouble(System.getProperty("jruby.debug.stress.minScaling", "0.25"));
+
+    private Ruby runtime;
+    private int leafLine;
+    private int churnLine;
+    private boolean hung;
+    private boolean fullTraceEnabled;
+
+    /** Stops reported to the listener, by breakpoint id. */
+    private final ConcurrentHashMap<Integer, AtomicInteger> stops = new ConcurrentHashMap<Integer, AtomicInteger>();
+    /** Catchpoint hits reported to the listener, by exception class. */
+    private final ConcurrentHashMap<String, AtomicInteger> catches = new ConcurrentHashMap<String, AtomicInteger>();
+
+    public DebuggerStressTest(String testName) {
+        super(testName);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        fullTraceEnabled = RubyInstanceConfig.FULL_TRACE_ENABLED;
+        RubyInstanceConfig.FULL_TRACE_ENABLED = true;
+        RubyInstanceConfig config = new RubyInstanceConfig();
+        config.setCompileMode(RubyInstanceConfig.CompileMode.OFF);
+        runtime = Ruby.newInstance(config);
+        new RubyDebugBaseLibrary().load(runtime, false);
+        runtime.evalScriptlet("Debugger.start_");
+        runtime.executeScript(workload(), WORKLOAD_FILE);
+        RubyDebugger.addEventListener(runtime, new DebugEventListener() {
+            public boolean onEvent(DebugEvent event) {
+                if (event.getType() == DebugEvent.Type.BREAKPOINT) {
+                    count(stops, event.getBreakpointId());
+                } else if (event.getType() == DebugEvent.Type.CATCHPOINT) {
+                    count(catches, event.getException().getMetaClass().getName());
+                }
+                // consumed, so threads continue without a Ruby handler
+                return true;
+            }
+        }, false);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        try {
+            if (!hung) {
+                runtime.evalScriptlet("Debugger.stop");
+                runtime.tearDown();
+            }
+        } finally {
+            // static, later tests in the JVM must not run with full tracing
+            RubyInstanceConfig.FULL_TRACE_ENABLED = fullTraceEnabled;
+        }
+    }
+
+    public void testConcurrentWorkloads() throws Exception {
+        round(1); // warm up
+        double[] throughput = new double[THREAD_COUNTS.length];
+        StringBuilder rounds = new StringBuilder();
+        for (int i = 0; i < THREAD_COUNTS.length; i++) {
+            throughput[i] = round(THREAD_COUNTS[i]);
+            rounds.append(String.format("%n%3d threads: %12.0f iterations/s", THREAD_COUNTS[i], throughput[i]));
+        }
+        for (int i = 0; i < THREAD_COUNTS.length; i++) {
+            assertTrue(String.format("%d threads ran %.0f iterations/s, less than %.0f%% of the %.0f/s of %d thread(s)%s",
+                    THREAD_COUNTS[i], throughput[i], MIN_SCALING * 100, throughput[0], THREAD_COUNTS[0], rounds),
+                    throughput[i] >= MIN_SCALING * throughput[0]);
+        }
+    }
+
+    /**
+     * Runs the workload on the given number of threads while the
+     * configuration is changed concurrently and checks the hits.
+     *
+     * @return iterations per second, all threads together
+     */
+    private double round(final int threads) throws Exception {
+        stops.clear();
+        catches.clear();
+        runtime.evalScriptlet("Debugger.breakpoints.map { |b| b.id }.each { |id| Debugger.remove_breakpoint(id) }");
+        IRubyObject leaf = runtime.evalScriptlet("Debugger.add_breakpoint('" + WORKLOAD_FILE + "', " + leafLine + ")");
+        runtime.evalScriptlet("Debugger.add_catchpoint('StressError')");
+
+        final long[] nanos = new long[1];
+        final Throwable[] failure = new Throwable[1];
+        Thread runner = new Thread("stress-runner") {
+            @Override
+            public void run() {
+                try {
+                    long start = System.nanoTime();
+                    runtime.evalScriptlet("stress_run(" + threads + ", " + ITERATIONS + ")");
+                    nanos[0] = System.nanoTime() - start;
+                } catch (Throwable t) {
+                    failure[0] = t;
+                }
+            }
+        };
+        Mutator mutator = new Mutator();
+        runner.setDaemon(true);
+        mutator.setDaemon(true);
+        runner.start();
+        mutator.start();
+        runner.join(TIMEOUT_SECONDS * 1000L);
+        mutator.finish();
+        mutator.join(TIMEOUT_SECONDS * 1000L);
+        if (runner.isAlive() || mutator.isAlive()) {
+            hung = true;
+            fail(threads + " threads did not finish within " + TIMEOUT_SECONDS + "s, possibly deadlocked:\n" + javaThreadDump());
+        }
+        if (failure[0] != null) {
+            throw new AssertionError(failure[0]);
+        }
+        if (mutator.failure != null) {
+            throw new AssertionError(mutator.failure);
+        }
+
+        int expectedStops = threads * ITERATIONS + mutator.leafThreads;
+        DebugBreakpoint leafBreakpoint = (DebugBreakpoint) leaf.dataGetStruct();
+        assertEquals("hit count", expectedStops, leafBreakpoint.getHitCount());
+        assertEquals("stops counted by the breakpoint", expectedStops, leafBreakpoint.getStats().getStops());
+        assertEquals("stops reported", expectedStops, countOf(stops, leafBreakpoint.getId()));
+
+        int churnStops = 0;
+        for (IRubyObject churn : mutator.churned) {
+            DebugBreakpoint churnBreakpoint = (DebugBreakpoint) churn.dataGetStruct();
+            assertEquals("stops reported for breakpoint " + churnBreakpoint.getId(),
+                    churnBreakpoint.getStats().getStops(), countOf(stops, churnBreakpoint.getId()));
+            churnStops += churnBreakpoint.getStats().getStops();
+        }
+        assertTrue("more stops than calls: " + churnStops, churnStops <= threads * ITERATIONS);
+
+        int raised = threads * ((ITERATIONS + RAISE_EVERY - 1) / RAISE_EVERY);
+        assertEquals("catchpoint hits reported", raised, countOf(catches, "StressError"));
+        assertEquals("catchpoint hit count", Integer.toString(raised),
+                runtime.evalScriptlet("Debugger.catchpoints['StressError']").toString());
+        assertTrue("more catchpoint hits than raises",
+                countOf(catches, "StressChurnError") <= threads * ((ITERATIONS + RAISE_EVERY / 2 - 1) / RAISE_EVERY));
+
+        return threads * (double) ITERATIONS * 1e9 / nanos[0];
+    }
+
+    /** Keeps changing the debugger's configuration until told to finish. */
+    private final class Mutator extends Thread {
+
+        private volatile boolean finished;
+        final List<IRubyObject> churned = new ArrayList<IRubyObject>();
+        int leafThreads;
+        Throwable failure;
+
+        Mutator() {
+            super("stress-mutator");
+        }
+
+        void finish() {
+            finished = true;
+        }
+
+        @Override
+        public void run() {
+            IRubyObject churn = null;
+            try {
+                for (int op = 0; !finished; op++) {
+                    switch (op % 6) {
+                        case 0:
+                            churn = runtime.evalScriptlet("Debugger.add_breakpoint('" + WORKLOAD_FILE + "', " + churnLine + ")");
+                            churned.add(churn);
+                            break;
+                        case 1:
+                            runtime.evalScriptlet("Debugger.remove_breakpoint(" + ((DebugBreakpoint) churn.dataGetStruct()).getId() + ")");
+                            break;
+                        case 2:
+                            runtime.evalScriptlet("Debugger.add_catchpoint('StressChurnError')");
+                            break;
+                        case 3:
+                            runtime.evalScriptlet("Debugger.catchpoints.delete('StressChurnError')");
+                            break;
+                        case 4:
+                            runtime.evalScriptlet("stress_suspend_one");
+                            break;
+                        default:
+                            // a context which comes and goes, stopping once at the leaf
+                            runtime.evalScriptlet("Thread.new { stress_leaf(0) }.join");
+                            leafThreads++;
+                            break;
+                    }
+                    Thread.sleep(1);
+                }
+            } catch (Throwable t) {
+                failure = t;
+            }
+        }
+    }
+
+    /**
+     * Ruby code run by the threads. Every shape calls <tt>stress_leaf</tt>,
+     * <tt>stress_churn</tt> and <tt>stress_raise</tt> exactly once per
+     * iteration, through loops, blocks, recursion or ensure clauses.
+     */
+    private String workload() {
+        List<String> lines = new ArrayList<String>();
+        lines.add("class StressError < StandardError; end");
+        lines.add("class StressChurnError < StandardError; end");
+        lines.add("def stress_leaf(i)");
+        leafLine = lines.size() + 1;
+        lines.add("  i + 1");
+        lines.add("end");
+        lines.add("def stress_churn(i)");
+        churnLine = lines.size() + 1;
+        lines.add("  i * 2");
+        lines.add("end");
+        lines.add("def stress_raise(i)");
+        lines.add("  raise StressError if i % " + RAISE_EVERY + " == 0");
+        lines.add("  raise StressChurnError if i % " + RAISE_EVERY + " == " + RAISE_EVERY / 2);
+        lines.add("  i");
+        lines.add("rescue StandardError");
+        lines.add("  i");
+        lines.add("end");
+        lines.add("def stress_nested(depth, i)");
+        lines.add("  return stress_nested(depth - 1, i) if depth > 0");
+        lines.add("  stress_raise(i)");
+        lines.add("  stress_churn(i)");
+        lines.add("  stress_leaf(i)");
+        lines.add("end");
+        for (int shape = 0; shape < WORKLOAD_SHAPES; shape++) {
+            lines.add("def stress_work_" + shape + "(n)");
+            switch (shape) {
+                case 0:
+                    lines.add("  i = 0");
+                    lines.add("  while i < n");
+                    lines.add("    stress_churn(i)");
+                    lines.add("    stress_raise(i)");
+                    lines.add("    stress_leaf(i)");
+                    lines.add("    i += 1");
+                    lines.add("  end");
+                    break;
+                case 1:
+                    lines.add("  n.times do |i|");
+                    lines.add("    stress_raise(i)");
+                    lines.add("    stress_leaf(stress_churn(i))");
+                    lines.add("  end");
+                    break;
+                case 2:
+                    lines.add("  n.times { |i| stress_nested(i % 5, i) }");
+                    break;
+                default:
+                    lines.add("  (0...n).each do |i|");
+                    lines.add("    begin");
+                    lines.add("      stress_raise(i)");
+                    lines.add("      \"#{i}\".length");
+                    lines.add("    ensure");
+                    lines.add("      stress_churn(i)");
+                    lines.add("      stress_leaf(i)");
+                    lines.add("    end");
+                    lines.add("  end");
+                    break;
+            }
+            lines.add("end");
+        }
+        lines.add("def stress_run(threads, n)");
+        lines.add("  $stress_threads = (0...threads).map { |t| Thread.new { send(\"stress_work_#{t % " + WORKLOAD_SHAPES + "}\", n) } }");
+        lines.add("  $stress_threads.each { |t| t.join }");
+        lines.add("end");
+        lines.add("def stress_suspend_one");
+        lines.add("  context = Debugger.contexts.find { |c| ($stress_threads || []).include?(c.thread) && c.thread.alive? }");
+        lines.add("  return unless context");
+        lines.add("  context.suspend");
+        lines.add("  sleep 0.001");
+        lines.add("  context.resume");
+        lines.add("rescue RuntimeError");
+        lines.add("  # the thread finished in between");
+        lines.add("end");
+        StringBuilder script = new StringBuilder();
+        for (String line : lines) {
+            script.append(line).append('\n');
+        }
+        return script.toString();
+    }
+
+    private static <K> void count(final ConcurrentHashMap<K, AtomicInteger> counts, final K key) {
+        AtomicInteger count = counts.get(key);
+        if (count == null) {
+            AtomicInteger created = new AtomicInteger();
+            count = counts.putIfAbsent(key, created);
+            if (count == null) {
+                count = created;
+            }
+        }
+        count.incrementAndGet();
+    }
+
+    private static int countOf(final Map<?, AtomicInteger> counts, final Object key) {
+        AtomicInteger count = counts.get(key);
+        return count == null ? 0 : count.get();
+    }
+
+    private static String javaThreadDump() {
+        StringBuilder dump = new StringBuilder();
+        for (Map.Entry<Thread, StackTraceElement[]> entry : Thread.getAllStackTraces().entrySet()) {
+            dump.append('"').append(entry.getKey().getName()).append("\" ").append(entry.getKey().getState()).append('\n');
+            for (StackTraceElement element : entry.getValue()) {
+                dump.append("\tat ").append(element).append('\n');
+            }
+        }
+        return dump.toString();
+    }
+
+    private static int[] parseThreadCounts(final String counts) {
+        String[] parts = counts.split(",");
+        int[] result = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            result[i] = Integer.parseInt(parts[i].trim());
+        }
+        return result;
+    }
+}
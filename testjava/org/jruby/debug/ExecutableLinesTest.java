@@ -0,0 +1,78 @@
+/*
+ * header & license
+ * Copyright (c) 2008 debug-commons team
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.jruby.debug;
+
+import java.util.Arrays;
+import junit.framework.TestCase;
+import org.jruby.Ruby;
+
+public class ExecutableLinesTest extends TestCase {
+
+    public ExecutableLinesTest(String testName) {
+        super(testName);
+    }
+
+    public void testSnap() {
+        ExecutableLines lines = new ExecutableLines(new int[] {2, 3, 7});
+        assertEquals("executable line kept", 3, lines.snap(3));
+        assertEquals("moved forward", 2, lines.snap(1));
+        assertEquals("moved forward", 7, lines.snap(4));
+        assertEquals("moved back after last line", 7, lines.snap(12));
+        assertEquals(-1, new ExecutableLines(new int[0]).snap(1));
+    }
+
+    public void testParse() throws Exception {
+        String source =
+                "a = 1\n" +          // 1
+                "\n" +                // 2
+                "# comment\n" +       // 3
+                "def m(x)\n" +        // 4
+                "  y = x + a\n" +     // 5
+                "  y * 2\n" +         // 6
+                "end\n" +             // 7
+                "m(a)\n";             // 8
+        Ruby runtime = Ruby.newInstance();
+        try {
+            ExecutableLines lines = ExecutableLines.parse(runtime, "parsed.rb", source.getBytes("UTF-8"));
+            assertNotNull(lines);
+            int[] table = lines.getLines();
+            for (int line : new int[] {1, 5, 6, 8}) {
+                assertTrue(line + " in " + Arrays.toString(table), lines.isExecutable(line));
+            }
+            for (int line : new int[] {2, 3, 7}) {
+                assertFalse(line + " in " + Arrays.toString(table), lines.isExecutable(line));
+            }
+            assertEquals("moved past end", 8, lines.snap(7));
+            assertNull("syntax error", ExecutableLines.parse(runtime, "broken.rb", "def (\n".getBytes("UTF-8")));
+        } finally {
+            runtime.tearDown();
+        }
+    }
+
+    public void testIsExecutable() {
+        ExecutableLines lines = new ExecutableLines(new int[] {2, 3, 7});
+        assertTrue(lines.isExecutable(7));
+        assertFalse(lines.isExecutable(5));
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * header & license
+ * Copyright (c) 2008 debug-commons team
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.jruby.debug;
+
+import junit.framework.TestCase;
+import org.jruby.runtime.RubyEvent;
+
+public class ExecutionHistoryTest extends TestCase {
+
+    public ExecutionHistoryTest(String testName) {
+        super(testName);
+    }
+
+    public void testEmpty() {
+        ExecutionHistory history = new ExecutionHistory(4, false);
+        assertEquals(0, history.size());
+        assertEquals(0, history.getRecorded());
+    }
+
+    public void testRecordsInOrder() {
+        ExecutionHistory history = new ExecutionHistory(4, false);
+        history.record(RubyEvent.CALL, 1, 10, 1, null);
+        history.record(RubyEvent.LINE, 1, 11, 2, null);
+        assertEquals(2, history.size());
+        assertEquals(RubyEvent.CALL, history.getEvent(0));
+        assertEquals(10, history.getLine(0));
+        assertEquals(RubyEvent.LINE, history.getEvent(1));
+        assertEquals(11, history.getLine(1));
+        assertEquals(2, history.getDepth(1));
+        assertTrue(history.getTime(0) <= history.getTime(1));
+        assertEquals(0, history.getLocalCount(1));
+    }
+
+    public void testKeepsLastEvents() {
+        ExecutionHistory history = new ExecutionHistory(3, false);
+        for (int line = 1; line <= 7; line++) {
+            history.record(RubyEvent.LINE, 0, line, 1, null);
+        }
+        assertEquals(3, history.size());
+        assertEquals(7, history.getRecorded());
+        assertEquals(5, history.getLine(0));
+        assertEquals(6, history.getLine(1));
+        assertEquals(7, history.getLine(2));
+        try {
+            history.getLine(3);
+            fail("index out of bounds");
+        } catch (IndexOutOfBoundsException expected) {
+        }
+        history.clear();
+        assertEquals(0, history.size());
+    }
+
+    public void testFileIds() {
+        FileIdTable table = new FileIdTable();
+        int a = table.getId("a.rb");
+        int b = table.getId("b.rb");
+        assertTrue(a != b);
+        assertEquals(a, table.getId(new String("a.rb")));
+        assertEquals("b.rb", table.getFile(b));
+        assertNull(table.getFile(2));
+        assertEquals(2, table.size());
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * header & license
+ * Copyright (c) 2008 debug-commons team
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.jruby.debug;
+
+import junit.framework.TestCase;
+
+public class FrameStackTest extends TestCase {
+
+    public FrameStackTest(String testName) {
+        super(testName);
+    }
+
+    public void testUnlimited() {
+        FrameStack frames = new FrameStack(null, 0);
+        for (int i = 0; i < 100; i++) {
+            frames.push(TestFrames.frame("fib.rb", 3, "fib"));
+        }
+        assertEquals(100, frames.size());
+        assertEquals(100, frames.getStored());
+        assertEquals(0, frames.getSlim());
+    }
+
+    public void testRecursionFolded() {
+        FrameStack frames = new FrameStack(null, 2);
+        frames.push(TestFrames.frame("main.rb", 10, null));
+        for (int i = 0; i < 100; i++) {
+            frames.push(TestFrames.frame("fib.rb", 3, "fib"));
+        }
+        assertEquals(101, frames.size());
+        // main, one folded fib entry and the two full fib frames on top
+        assertEquals(4, frames.getStored());
+        assertEquals(97, frames.getFolded());
+        assertEquals(2, frames.getSlim());
+        assertFalse(frames.get(0).isSlim());
+        assertTrue(frames.get(50).isSlim());
+        assertTrue(frames.get(50).isDead());
+        assertEquals("main.rb", frames.get(100).getFile());
+
+        for (int i = 0; i < 100; i++) {
+            DebugFrame popped = frames.pop();
+            assertEquals("fib", popped.getMethodName());
+            assertEquals(0, frames.getTop().getRepeat());
+        }
+        assertEquals(1, frames.size());
+        assertEquals("main.rb", frames.getTop().getFile());
+    }
+
+    public void testPopMethod() {
+        FrameStack frames = new FrameStack(null, 0);
+        frames.push(TestFrames.frame("main.rb", 1, null));
+        frames.push(TestFrames.frame("a.rb", 2, "a"));
+        frames.push(TestFrames.frame("b.rb", 3, "b"));
+        // return of b was not reported
+        frames.popMethod("a");
+        assertEquals(1, frames.size());
+        assertEquals("main.rb", frames.getTop().getFile());
+    }
+
+    public void testDropped() {
+        FrameStack frames = new FrameStack(null, 1);
+        for (int i = 0; i < 10; i++) {
+            frames.push(TestFrames.frame("f" + i + ".rb", i, "m" + i));
+        }
+        assertEquals(10, frames.size());
+        assertEquals(FrameStack.STORED_FACTOR, frames.getStored());
+        assertEquals(10 - FrameStack.STORED_FACTOR, frames.getDropped());
+        assertEquals(FrameStack.UNKNOWN_FILE, frames.get(9).getFile());
+
+        while (frames.getStored() > 1 || frames.getDropped() == 0) {
+            frames.pop();
+        }
+        frames.pop();
+        // the top frame stands for a dropped one now, its return stops popping
+        assertTrue(frames.getTop().isPlaceholder());
+        int size = frames.size();
+        frames.popMethod("unknown");
+        assertEquals(size - 1, frames.size());
+    }
+
+    public void testLimitAppliedOnNextPush() {
+        FrameStack frames = new FrameStack(null, 0);
+        for (int i = 0; i < 10; i++) {
+            frames.push(TestFrames.frame("fib.rb", 3, "fib"));
+        }
+        frames.setLimit(3);
+        assertEquals(0, frames.getSlim());
+        frames.push(TestFrames.frame("fib.rb", 3, "fib"));
+        assertEquals(11, frames.size());
+        assertEquals(4, frames.getStored());
+        assertEquals(1, frames.getSlim());
+    }
+}
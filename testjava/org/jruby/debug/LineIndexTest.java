@@ -0,0 +1,183 @@
+/*
+ * header & license
+ * Copyright (c) 2008 debug-commons team
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.jruby.debug;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import junit.framework.TestCase;
+
+public class LineIndexTest extends TestCase {
+
+    private File file;
+
+    public LineIndexTest(String testName) {
+        super(testName);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        file = File.createTempFile("line-index", ".rb");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        file.delete();
+    }
+
+    public void testLines() throws IOException {
+        write("a = 1\n\nputs a\n");
+        LineIndex index = LineIndex.load(file);
+        assertEquals(3, index.getLineCount());
+        assertEquals("a = 1\n", line(index, 1));
+        assertEquals("\n", line(index, 2));
+        assertEquals("puts a\n", line(index, 3));
+        assertNull(index.getLine(0));
+        assertNull(index.getLine(4));
+    }
+
+    public void testLastLineWithoutNewline() throws IOException {
+        write("a = 1\nputs a");
+        LineIndex index = LineIndex.load(file);
+        assertEquals(2, index.getLineCount());
+        assertEquals("puts a", line(index, 2));
+    }
+
+    public void testEmptyFile() throws IOException {
+        LineIndex index = LineIndex.load(file);
+        assertEquals(0, index.getLineCount());
+        assertNull(index.getLine(1));
+        assertEquals("da39a3ee5e6b4b0d3255bfef95601890afd80709", index.getSha1());
+    }
+
+    public void testSha1() throws IOException {
+        write("abc");
+        assertEquals("a9993e364706816aba3e25717850c26c9cd0d89d", LineIndex.load(file).getSha1());
+    }
+
+    public void testStale() throws IOException {
+        write("a = 1\n");
+        LineIndex index = LineIndex.load(file);
+        assertFalse(index.isStale());
+        write("a = 10\n");
+        assertTrue(index.isStale());
+    }
+
+    public void testLinesKeptWhenFileTruncated() throws IOException {
+        write("a = 1\nputs a\n");
+        LineIndex index = LineIndex.load(file);
+        write("");
+        assertEquals("puts a\n", line(index, 2));
+    }
+
+    public void testSourceCache() throws IOException {
+        write("a = 1\n");
+        SourceCache cache = new SourceCache();
+        assertTrue(cache.isStale(file.getPath()));
+        LineIndex index = cache.get(file.getPath());
+        assertSame(index, cache.get(file.getAbsolutePath()));
+        assertFalse(cache.isStale(file.getPath()));
+        cache.evict(file.getPath());
+        assertFalse(cache.isCached(file.getPath()));
+        assertNull(cache.get(file.getPath() + ".missing"));
+    }
+
+    public void testWatchedFileEvicted() throws Exception {
+        write("a = 1\n");
+        SourceCache cache = new SourceCache();
+        cache.get(file.getPath());
+        if (!cache.isWatching()) {
+            return; // no native file watching on this platform
+        }
+        write("a = 10\n");
+        for (int i = 0; i < 100 && cache.isCached(file.getPath()); i++) {
+            Thread.sleep(50);
+        }
+        assertFalse("modified file evicted", cache.isCached(file.getPath()));
+        assertEquals("a = 10\n", line(cache.get(file.getPath()), 1));
+        cache.setWatching(false);
+        assertFalse(cache.isWatching());
+    }
+
+    public void testUnwatchedFileStatted() throws Exception {
+        write("a = 1\n");
+        SourceCache cache = new SourceCache();
+        cache.setWatching(false);
+        long version = cache.getVersion(file.getPath());
+        assertEquals("not cached", -1, version);
+        version = cache.get(file.getPath()).getVersion();
+        assertEquals(version, cache.getVersion(file.getPath()));
+        write("a = 100\n");
+        assertTrue(cache.isStale(file.getPath()));
+        assertEquals(-1, cache.getVersion(file.getPath()));
+        assertEquals("a = 100\n", line(cache.getFresh(file.getPath()), 1));
+        assertTrue("reloaded", cache.getVersion(file.getPath()) > version);
+    }
+
+    public void testWatchedFileInvalidatedByEvent() throws Exception {
+        write("a = 1\n");
+        SourceCache cache = new SourceCache();
+        LineIndex index = cache.get(file.getPath());
+        if (!cache.isWatching()) {
+            return; // no native file watching on this platform
+        }
+        write("a = 100\n");
+        for (int i = 0; i < 100 && !index.isInvalidated(); i++) {
+            Thread.sleep(50);
+        }
+        assertTrue(index.isInvalidated());
+        // reloaded on access, the version tells LineCache it changed
+        assertTrue(cache.get(file.getPath()).getVersion() > index.getVersion());
+        cache.close();
+        assertFalse("checked by stat once closed", cache.isStale(file.getPath()));
+    }
+
+    public void testCloseStopsWatcher() throws Exception {
+        write("a = 1\n");
+        SourceCache cache = new SourceCache();
+        cache.get(file.getPath());
+        if (!cache.isWatching()) {
+            return; // no native file watching on this platform
+        }
+        cache.close();
+        assertFalse(cache.isWatching());
+        cache.evict(file.getPath());
+        cache.get(file.getPath());
+        assertTrue("restarted on next indexed file", cache.isWatching());
+        cache.close();
+    }
+
+    private String line(LineIndex index, int line) throws IOException {
+        return new String(index.getLine(line), "UTF-8");
+    }
+
+    private void write(String content) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * header & license
+ * Copyright (c) 2008 debug-commons team
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.jruby.debug;
+
+import java.util.regex.Pattern;
+import junit.framework.TestCase;
+
+public class MethodBreakpointMatcherTest extends TestCase {
+
+    public MethodBreakpointMatcherTest(String testName) {
+        super(testName);
+    }
+
+    public void testExactNameHasNoPattern() {
+        assertNull(MethodBreakpointMatcher.compileGlob("charge"));
+        DebugBreakpoint.Pos pos = new DebugBreakpoint.Pos();
+        pos.setMethodName("charge");
+        assertTrue(pos.matchesMethod("charge"));
+        assertFalse(pos.matchesMethod("charge_card"));
+    }
+
+    public void testGlobs() {
+        assertMatches("charge_*", "charge_card", true);
+        assertMatches("charge_*", "recharge_card", false);
+        assertMatches("*", "anything", true);
+        assertMatches("valid?", "valid?", true);
+        assertMatches("valid?", "valid!", true);
+        assertMatches("valid?", "valid", false);
+        assertMatches("[]*", "[]=", true);
+        assertMatches("[]*", "a", false);
+    }
+
+    public void testPatternsMatchAnywhere() {
+        DebugBreakpoint.Pos pos = new DebugBreakpoint.Pos();
+        pos.setMethodName("/charge/");
+        pos.setMethodPattern(Pattern.compile("charge"));
+        assertTrue(pos.matchesMethod("recharge_card"));
+        assertFalse(pos.matchesMethod("refund"));
+    }
+
+    public void testGroupReferencesAreNotCombined() {
+        assertTrue(MethodBreakpointMatcher.isCombinable(Pattern.compile("^(get|set)_")));
+        assertTrue(MethodBreakpointMatcher.isCombinable(Pattern.compile("(?<=_)id$")));
+        assertFalse(MethodBreakpointMatcher.isCombinable(Pattern.compile("(get|set)_\\1")));
+        assertFalse(MethodBreakpointMatcher.isCombinable(Pattern.compile("(?<verb>get|set)_\\k<verb>")));
+        assertFalse(MethodBreakpointMatcher.isCombinable(Pattern.compile("(?<verb>get|set)_")));
+    }
+
+    public void testAnonymousClassNames() {
+        assertTrue(MethodBreakpointMatcher.isAnonymous("#<Class:0x1f2e3d>"));
+        assertTrue(MethodBreakpointMatcher.isAnonymous("#<Class:#<Class:0x1f2e3d>>"));
+        assertFalse(MethodBreakpointMatcher.isAnonymous("Billing::Invoice"));
+    }
+
+    private static void assertMatches(String glob, String methodName, boolean expected) {
+        DebugBreakpoint.Pos pos = new DebugBreakpoint.Pos();
+        pos.setMethodName(glob);
+        pos.setMethodPattern(MethodBreakpointMatcher.compileGlob(glob));
+        assertEquals(glob + " on " + methodName, expected, pos.matchesMethod(methodName));
+    }
+}
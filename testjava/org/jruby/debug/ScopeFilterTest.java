@@ -0,0 +1,82 @@
+/*
+ * header & license
+ * Copyright (c) 2008 debug-commons team
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.jruby.debug;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class ScopeFilterTest extends TestCase {
+
+    private static final List<String> NONE = Collections.emptyList();
+
+    public ScopeFilterTest(String testName) {
+        super(testName);
+    }
+
+    public void testDirectoryIncludesFilesBelow() {
+        ScopeFilter filter = new ScopeFilter(Arrays.asList("app"), NONE);
+        assertTrue(filter.matches("app/models/user.rb"));
+        assertTrue(filter.matches("./app/models/user.rb"));
+        assertFalse(filter.matches("application.rb"));
+        assertFalse(filter.matches("lib/app/x.rb"));
+    }
+
+    public void testWildcards() {
+        ScopeFilter filter = new ScopeFilter(Arrays.asList("lib/*.rb", "test/**/*_test.rb"), NONE);
+        assertTrue(filter.matches("lib/a.rb"));
+        assertFalse(filter.matches("lib/sub/a.rb"));
+        assertTrue(filter.matches("test/a_test.rb"));
+        assertTrue(filter.matches("test/unit/deep/a_test.rb"));
+        assertFalse(filter.matches("test/helper.rb"));
+    }
+
+    public void testExcludeWins() {
+        ScopeFilter filter = new ScopeFilter(NONE, Arrays.asList("/usr/lib/ruby", "**/gems/**"));
+        assertTrue(filter.matches("app/a.rb"));
+        assertFalse(filter.matches("/usr/lib/ruby/1.9/set.rb"));
+        assertFalse(filter.matches("/home/u/.gem/gems/rake-10/lib/rake.rb"));
+        filter = new ScopeFilter(Arrays.asList("app"), Arrays.asList("app/vendor"));
+        assertTrue(filter.matches("app/a.rb"));
+        assertFalse(filter.matches("app/vendor/b.rb"));
+    }
+
+    public void testPatternCharactersAreLiteral() {
+        ScopeFilter filter = new ScopeFilter(Arrays.asList("a+b/(x).rb"), NONE);
+        assertTrue(filter.matches("a+b/(x).rb"));
+        assertFalse(filter.matches("aab/x.rb"));
+    }
+
+    public void testCachedPerFileId() {
+        ScopeFilter filter = new ScopeFilter(Arrays.asList("app"), NONE);
+        for (int id = 0; id < 200; id++) {
+            assertEquals(id % 2 == 0, filter.isInScope(id, id % 2 == 0 ? "app/" + id + ".rb" : "lib/" + id + ".rb"));
+        }
+        // the cached answer is used, whatever the name
+        assertTrue(filter.isInScope(10, "lib/other.rb"));
+        assertFalse(filter.isInScope(11, "app/other.rb"));
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * header & license
+ * Copyright (c) 2008 debug-commons team
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.jruby.debug;
+
+import java.util.Arrays;
+import junit.framework.TestCase;
+
+public class ThreadDumpTest extends TestCase {
+
+    public ThreadDumpTest(String testName) {
+        super(testName);
+    }
+
+    private static DebugContext context(int thnum) {
+        DebugContext debugContext = new DebugContext(null, thnum);
+        debugContext.addFrame(TestFrames.frame("main.rb", 5, null));
+        debugContext.addFrame(TestFrames.frame("lib/worker.rb", 12, "work"));
+        return debugContext;
+    }
+
+    public void testText() {
+        DebugContext suspended = context(2);
+        suspended.setSuspended(true);
+        assertEquals("Thread 1\n" +
+                "\tfrom lib/worker.rb:12:in `work'\n" +
+                "\tfrom main.rb:5\n" +
+                "Thread 2 suspended\n" +
+                "\tfrom lib/worker.rb:12:in `work'\n" +
+                "\tfrom main.rb:5\n",
+                ThreadDump.text(Arrays.asList(context(1), suspended)));
+    }
+
+    public void testJson() {
+        JsonWriter json = new JsonWriter();
+        ThreadDump.json(json, Arrays.asList(context(1)));
+        assertEquals("[{\"thnum\":1,\"name\":null,\"state\":null,\"suspended\":false,\"ignored\":false," +
+                "\"frames\":[{\"file\":\"lib/worker.rb\",\"line\":12,\"method\":\"work\"}," +
+                "{\"file\":\"main.rb\",\"line\":5,\"method\":null}]}]", json.toString());
+    }
+}